@@ -0,0 +1,56 @@
+package io.cloudtrust.keycloak.export.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.export.ImportExportUtils;
+import io.cloudtrust.keycloak.export.dto.BetterCredentialRepresentation;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.util.JsonSerialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a stored credential to its exported representation, with and without its serialization
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportCredentialBenchmark {
+    private CredentialModel credential;
+    private ObjectMapper mapper;
+
+    @Setup
+    public void setup() {
+        credential = new CredentialModel();
+        credential.setId(UUID.randomUUID().toString());
+        credential.setType(CredentialModel.PASSWORD);
+        credential.setCreatedDate(System.currentTimeMillis());
+        credential.setSecretData("{\"value\":\"2+xnEHLrbbbX6xvs2bVI5IBo3Yp3d+Aw2G/QyH7vxjHj0eEz1Cao4xPGVs4Bq2xdn5IBi6OtRoQuatfYrWnpbA==\",\"salt\":\"fZGPr+8N8XGVYD6RWHn6Xg==\"}");
+        credential.setCredentialData("{\"hashIterations\":27500,\"algorithm\":\"pbkdf2-sha256\"}");
+        mapper = JsonSerialization.mapper;
+    }
+
+    @Benchmark
+    public BetterCredentialRepresentation exportCredential() {
+        return ImportExportUtils.exportCredential(credential);
+    }
+
+    @Benchmark
+    public byte[] exportAndSerializeCredential() throws IOException {
+        return mapper.writeValueAsBytes(ImportExportUtils.exportCredential(credential));
+    }
+}
@@ -0,0 +1,92 @@
+package io.cloudtrust.keycloak.export.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.export.FileSource;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.json.CborSerialization;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
+import io.cloudtrust.keycloak.json.RealmFileReader.StreamSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of import files by the ctSingleFile provider (RealmFileReader) compared to a full deserialization
+ * of the realm through BetterUserDeserializer and BetterCredentialDeserializer.
+ * Run with -prof gc to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ImportFileBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int users;
+
+    // How the file is read by RealmFileReader: FileInputStream, FileChannel with a direct buffer, memory-mapped
+    // file, or FileChannel with a read-ahead thread
+    @Param({"stream", "channel", "mapped", "readAhead"})
+    private String source;
+
+    @Param({"json", "cbor"})
+    private String format;
+
+    private File file;
+    private ObjectMapper mapper;
+    private RealmFileReader reader;
+    private RealmEntry entry;
+
+    @Setup
+    public void setup() throws IOException {
+        file = SyntheticRealm.generateFile(users, "cbor".equals(format));
+        mapper = "cbor".equals(format) ? CborSerialization.mapper : new ObjectMapper();
+        reader = new RealmFileReader(createSource(), mapper);
+        entry = reader.scan().get(0);
+    }
+
+    private StreamSource createSource() {
+        switch (source) {
+            case "channel":
+                return new FileSource(file.toPath(), 0, 0);
+            case "mapped":
+                return new FileSource(file.toPath(), 1, 0);
+            case "readAhead":
+                return new FileSource(file.toPath(), 0, 4);
+            default:
+                return () -> new FileInputStream(file);
+        }
+    }
+
+    @Benchmark
+    public List<RealmEntry> scanRealmFile() throws IOException {
+        return reader.scan();
+    }
+
+    @Benchmark
+    public void streamUsers(Blackhole blackhole) throws IOException {
+        reader.readUsers(entry, blackhole::consume);
+    }
+
+    @Benchmark
+    public BetterRealmRepresentation deserializeRealm() throws IOException {
+        return mapper.readValue(file, BetterRealmRepresentation.class);
+    }
+}
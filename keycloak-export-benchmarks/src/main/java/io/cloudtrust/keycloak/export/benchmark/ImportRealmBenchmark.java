@@ -0,0 +1,109 @@
+package io.cloudtrust.keycloak.export.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Import of a realm through POST .../export/realm (ImportExportUtils.importRealm), with and without the required
+ * actions of its users. It needs a running Keycloak with this module deployed, given by the keycloak.url,
+ * keycloak.user and keycloak.password system properties (http://localhost:8080/auth and admin/admin by default).
+ * The imported realm is removed after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportRealmBenchmark {
+    @Param({"1000", "10000"})
+    private int users;
+
+    @Param({"true", "false"})
+    private boolean requiredActions;
+
+    private String url;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        url = System.getProperty("keycloak.url", "http://localhost:8080/auth");
+        file = SyntheticRealm.generateFile(users, false, requiredActions);
+        removeRealm();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeRealm() throws IOException {
+        HttpURLConnection connection = open("/admin/realms/" + SyntheticRealm.REALM_NAME, "DELETE");
+        int status = connection.getResponseCode();
+        if (status != 204 && status != 404) {
+            throw new IOException("Failed to remove the realm: HTTP " + status);
+        }
+    }
+
+    @Benchmark
+    public int importRealm() throws IOException {
+        HttpURLConnection connection = open("/realms/master/export/realm", "POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(file.length());
+        try (OutputStream os = connection.getOutputStream()) {
+            Files.copy(file.toPath(), os);
+        }
+        int status = connection.getResponseCode();
+        if (status != 201) {
+            throw new IOException("Failed to import the realm: HTTP " + status);
+        }
+        return status;
+    }
+
+    private HttpURLConnection open(String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        connection.setRequestMethod(method);
+        // Tokens are requested for each call, as an import can last longer than their lifespan
+        connection.setRequestProperty("Authorization", "Bearer " + getToken());
+        return connection;
+    }
+
+    private String getToken() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + "/realms/master/protocol/openid-connect/token").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setDoOutput(true);
+        String form = "grant_type=password&client_id=admin-cli"
+                + "&username=" + URLEncoder.encode(System.getProperty("keycloak.user", "admin"), "UTF-8")
+                + "&password=" + URLEncoder.encode(System.getProperty("keycloak.password", "admin"), "UTF-8");
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(form.getBytes(StandardCharsets.UTF_8));
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("Failed to get an admin token: HTTP " + connection.getResponseCode());
+        }
+        try (InputStream is = connection.getInputStream()) {
+            return new ObjectMapper().readTree(is).get("access_token").asText();
+        }
+    }
+}
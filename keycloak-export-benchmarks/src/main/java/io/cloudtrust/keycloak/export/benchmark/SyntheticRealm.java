@@ -0,0 +1,113 @@
+package io.cloudtrust.keycloak.export.benchmark;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.cloudtrust.keycloak.json.CborSerialization;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Generates realm export files with a given number of users, each having a password and, by default, required actions
+ */
+public final class SyntheticRealm {
+    public static final String REALM_NAME = "benchmark";
+
+    private static final String SECRET_DATA = "{\"value\":\"2+xnEHLrbbbX6xvs2bVI5IBo3Yp3d+Aw2G/QyH7vxjHj0eEz1Cao4xPGVs4Bq2xdn5IBi6OtRoQuatfYrWnpbA==\",\"salt\":\"fZGPr+8N8XGVYD6RWHn6Xg==\"}";
+    private static final String CREDENTIAL_DATA = "{\"hashIterations\":27500,\"algorithm\":\"pbkdf2-sha256\"}";
+
+    private SyntheticRealm() {
+    }
+
+    /**
+     * Writes a realm with the given number of users in a temporary file, deleted when the JVM exits
+     */
+    public static File generateFile(int usersCount) throws IOException {
+        return generateFile(usersCount, false);
+    }
+
+    /**
+     * Generates a realm file, in JSON or in CBOR
+     */
+    public static File generateFile(int usersCount, boolean cbor) throws IOException {
+        return generateFile(usersCount, cbor, true);
+    }
+
+    /**
+     * Generates a realm file, in JSON or in CBOR, with or without the required actions of the users
+     */
+    public static File generateFile(int usersCount, boolean cbor, boolean requiredActions) throws IOException {
+        File file = File.createTempFile("realm-" + usersCount + "-", cbor ? ".cbor" : ".json");
+        file.deleteOnExit();
+        JsonFactory factory = cbor ? CborSerialization.mapper.getFactory() : new JsonFactory();
+        try (JsonGenerator generator = factory.createGenerator(file, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField("id", REALM_NAME);
+            generator.writeStringField("realm", REALM_NAME);
+            generator.writeBooleanField("enabled", true);
+            generator.writeArrayFieldStart("users");
+            for (int i = 0; i < usersCount; i++) {
+                writeUser(generator, i, requiredActions);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return file;
+    }
+
+    /**
+     * Creates the representation of a user, as found in the generated files
+     */
+    public static UserRepresentation createUser(int index) {
+        UserRepresentation user = new UserRepresentation();
+        user.setId(UUID.randomUUID().toString());
+        user.setUsername("user" + index);
+        user.setEnabled(true);
+        user.setEmail("user" + index + "@example.com");
+        user.setRequiredActions(Arrays.asList("UPDATE_PASSWORD", "NOT_AN_ENUM_VALUE"));
+        user.setRealmRoles(Collections.singletonList("offline_access"));
+        return user;
+    }
+
+    private static void writeUser(JsonGenerator generator, int index, boolean requiredActions) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("id", UUID.randomUUID().toString());
+        generator.writeNumberField("createdTimestamp", 1600000000000L + index);
+        generator.writeStringField("username", "user" + index);
+        generator.writeBooleanField("enabled", true);
+        generator.writeBooleanField("emailVerified", false);
+        generator.writeStringField("firstName", "First" + index);
+        generator.writeStringField("lastName", "Last" + index);
+        generator.writeStringField("email", "user" + index + "@example.com");
+        generator.writeObjectFieldStart("attributes");
+        generator.writeArrayFieldStart("phoneNumber");
+        generator.writeString("+41790000000");
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeArrayFieldStart("credentials");
+        generator.writeStartObject();
+        generator.writeStringField("id", UUID.randomUUID().toString());
+        generator.writeStringField("type", CredentialRepresentation.PASSWORD);
+        generator.writeNumberField("createdDate", 1600000000000L + index);
+        generator.writeStringField("secretData", SECRET_DATA);
+        generator.writeStringField("credentialData", CREDENTIAL_DATA);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        if (requiredActions) {
+            generator.writeArrayFieldStart("requiredActions");
+            generator.writeString("UPDATE_PASSWORD");
+            generator.writeString("NOT_AN_ENUM_VALUE");
+            generator.writeEndArray();
+        }
+        generator.writeArrayFieldStart("realmRoles");
+        generator.writeString("offline_access");
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,49 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ByteRangeTest {
+    @Test
+    void wholeContentTest() {
+        Assertions.assertNull(ByteRange.parse(null, 100));
+        Assertions.assertNull(ByteRange.parse("items=0-10", 100));
+        Assertions.assertNull(ByteRange.parse("bytes=0-10,20-30", 100));
+        Assertions.assertNull(ByteRange.parse("bytes=10-5", 100));
+        Assertions.assertNull(ByteRange.parse("bytes=a-b", 100));
+    }
+
+    @Test
+    void rangeTest() {
+        ByteRange range = ByteRange.parse("bytes=10-19", 100);
+        Assertions.assertEquals(10, range.getStart());
+        Assertions.assertEquals(19, range.getEnd());
+        Assertions.assertEquals(10, range.getLength());
+        Assertions.assertEquals("bytes 10-19/100", range.toContentRange(100));
+
+        range = ByteRange.parse("bytes=90-", 100);
+        Assertions.assertEquals(90, range.getStart());
+        Assertions.assertEquals(99, range.getEnd());
+
+        range = ByteRange.parse("bytes=90-200", 100);
+        Assertions.assertEquals(99, range.getEnd());
+    }
+
+    @Test
+    void suffixRangeTest() {
+        ByteRange range = ByteRange.parse("bytes=-10", 100);
+        Assertions.assertEquals(90, range.getStart());
+        Assertions.assertEquals(99, range.getEnd());
+
+        range = ByteRange.parse("bytes=-200", 100);
+        Assertions.assertEquals(0, range.getStart());
+        Assertions.assertEquals(100, range.getLength());
+    }
+
+    @Test
+    void unsatisfiableRangeTest() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=100-", 100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=-0", 100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=-10", 0));
+    }
+}
@@ -0,0 +1,60 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+class CompressionUtilsTest {
+    @Test
+    void readGzipRealmTest() throws IOException {
+        byte[] content = readResource("exported-realm.json");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(content);
+        }
+        RealmFileReader reader = new RealmFileReader(() -> CompressionUtils.decompress(new ByteArrayInputStream(compressed.toByteArray())), new ObjectMapper());
+
+        RealmEntry entry = reader.scan().get(0);
+        Assertions.assertEquals("Cloudtrust", entry.getName());
+        List<String> usernames = new ArrayList<>();
+        reader.readUsers(entry, u -> usernames.add(u.getUsername()));
+        Assertions.assertEquals(1, usernames.size());
+        Assertions.assertEquals("uglykidjoe", usernames.get(0));
+    }
+
+    @Test
+    void readUncompressedTest() throws IOException {
+        byte[] content = readResource("exported-realm.json");
+        try (InputStream is = CompressionUtils.decompress(new ByteArrayInputStream(content))) {
+            Assertions.assertEquals('{', is.read());
+        }
+    }
+
+    @Test
+    void zstdNotSupportedTest() {
+        byte[] content = {(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd, 0, 0};
+        Assertions.assertThrows(IOException.class, () -> CompressionUtils.decompress(new ByteArrayInputStream(content)));
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        try (InputStream is = CompressionUtilsTest.class.getClassLoader().getResourceAsStream(name)) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                os.write(buffer, 0, read);
+            }
+            return os.toByteArray();
+        }
+    }
+}
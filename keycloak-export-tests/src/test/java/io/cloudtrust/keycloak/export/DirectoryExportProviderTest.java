@@ -0,0 +1,60 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class DirectoryExportProviderTest {
+    private final FakeSessionFactory factory = new FakeSessionFactory();
+    private Path parent;
+    private Path root;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        parent = Files.createTempDirectory("directory-export-");
+        root = Files.createDirectory(parent.resolve("export"));
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        DirectoryRealmExportTest.deleteRecursively(parent);
+    }
+
+    @Test
+    void realmIsExportedToItsDirectoryTest() throws IOException {
+        newProvider().exportRealm(factory.get(), "test");
+        Assertions.assertTrue(Files.exists(root.resolve("test").resolve(DirectoryRealmExport.MANIFEST_FILE)));
+    }
+
+    @Test
+    void realmNameIsNotUsedAsPathTest() throws IOException {
+        newProvider().exportRealm(factory.get(), "../escaped");
+
+        Assertions.assertFalse(Files.exists(parent.resolve("escaped")));
+        List<Path> directories;
+        try (Stream<Path> files = Files.list(root)) {
+            directories = files.collect(Collectors.toList());
+        }
+        Assertions.assertEquals(Collections.singletonList(root.resolve(DirectoryRealmExport.directoryName("../escaped"))), directories);
+        Assertions.assertTrue(Files.exists(directories.get(0).resolve(DirectoryRealmExport.MANIFEST_FILE)));
+    }
+
+    private DirectoryExportProvider newProvider() {
+        return new DirectoryExportProvider(root.toFile(), 10, 1) {
+            @Override
+            DirectoryRealmExport newRealmExport(KeycloakSessionFactory factory, String realmId) {
+                return new FakeDirectoryRealmExport(factory, realmId, 10, 15, 0);
+            }
+        };
+    }
+}
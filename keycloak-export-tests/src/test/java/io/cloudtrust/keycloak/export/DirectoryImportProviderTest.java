@@ -0,0 +1,100 @@
+package io.cloudtrust.keycloak.export;
+
+import io.cloudtrust.keycloak.export.dto.RealmManifestRepresentation;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ModelDuplicateException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class DirectoryImportProviderTest {
+    private final FakeSessionFactory factory = new FakeSessionFactory();
+    private final ImportOptions options = new ImportOptions();
+    private Path root;
+    private Path directory;
+    private RealmManifestRepresentation manifest;
+
+    @BeforeEach
+    void exportRealm() throws IOException {
+        root = Files.createTempDirectory("directory-import-");
+        directory = root.resolve("realm");
+        // Exported with its own sessions, so that only the commits of the import are counted
+        DirectoryRealmExport export = new FakeDirectoryRealmExport(new FakeSessionFactory().get(), "realm", 10, 25, 3);
+        manifest = export.write(directory);
+        options.setImportWorkers(3);
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        DirectoryRealmExportTest.deleteRecursively(root);
+    }
+
+    @Test
+    void importedUsersEqualExportedUsersTest() {
+        Set<String> imported = ConcurrentHashMap.newKeySet();
+        List<String> failedShards = new ArrayList<>();
+        DirectoryImportProvider provider = new DirectoryImportProvider(root.toFile(), options);
+        provider.importShards(factory.get(), "realm", directory, manifest, manifest.getUserShards(), RealmFileReader::readUsers,
+                (session, realm, userRep) -> imported.add(realm.getId() + "/" + userRep.getUsername()), null, failedShards);
+        provider.importShards(factory.get(), "realm", directory, manifest, manifest.getFederatedUserShards(), RealmFileReader::readFederatedUsers,
+                (session, realm, userRep) -> imported.add(realm.getId() + "/" + userRep.getUsername()), null, failedShards);
+
+        Set<String> expected = IntStream.range(0, 25).mapToObj(i -> "realm/user" + i).collect(Collectors.toSet());
+        IntStream.range(0, 3).forEach(i -> expected.add("realm/federated" + i));
+        Assertions.assertEquals(expected, imported);
+        Assertions.assertEquals(Collections.emptyList(), failedShards);
+        Assertions.assertEquals(4, factory.getCommits());
+    }
+
+    @Test
+    void technicalErrorIsRetriedTest() {
+        AtomicInteger attempts = new AtomicInteger();
+        List<String> failedShards = new ArrayList<>();
+        new DirectoryImportProvider(root.toFile(), options).importShards(factory.get(), "realm", directory, manifest,
+                manifest.getUserShards(), RealmFileReader::readUsers, (session, realm, userRep) -> {
+                    if ("user15".equals(userRep.getUsername()) && attempts.incrementAndGet() == 1) {
+                        throw new IllegalStateException("Connection lost");
+                    }
+                }, null, failedShards);
+
+        Assertions.assertEquals(2, attempts.get());
+        Assertions.assertEquals(Collections.emptyList(), failedShards);
+        Assertions.assertEquals(1, factory.getRollbacks());
+        Assertions.assertEquals(3, factory.getCommits());
+    }
+
+    @Test
+    void modelErrorIsNotRetriedTest() {
+        AtomicInteger attempts = new AtomicInteger();
+        Set<String> imported = ConcurrentHashMap.newKeySet();
+        List<String> failedShards = new ArrayList<>();
+        new DirectoryImportProvider(root.toFile(), options).importShards(factory.get(), "realm", directory, manifest,
+                manifest.getUserShards(), RealmFileReader::readUsers, (session, realm, userRep) -> {
+                    if ("user15".equals(userRep.getUsername())) {
+                        attempts.incrementAndGet();
+                        throw new ModelDuplicateException("Duplicate");
+                    }
+                    imported.add(userRep.getUsername());
+                }, null, failedShards);
+
+        Assertions.assertEquals(1, attempts.get());
+        Assertions.assertEquals(Collections.singletonList("users-00002.json"), failedShards);
+        // The other shards are imported, whatever the order the shards ran in
+        Assertions.assertTrue(imported.contains("user0") && imported.contains("user24"));
+        Assertions.assertEquals(1, factory.getRollbacks());
+        Assertions.assertEquals(2, factory.getCommits());
+    }
+}
@@ -0,0 +1,118 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.cloudtrust.keycloak.export.dto.RealmManifestRepresentation;
+import io.cloudtrust.keycloak.export.dto.ShardRepresentation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class DirectoryRealmExportTest {
+    private final FakeSessionFactory factory = new FakeSessionFactory();
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("directory-export-");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    void shardsAreListedInManifestTest() throws IOException {
+        DirectoryRealmExport export = new FakeDirectoryRealmExport(factory.get(), "realm", 10, 25, 3);
+        export.setWorkers(3);
+        RealmManifestRepresentation manifest = export.write(directory);
+
+        Assertions.assertEquals("realm", manifest.getRealm());
+        Assertions.assertEquals(Arrays.asList("users-00001.json", "users-00002.json", "users-00003.json"),
+                manifest.getUserShards().stream().map(ShardRepresentation::getFile).collect(Collectors.toList()));
+        Assertions.assertEquals(Arrays.asList(10, 10, 5),
+                manifest.getUserShards().stream().map(ShardRepresentation::getUsers).collect(Collectors.toList()));
+        Assertions.assertEquals(Collections.singletonList("federated-users-00001.json"),
+                manifest.getFederatedUserShards().stream().map(ShardRepresentation::getFile).collect(Collectors.toList()));
+        Assertions.assertTrue(Files.exists(directory.resolve(DirectoryRealmExport.REALM_FILE)));
+        Assertions.assertTrue(Files.exists(directory.resolve(DirectoryRealmExport.MANIFEST_FILE)));
+        // The shards found empty are not kept
+        Assertions.assertFalse(Files.exists(directory.resolve("users-00004.json")));
+    }
+
+    @Test
+    void emptyLastShardIsRemovedTest() throws IOException {
+        DirectoryRealmExport export = new FakeDirectoryRealmExport(factory.get(), "realm", 10, 20, 0);
+        export.setWorkers(3);
+        RealmManifestRepresentation manifest = export.write(directory);
+
+        Assertions.assertEquals(Arrays.asList(10, 10),
+                manifest.getUserShards().stream().map(ShardRepresentation::getUsers).collect(Collectors.toList()));
+        Assertions.assertFalse(Files.exists(directory.resolve("users-00003.json")));
+        Assertions.assertTrue(manifest.getFederatedUserShards().isEmpty());
+    }
+
+    @Test
+    void manifestIsWrittenLastTest() throws IOException {
+        Path manifest = directory.resolve(DirectoryRealmExport.MANIFEST_FILE);
+        Files.write(manifest, "{}".getBytes());
+        Files.write(directory.resolve("users-00009.json"), "{}".getBytes());
+        DirectoryRealmExport export = new FakeDirectoryRealmExport(factory.get(), "realm", 10, 25, 0) {
+            @Override
+            int writeUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+                Assertions.assertFalse(Files.exists(manifest));
+                return super.writeUsers(session, realm, generator, after, last);
+            }
+        };
+        export.write(directory);
+
+        Assertions.assertTrue(Files.exists(manifest));
+        Assertions.assertFalse(Files.exists(directory.resolve("users-00009.json")));
+    }
+
+    @Test
+    void failedExportHasNoManifestTest() throws IOException {
+        Files.write(directory.resolve(DirectoryRealmExport.MANIFEST_FILE), "{}".getBytes());
+        DirectoryRealmExport export = new FakeDirectoryRealmExport(factory.get(), "realm", 10, 25, 0) {
+            @Override
+            int writeUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+                if ("user9".equals(after)) {
+                    throw new IOException("Disk full");
+                }
+                return super.writeUsers(session, realm, generator, after, last);
+            }
+        };
+        IOException error = Assertions.assertThrows(IOException.class, () -> export.write(directory));
+        Assertions.assertEquals("Disk full", error.getMessage());
+        Assertions.assertFalse(Files.exists(directory.resolve(DirectoryRealmExport.MANIFEST_FILE)));
+    }
+
+    @Test
+    void directoryNameTest() {
+        Assertions.assertEquals("my-realm_1.0", DirectoryRealmExport.directoryName("my-realm_1.0"));
+        Assertions.assertTrue(DirectoryRealmExport.directoryName("../realm").startsWith(".._realm-"));
+        Assertions.assertTrue(DirectoryRealmExport.directoryName("..").startsWith("..-"));
+        Assertions.assertTrue(DirectoryRealmExport.directoryName("a/b").startsWith("a_b-"));
+        Assertions.assertNotEquals(DirectoryRealmExport.directoryName("a/b"), DirectoryRealmExport.directoryName("a\\b"));
+        Assertions.assertNotEquals("a_b", DirectoryRealmExport.directoryName("a/b"));
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Collections.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -1,8 +1,15 @@
 package io.cloudtrust.keycloak.export;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.export.dto.ExportJobRepresentation;
+import io.cloudtrust.keycloak.export.dto.ImportJobRepresentation;
+import io.cloudtrust.keycloak.json.CborSerialization;
 import io.cloudtrust.keycloak.test.AbstractInKeycloakTest;
 import io.cloudtrust.keycloak.test.container.KeycloakDeploy;
 
@@ -10,8 +17,13 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.hamcrest.MatcherAssert;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
@@ -32,10 +44,13 @@ import javax.ws.rs.core.Response;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.CoreMatchers.is;
 
@@ -172,6 +187,393 @@ public class ExportResourceProviderTest extends AbstractInKeycloakTest {
         });
     }
 
+    @Test
+    void exportKeepsCredentialIds() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            // A credential created after the import, besides the one imported with its id
+            UserRepresentation user = keycloak.realm(TEST_REALM_NAME).users().search("user1").get(0);
+            CredentialRepresentation password = new CredentialRepresentation();
+            password.setType(CredentialRepresentation.PASSWORD);
+            password.setValue("password");
+            password.setTemporary(false);
+            keycloak.realm(TEST_REALM_NAME).users().get(user.getId()).resetPassword(password);
+
+            for (String query : Arrays.asList(null, "stream=true")) {
+                RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME, query);
+                for (UserRepresentation exportedUser : exportedRealm.getUsers()) {
+                    List<String> storedIds = new ArrayList<>();
+                    keycloak.realm(TEST_REALM_NAME).users().get(exportedUser.getId()).credentials()
+                            .forEach(c -> storedIds.add(c.getId()));
+                    List<String> exportedIds = new ArrayList<>();
+                    exportedUser.getCredentials().forEach(c -> exportedIds.add(c.getId()));
+                    Assertions.assertEquals(storedIds, exportedIds);
+                }
+                UserRepresentation user2 = exportedRealm.getUsers().stream().filter(u -> u.getUsername().equals("user2")).findAny().get();
+                Assertions.assertEquals("801bd5c1-e1b6-4c36-9b58-c9237760f022", user2.getCredentials().get(0).getId());
+            }
+        });
+    }
+
+    @Test
+    void importSetsCustomRequiredActions() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode realm = (ObjectNode) mapper.readTree(new File(TEST_REALM_PATH));
+        ObjectNode user = (ObjectNode) realm.get("users").get(0);
+        user.putArray("requiredActions").add("UPDATE_PASSWORD").add("custom-action");
+
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+            HttpPost post = new HttpPost(KEYCLOAK_URL + "/realms/master/export/realm");
+            post.addHeader("Authorization", "Bearer " + token);
+            post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(realm), ContentType.APPLICATION_JSON));
+            HttpResponse response = client.execute(post);
+            Assertions.assertEquals(201, response.getStatusLine().getStatusCode());
+
+            UserRepresentation importedUser = keycloak.realm(TEST_REALM_NAME).users().get(user.get("id").asText()).toRepresentation();
+            Assertions.assertEquals(new HashSet<>(Arrays.asList("UPDATE_PASSWORD", "custom-action")), new HashSet<>(importedUser.getRequiredActions()));
+            Assertions.assertEquals(realm.get("users").size(), keycloak.realm(TEST_REALM_NAME).users().count().intValue());
+        } finally {
+            try {
+                keycloak.realm(TEST_REALM_NAME).remove();
+            } catch (Exception e) {
+                // NOOP
+            }
+        }
+    }
+
+    @Test
+    void streamedExportEqualsExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            RealmRepresentation streamedRealm = exportRealm(token, TEST_REALM_NAME, "stream=true");
+            Assertions.assertEquals(exportedRealm.getRealm(), streamedRealm.getRealm());
+            Assertions.assertEquals(exportedRealm.getClients().size(), streamedRealm.getClients().size());
+            Assertions.assertEquals(exportedRealm.getUsers().size(), streamedRealm.getUsers().size());
+            exportedRealm.getUsers().forEach(exportedUser -> {
+                UserRepresentation streamedUser = streamedRealm.getUsers().stream().filter(u -> u.getId().equals(exportedUser.getId())).findAny().get();
+                Assertions.assertEquals(exportedUser.getUsername(), streamedUser.getUsername());
+                Assertions.assertEquals(exportedUser.getCredentials(), streamedUser.getCredentials());
+            });
+        });
+    }
+
+    @Test
+    void pagedExportEqualsExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            RealmRepresentation skeleton = exportRealm(token, TEST_REALM_NAME, "users=false");
+            Assertions.assertNull(skeleton.getUsers());
+            Assertions.assertEquals(exportedRealm.getClients().size(), skeleton.getClients().size());
+
+            List<UserRepresentation> pagedUsers = new ArrayList<>();
+            String cursor = null;
+            do {
+                JsonNode page = exportUsers(token, TEST_REALM_NAME, cursor, 1);
+                Assertions.assertTrue(page.get("users").size() <= 1);
+                for (JsonNode user : page.get("users")) {
+                    pagedUsers.add(new ObjectMapper().treeToValue(user, UserRepresentation.class));
+                }
+                cursor = page.has("next") ? page.get("next").asText() : null;
+            } while (cursor != null);
+
+            Assertions.assertEquals(exportedRealm.getUsers().size(), pagedUsers.size());
+            exportedRealm.getUsers().forEach(exportedUser -> {
+                UserRepresentation pagedUser = pagedUsers.stream().filter(u -> u.getId().equals(exportedUser.getId())).findAny().get();
+                Assertions.assertEquals(exportedUser.getCredentials(), pagedUser.getCredentials());
+            });
+        });
+    }
+
+    @Test
+    void incrementalExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            long since = System.currentTimeMillis();
+            createTestUser("admin", "admin", TEST_REALM_NAME, "new.user", "password", "user");
+
+            BetterRealmRepresentation incrementalRealm = exportIncrementalRealm(token, TEST_REALM_NAME, since);
+            Assertions.assertEquals(1, incrementalRealm.getUsers().size());
+            Assertions.assertEquals("new.user", incrementalRealm.getUsers().get(0).getUsername());
+            Assertions.assertNull(incrementalRealm.getFederatedUsers());
+            // All the users, including the new one, are listed to detect the removed ones
+            List<String> expectedIds = new ArrayList<>();
+            exportedRealm.getUsers().forEach(u -> expectedIds.add(u.getId()));
+            expectedIds.add(incrementalRealm.getUsers().get(0).getId());
+            Assertions.assertEquals(new HashSet<>(expectedIds), new HashSet<>(incrementalRealm.getUserIds()));
+            Assertions.assertEquals(expectedIds.size(), incrementalRealm.getUserIds().size());
+
+            // A user having a new credential is exported too
+            UserRepresentation user1 = keycloak.realm(TEST_REALM_NAME).users().search("user1").get(0);
+            CredentialRepresentation password = new CredentialRepresentation();
+            password.setType(CredentialRepresentation.PASSWORD);
+            password.setValue("password");
+            password.setTemporary(false);
+            keycloak.realm(TEST_REALM_NAME).users().get(user1.getId()).resetPassword(password);
+            incrementalRealm = exportIncrementalRealm(token, TEST_REALM_NAME, since);
+            List<String> usernames = new ArrayList<>();
+            incrementalRealm.getUsers().forEach(u -> usernames.add(u.getUsername()));
+            Assertions.assertEquals(new HashSet<>(Arrays.asList("new.user", "user1")), new HashSet<>(usernames));
+
+            // Every user is changed since the epoch
+            incrementalRealm = exportIncrementalRealm(token, TEST_REALM_NAME, 0);
+            Assertions.assertEquals(incrementalRealm.getUserIds().size(), incrementalRealm.getUsers().size());
+        });
+    }
+
+    @Test
+    void incrementalExportRequiresUsers() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            HttpResponseException ex = Assertions.assertThrows(HttpResponseException.class,
+                    () -> exportRealm(token, TEST_REALM_NAME, "users=false&since=0"));
+            MatcherAssert.assertThat(ex.getStatusCode(), is(400));
+        });
+    }
+
+    @Test
+    void pagedExportIsNotShiftedByNewUsers() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            JsonNode first = exportUsers(token, TEST_REALM_NAME, null, 1);
+            Assertions.assertEquals("user1", first.get("users").get(0).get("username").asText());
+
+            // A user sorted before the cursor doesn't move the next page
+            createTestUser("admin", "admin", TEST_REALM_NAME, "a.user", "password", "user");
+            JsonNode second = exportUsers(token, TEST_REALM_NAME, first.get("next").asText(), 1);
+            Assertions.assertEquals("user2", second.get("users").get(0).get("username").asText());
+            Assertions.assertFalse(second.has("next"));
+        });
+    }
+
+    @Test
+    void gzipFileExportEqualsExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+                HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + TEST_REALM_NAME + "/export/realm?stream=true&format=json.gz");
+                get.addHeader("Authorization", "Bearer " + token);
+                HttpResponse response = client.execute(get);
+                Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+                try (InputStream is = new GZIPInputStream(response.getEntity().getContent())) {
+                    RealmRepresentation gzipRealm = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                            .readValue(is, RealmRepresentation.class);
+                    Assertions.assertEquals(exportedRealm.getRealm(), gzipRealm.getRealm());
+                    Assertions.assertEquals(exportedRealm.getUsers().size(), gzipRealm.getUsers().size());
+                }
+            }
+        });
+    }
+
+    @Test
+    void exportAllRealms() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+                HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/master/export/realms");
+                get.addHeader("Authorization", "Bearer " + token);
+                HttpResponse response = client.execute(get);
+                Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+                RealmRepresentation[] realms = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                        .readValue(response.getEntity().getContent(), RealmRepresentation[].class);
+                Assertions.assertTrue(Arrays.stream(realms).anyMatch(r -> r.getRealm().equals("master")));
+                RealmRepresentation testRealm = Arrays.stream(realms).filter(r -> r.getRealm().equals(TEST_REALM_NAME)).findAny().get();
+                Assertions.assertEquals(exportedRealm.getUsers().size(), testRealm.getUsers().size());
+
+                get = new HttpGet(KEYCLOAK_URL + "/realms/" + TEST_REALM_NAME + "/export/realms");
+                get.addHeader("Authorization", "Bearer " + token);
+                response = client.execute(get);
+                Assertions.assertEquals(404, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            }
+        });
+    }
+
+    @Test
+    void conditionalExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+                HttpHead head = new HttpHead(KEYCLOAK_URL + "/realms/" + TEST_REALM_NAME + "/export/realm");
+                head.addHeader("Authorization", "Bearer " + token);
+                HttpResponse response = client.execute(head);
+                Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+                String etag = response.getFirstHeader("ETag").getValue();
+
+                HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + TEST_REALM_NAME + "/export/realm");
+                get.addHeader("Authorization", "Bearer " + token);
+                get.addHeader("If-None-Match", etag);
+                response = client.execute(get);
+                Assertions.assertEquals(304, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+
+                // Removing a user changes the fingerprint of the realm
+                UserRepresentation user = keycloak.realm(TEST_REALM_NAME).users().list().get(0);
+                keycloak.realm(TEST_REALM_NAME).users().delete(user.getId()).close();
+                response = client.execute(get);
+                Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+                Assertions.assertNotEquals(etag, response.getFirstHeader("ETag").getValue());
+                EntityUtils.consume(response.getEntity());
+            }
+        });
+    }
+
+    @Test
+    void cborExportEqualsExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            for (String query : Arrays.asList("", "stream=true")) {
+                try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+                    HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + TEST_REALM_NAME + "/export/realm?" + query);
+                    get.addHeader("Authorization", "Bearer " + token);
+                    get.addHeader("Accept", CborSerialization.MEDIA_TYPE);
+                    HttpResponse response = client.execute(get);
+                    Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+                    Assertions.assertEquals(CborSerialization.MEDIA_TYPE, response.getEntity().getContentType().getValue());
+                    try (InputStream is = response.getEntity().getContent()) {
+                        BetterRealmRepresentation cborRealm = CborSerialization.mapper.copy()
+                                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                                .readValue(is, BetterRealmRepresentation.class);
+                        Assertions.assertEquals(exportedRealm.getRealm(), cborRealm.getRealm());
+                        Assertions.assertEquals(exportedRealm.getUsers().size(), cborRealm.getUsers().size());
+                        UserRepresentation user = cborRealm.getUsers().get(0);
+                        UserRepresentation expectedUser = exportedRealm.getUsers().stream()
+                                .filter(u -> u.getId().equals(user.getId())).findFirst().orElseThrow(AssertionError::new);
+                        Assertions.assertEquals(expectedUser.getCredentials().size(), user.getCredentials().size());
+                        if (!user.getCredentials().isEmpty()) {
+                            Assertions.assertNotNull(user.getCredentials().get(0).getId());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    void exportJobEqualsExport() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        withRealm(TEST_REALM_NAME, () -> {
+            RealmRepresentation exportedRealm = exportRealm(token, TEST_REALM_NAME);
+            String jobUrl = KEYCLOAK_URL + "/realms/" + TEST_REALM_NAME + "/export/realm/jobs";
+            try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+                HttpPost post = new HttpPost(jobUrl);
+                post.addHeader("Authorization", "Bearer " + token);
+                HttpResponse response = client.execute(post);
+                Assertions.assertEquals(202, response.getStatusLine().getStatusCode());
+                String location = response.getFirstHeader("Location").getValue();
+                EntityUtils.consume(response.getEntity());
+
+                ExportJobRepresentation job = null;
+                for (int i = 0; i < 100; i++) {
+                    HttpGet get = new HttpGet(location);
+                    get.addHeader("Authorization", "Bearer " + token);
+                    try (InputStream is = client.execute(get).getEntity().getContent()) {
+                        job = new ObjectMapper().readValue(is, ExportJobRepresentation.class);
+                    }
+                    if (!"PENDING".equals(job.getStatus()) && !"RUNNING".equals(job.getStatus())) {
+                        break;
+                    }
+                    Thread.sleep(100);
+                }
+                Assertions.assertEquals("COMPLETED", job.getStatus());
+                Assertions.assertEquals(exportedRealm.getUsers().size(), job.getUsersWritten().intValue());
+
+                HttpGet get = new HttpGet(location + "/content");
+                get.addHeader("Authorization", "Bearer " + token);
+                response = client.execute(get);
+                Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+                byte[] content = EntityUtils.toByteArray(response.getEntity());
+                Assertions.assertEquals(job.getBytesWritten().longValue(), content.length);
+                RealmRepresentation jobRealm = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                        .readValue(content, RealmRepresentation.class);
+                Assertions.assertEquals(exportedRealm.getUsers().size(), jobRealm.getUsers().size());
+
+                get = new HttpGet(location + "/content");
+                get.addHeader("Authorization", "Bearer " + token);
+                get.addHeader("Range", "bytes=10-");
+                response = client.execute(get);
+                Assertions.assertEquals(206, response.getStatusLine().getStatusCode());
+                Assertions.assertEquals("bytes 10-" + (content.length - 1) + "/" + content.length, response.getFirstHeader("Content-Range").getValue());
+                Assertions.assertArrayEquals(Arrays.copyOfRange(content, 10, content.length), EntityUtils.toByteArray(response.getEntity()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Assertions.fail(e);
+            }
+        });
+    }
+
+    @Test
+    void importJobReportsFailedUsers() throws IOException {
+        Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", "admin", "admin", CLIENT);
+        String token = keycloak.tokenManager().getAccessTokenString();
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode realm = (ObjectNode) mapper.readTree(new File(TEST_REALM_PATH));
+        ArrayNode users = (ArrayNode) realm.get("users");
+        int usersCount = users.size();
+        // Same username as an existing user, with another id
+        ObjectNode duplicate = users.get(0).deepCopy();
+        duplicate.put("id", "b5a6b4a4-8f1e-4b7e-9d2a-6e0c7a1f3c11");
+        duplicate.remove("credentials");
+        users.add(duplicate);
+
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+            HttpPost post = new HttpPost(KEYCLOAK_URL + "/realms/master/export/realm/imports");
+            post.addHeader("Authorization", "Bearer " + token);
+            post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(realm), ContentType.APPLICATION_JSON));
+            HttpResponse response = client.execute(post);
+            Assertions.assertEquals(202, response.getStatusLine().getStatusCode());
+            String location = response.getFirstHeader("Location").getValue();
+            EntityUtils.consume(response.getEntity());
+
+            ImportJobRepresentation job = null;
+            for (int i = 0; i < 100; i++) {
+                HttpGet get = new HttpGet(location);
+                get.addHeader("Authorization", "Bearer " + token);
+                try (InputStream is = client.execute(get).getEntity().getContent()) {
+                    job = mapper.readValue(is, ImportJobRepresentation.class);
+                }
+                if (!"PENDING".equals(job.getStatus()) && !"RUNNING".equals(job.getStatus())) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            Assertions.assertEquals("COMPLETED", job.getStatus());
+            Assertions.assertEquals(TEST_REALM_NAME, job.getRealm());
+            Assertions.assertEquals(usersCount, job.getUsersImported().intValue());
+            Assertions.assertEquals(1, job.getUsersFailed().intValue());
+            Assertions.assertEquals(duplicate.get("id").asText(), job.getUserErrors().get(0).getId());
+            Assertions.assertEquals("CONFLICT", job.getUserErrors().get(0).getType());
+            Assertions.assertEquals(usersCount, keycloak.realm(TEST_REALM_NAME).users().count().intValue());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Assertions.fail(e);
+        } finally {
+            try {
+                keycloak.realm(TEST_REALM_NAME).remove();
+            } catch (Exception e) {
+                // NOOP
+            }
+        }
+    }
+
     @Test
     void nonAdminCantExportMaster() throws IOException {
         Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", TEST_USER, "password", CLIENT);
@@ -213,8 +615,12 @@ public class ExportResourceProviderTest extends AbstractInKeycloakTest {
     }
 
     private static RealmRepresentation exportRealm(String token, String realm) throws IOException {
+        return exportRealm(token, realm, null);
+    }
+
+    private static RealmRepresentation exportRealm(String token, String realm, String query) throws IOException {
         try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
-            HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + realm + "/export/realm");
+            HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + realm + "/export/realm" + (query == null ? "" : "?" + query));
             get.addHeader("Authorization", "Bearer " + token);
 
             HttpResponse response = client.execute(get);
@@ -229,6 +635,37 @@ public class ExportResourceProviderTest extends AbstractInKeycloakTest {
         }
     }
 
+    private static BetterRealmRepresentation exportIncrementalRealm(String token, String realm, long since) throws IOException {
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+            HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + realm + "/export/realm?since=" + since);
+            get.addHeader("Authorization", "Bearer " + token);
+
+            HttpResponse response = client.execute(get);
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new HttpResponseException(response.getStatusLine().getStatusCode(), "export failed: " + response.getStatusLine().getStatusCode());
+            }
+            try (InputStream is = response.getEntity().getContent()) {
+                ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+                return mapper.readValue(is, BetterRealmRepresentation.class);
+            }
+        }
+    }
+
+    private static JsonNode exportUsers(String token, String realm, String cursor, int max) throws IOException {
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+            HttpGet get = new HttpGet(KEYCLOAK_URL + "/realms/" + realm + "/export/realm/users?max=" + max + (cursor == null ? "" : "&cursor=" + cursor));
+            get.addHeader("Authorization", "Bearer " + token);
+
+            HttpResponse response = client.execute(get);
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new HttpResponseException(response.getStatusLine().getStatusCode(), "export failed: " + response.getStatusLine().getStatusCode());
+            }
+            try (InputStream is = response.getEntity().getContent()) {
+                return new ObjectMapper().readTree(is);
+            }
+        }
+    }
+
     private static void createTestUser(String username, String password, String realmName, String newUsername, String newPassword, String... roles) {
         Keycloak keycloak = Keycloak.getInstance(KEYCLOAK_URL, "master", username, password, CLIENT);
 
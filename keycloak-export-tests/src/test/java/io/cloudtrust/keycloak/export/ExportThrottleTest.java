@@ -0,0 +1,70 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ExportThrottleTest {
+    @AfterEach
+    void reset() {
+        Metrics.reset();
+    }
+
+    @Test
+    void burstIsSpreadOverTimeTest() {
+        ExportThrottle throttle = new ExportThrottle(10000, 0);
+        long start = System.nanoTime();
+        // The bucket holds 10000 users: the third page waits for 5000 users, i.e. half a second
+        for (int i = 0; i < 3; i++) {
+            throttle.run(5000, null, () -> null);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assertions.assertTrue(elapsedMillis >= 400, "Elapsed " + elapsedMillis + " ms");
+
+        String scrape = Metrics.scrape();
+        Assertions.assertTrue(scrape.contains("keycloak_export_throttle_wait_seconds_count 3\n"));
+        Assertions.assertTrue(scrape.contains("keycloak_export_throttled_users_total 15000\n"));
+    }
+
+    @Test
+    void waitIsRecordedAsPhaseTest() {
+        ExportThrottle throttle = new ExportThrottle(0, 0);
+        Metrics.Operation metrics = Metrics.start(Metrics.EXPORT, "test");
+        Assertions.assertEquals("result", throttle.run(1000, metrics, () -> "result"));
+        Assertions.assertTrue(Metrics.scrape().contains("keycloak_export_phase_seconds_count{phase=\"throttle\"} 1\n"));
+    }
+
+    @Test
+    void concurrentQueriesAreLimitedTest() throws Exception {
+        ExportThrottle throttle = new ExportThrottle(0, 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            Future<?>[] results = new Future<?>[12];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(() -> throttle.run(1, null, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return running.decrementAndGet();
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assertions.assertEquals(2, maxRunning.get());
+    }
+}
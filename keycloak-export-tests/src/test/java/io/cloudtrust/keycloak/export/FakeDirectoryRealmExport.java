@@ -0,0 +1,76 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.idm.RealmRepresentation;
+
+import java.io.IOException;
+
+/**
+ * A directory export of a realm with the given numbers of users and federated users, named user0, user1... and
+ * federated0, federated1..., which only have a username
+ */
+class FakeDirectoryRealmExport extends DirectoryRealmExport {
+    private final int users;
+    private final int federatedUsers;
+
+    FakeDirectoryRealmExport(KeycloakSessionFactory sessionFactory, String realmId, int usersPerShard, int users, int federatedUsers) {
+        super(sessionFactory, realmId, usersPerShard);
+        this.users = users;
+        this.federatedUsers = federatedUsers;
+    }
+
+    @Override
+    RealmRepresentation exportRealm(KeycloakSession session, RealmModel realm) {
+        RealmRepresentation realmRep = new RealmRepresentation();
+        realmRep.setId(realm.getId());
+        realmRep.setRealm(realm.getName());
+        return realmRep;
+    }
+
+    @Override
+    String getUsernameAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        return keyAfter("user", after, position, users);
+    }
+
+    @Override
+    String getFederatedUserIdAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        return keyAfter("federated", after, position, federatedUsers);
+    }
+
+    @Override
+    int writeUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+        return write(generator, "user", after, last, users);
+    }
+
+    @Override
+    int writeFederatedUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+        return write(generator, "federated", after, last, federatedUsers);
+    }
+
+    /**
+     * Users are ordered by their number rather than by their name, so that the shards hold user0 to user9, user10 to
+     * user19...
+     */
+    private static String keyAfter(String prefix, String after, int position, int total) {
+        int index = indexOf(prefix, after) + position;
+        return index < total ? prefix + index : null;
+    }
+
+    private static int indexOf(String prefix, String key) {
+        return key == null ? -1 : Integer.parseInt(key.substring(prefix.length()));
+    }
+
+    private int write(JsonGenerator generator, String prefix, String after, String last, int total) throws IOException {
+        int first = indexOf(prefix, after) + 1;
+        int end = last == null ? total : indexOf(prefix, last) + 1;
+        for (int i = first; i < end; i++) {
+            generator.writeStartObject();
+            generator.writeStringField("username", prefix + i);
+            generator.writeEndObject();
+        }
+        return Math.max(0, end - first);
+    }
+}
@@ -0,0 +1,109 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A session factory whose sessions only support transactions, counting commits and rollbacks, and a realm provider
+ * returning a realm which only knows its id, its name being the same
+ */
+class FakeSessionFactory {
+    private final AtomicInteger commits = new AtomicInteger();
+    private final AtomicInteger rollbacks = new AtomicInteger();
+    private final KeycloakSessionFactory factory = proxy(KeycloakSessionFactory.class, (method, args) ->
+            "create".equals(method) ? createSession() : null);
+
+    KeycloakSessionFactory get() {
+        return factory;
+    }
+
+    int getCommits() {
+        return commits.get();
+    }
+
+    int getRollbacks() {
+        return rollbacks.get();
+    }
+
+    private KeycloakSession createSession() {
+        KeycloakTransactionManager tx = createTransaction();
+        RealmProvider realms = proxy(RealmProvider.class, (method, args) ->
+                "getRealm".equals(method) || "getRealmByName".equals(method) ? createRealm((String) args[0]) : null);
+        return proxy(KeycloakSession.class, (method, args) -> {
+            switch (method) {
+                case "getTransactionManager":
+                    return tx;
+                case "realms":
+                    return realms;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private KeycloakTransactionManager createTransaction() {
+        boolean[] active = {false};
+        boolean[] rollbackOnly = {false};
+        return proxy(KeycloakTransactionManager.class, (method, args) -> {
+            switch (method) {
+                case "begin":
+                    active[0] = true;
+                    return null;
+                case "commit":
+                    active[0] = false;
+                    commits.incrementAndGet();
+                    return null;
+                case "rollback":
+                    active[0] = false;
+                    rollbacks.incrementAndGet();
+                    return null;
+                case "setRollbackOnly":
+                    rollbackOnly[0] = true;
+                    return null;
+                case "isActive":
+                    return active[0];
+                case "getRollbackOnly":
+                    return rollbackOnly[0];
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static RealmModel createRealm(String id) {
+        return proxy(RealmModel.class, (method, args) -> "getId".equals(method) || "getName".equals(method) ? id : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(FakeSessionFactory.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    Object result = handler.handle(method.getName(), args);
+                    if (result == null && method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+                        // The default value of the primitive type
+                        return Array.get(Array.newInstance(method.getReturnType(), 1), 0);
+                    }
+                    return result;
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+}
@@ -0,0 +1,105 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+class FileSourceTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readModesTest() throws IOException {
+        byte[] content = generateRealms(3, 5000);
+        Path plain = tempDir.resolve("realms.json");
+        Files.write(plain, content);
+        Path compressed = tempDir.resolve("realms.json.gz");
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            os.write(content);
+        }
+
+        for (Path file : new Path[]{plain, compressed}) {
+            // Direct buffer, memory-mapped file, then both with read-ahead
+            for (long mapThreshold : new long[]{0, 1}) {
+                for (int readAheadBuffers : new int[]{0, 2}) {
+                    try (RealmFileReader reader = new RealmFileReader(new FileSource(file, mapThreshold, readAheadBuffers), new ObjectMapper())) {
+                        List<RealmEntry> entries = reader.scan();
+                        Assertions.assertEquals(3, entries.size());
+
+                        List<String> usernames = new ArrayList<>();
+                        reader.readUsers(entries.get(2), u -> usernames.add(u.getUsername()));
+                        Assertions.assertEquals(5000, usernames.size());
+                        Assertions.assertEquals("user4999", usernames.get(4999));
+                        Assertions.assertEquals("realm1", reader.readRealm(reader.find("realm1")).getRealm());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void concurrentReadsTest() throws Exception {
+        Path compressed = tempDir.resolve("realms.json.gz");
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            os.write(generateRealms(8, 2000));
+        }
+
+        // As when realms are imported in parallel, the workers share the reader and its source from the first read
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (RealmFileReader reader = new RealmFileReader(new FileSource(compressed, 0, 2), new ObjectMapper())) {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String realmName = "realm" + i;
+                results.add(executor.submit(() -> {
+                    RealmEntry entry = reader.find(realmName);
+                    Assertions.assertEquals(realmName, reader.readRealm(entry).getRealm());
+                    int[] count = new int[1];
+                    reader.readUsers(entry, u -> count[0]++);
+                    return count[0];
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assertions.assertEquals(2000, result.get().intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void zstdIsRejectedTest() throws IOException {
+        Path file = tempDir.resolve("realms.json.zst");
+        Files.write(file, new byte[]{(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd, 0, 0});
+        try (FileSource source = new FileSource(file, 0, 0)) {
+            IOException e = Assertions.assertThrows(IOException.class, source::open);
+            Assertions.assertTrue(e.getMessage().startsWith("Zstandard compressed files are not supported"));
+        }
+    }
+
+    private byte[] generateRealms(int realms, int users) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int r = 0; r < realms; r++) {
+            sb.append(r == 0 ? "" : ",").append("{\"realm\":\"realm").append(r).append("\",\"users\":[");
+            for (int u = 0; u < users; u++) {
+                sb.append(u == 0 ? "" : ",").append("{\"username\":\"user").append(u).append("\",\"firstName\":\"Jérôme\"}");
+            }
+            sb.append("]}");
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,107 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class ImportCheckpointTest {
+    private Path directory;
+    private Path path;
+    private Path file;
+
+    @BeforeEach
+    void createFiles() throws IOException {
+        directory = Files.createTempDirectory("checkpoint-");
+        path = directory.resolve("checkpoint.json");
+        file = directory.resolve("realm.json");
+        Files.write(file, "{\"realm\":\"realm\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        DirectoryRealmExportTest.deleteRecursively(directory);
+    }
+
+    @Test
+    void batchesCommittedOutOfOrderTest() throws IOException {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(path, file);
+        checkpoint.realmImported("realm", "id");
+        UserBatchImporter.BatchCommitListener tracker = checkpoint.trackUsers("realm");
+
+        tracker.batchCommitted(10, 10);
+        tracker.batchCommitted(20, 5);
+        // The first batch is missing: nothing is recorded as committed
+        Assertions.assertEquals(0, checkpoint.getUsers("realm"));
+        Assertions.assertEquals(0, ImportCheckpoint.open(path, file).getUsers("realm"));
+
+        tracker.batchCommitted(0, 10);
+        Assertions.assertEquals(25, checkpoint.getUsers("realm"));
+        Assertions.assertEquals(25, ImportCheckpoint.open(path, file).getUsers("realm"));
+        Assertions.assertEquals(0, checkpoint.getFederatedUsers("realm"));
+    }
+
+    @Test
+    void gapIsFilledTest() throws IOException {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(path, file);
+        checkpoint.realmImported("realm", "id");
+        UserBatchImporter.BatchCommitListener tracker = checkpoint.trackFederatedUsers("realm");
+
+        tracker.batchCommitted(0, 10);
+        tracker.batchCommitted(20, 10);
+        Assertions.assertEquals(10, checkpoint.getFederatedUsers("realm"));
+        tracker.batchCommitted(10, 10);
+        Assertions.assertEquals(30, checkpoint.getFederatedUsers("realm"));
+    }
+
+    @Test
+    void resumeAfterRealmStructureTest() throws IOException {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(path, file);
+        checkpoint.realmImported("realm", "id");
+        checkpoint.trackUsers("realm").batchCommitted(0, 10);
+
+        ImportCheckpoint resumed = ImportCheckpoint.open(path, file);
+        Assertions.assertEquals("id", resumed.getRealmId("realm"));
+        Assertions.assertFalse(resumed.isCompleted("realm"));
+        Assertions.assertEquals(10, resumed.getUsers("realm"));
+
+        // The batches of the resumed import are counted from the first user not committed
+        resumed.trackUsers("realm").batchCommitted(0, 5);
+        Assertions.assertEquals(15, resumed.getUsers("realm"));
+
+        resumed.realmCompleted("realm");
+        Assertions.assertTrue(ImportCheckpoint.open(path, file).isCompleted("realm"));
+    }
+
+    @Test
+    void changedFileStartsOverTest() throws IOException {
+        ImportCheckpoint.open(path, file).realmImported("realm", "id");
+        Assertions.assertEquals("id", ImportCheckpoint.open(path, file).getRealmId("realm"));
+
+        Files.write(file, " ".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Assertions.assertNull(ImportCheckpoint.open(path, file).getRealmId("realm"));
+    }
+
+    @Test
+    void directoryIsRecognizedByItsManifestsTest() throws IOException {
+        Path root = Files.createDirectory(directory.resolve("export"));
+        Path manifest = Files.createDirectory(root.resolve("realm")).resolve(DirectoryRealmExport.MANIFEST_FILE);
+        Files.write(manifest, "{\"realm\":\"realm\",\"createdTimestamp\":1}".getBytes(StandardCharsets.UTF_8));
+        ImportCheckpoint.open(path, root).realmImported("realm", "id");
+
+        // Other files do not matter, even if they change the directory
+        Files.write(root.resolve("notes.txt"), "notes".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectory(root.resolve("incomplete"));
+        Assertions.assertEquals("id", ImportCheckpoint.open(path, root).getRealmId("realm"));
+
+        // A realm exported again is another import
+        Files.write(manifest, "{\"realm\":\"realm\",\"createdTimestamp\":2}".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertNull(ImportCheckpoint.open(path, root).getRealmId("realm"));
+    }
+}
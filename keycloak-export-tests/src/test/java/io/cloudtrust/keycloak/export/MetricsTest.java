@@ -0,0 +1,45 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+class MetricsTest {
+    @AfterEach
+    void reset() {
+        Metrics.reset();
+    }
+
+    @Test
+    void operationIsAddedWhenFinishedTest() throws IOException {
+        Metrics.Operation metrics = Metrics.start(Metrics.EXPORT, "test");
+        metrics.record("skeleton", System.nanoTime());
+        metrics.addUsers(10);
+        Assertions.assertFalse(Metrics.scrape().contains("keycloak_export_users_total"));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        metrics.meter(out -> out.write(new byte[123])).write(os);
+        metrics.finish();
+
+        String scrape = Metrics.scrape();
+        Assertions.assertTrue(scrape.contains("# TYPE keycloak_export_users_total counter\nkeycloak_export_users_total 10\n"));
+        Assertions.assertTrue(scrape.contains("keycloak_export_bytes_total 123\n"));
+        Assertions.assertTrue(scrape.contains("keycloak_export_duration_seconds_count 1\n"));
+        Assertions.assertTrue(scrape.contains("keycloak_export_phase_seconds_count{phase=\"skeleton\"} 1\n"));
+        Assertions.assertTrue(scrape.contains("keycloak_export_phase_seconds_count{phase=\"write\"} 1\n"));
+        Assertions.assertEquals(123, os.size());
+    }
+
+    @Test
+    void phasesAreSummedTest() {
+        Metrics.record(Metrics.IMPORT, "scan", System.nanoTime());
+        Metrics.record(Metrics.IMPORT, "scan", System.nanoTime());
+        String scrape = Metrics.scrape();
+        Assertions.assertTrue(scrape.contains("# TYPE keycloak_import_phase_seconds summary\n"));
+        Assertions.assertTrue(scrape.contains("keycloak_import_phase_seconds_count{phase=\"scan\"} 2\n"));
+        Assertions.assertFalse(scrape.contains("keycloak_import_duration_seconds"));
+    }
+}
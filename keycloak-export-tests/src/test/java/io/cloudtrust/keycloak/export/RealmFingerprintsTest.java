@@ -0,0 +1,204 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.lang.reflect.Proxy;
+import java.util.stream.Stream;
+
+class RealmFingerprintsTest {
+    private RealmModel realm;
+    private int hashes;
+    private String statistics;
+
+    @BeforeEach
+    void createRealm() {
+        realm = fake(RealmModel.class, (method, args) -> {
+            switch (method) {
+                case "getId":
+                case "getName":
+                    return "realm";
+                case "getEventsListenersStream":
+                    return Stream.of(FingerprintEventListenerProviderFactory.ID);
+                default:
+                    return null;
+            }
+        });
+        hashes = 0;
+        statistics = "1:100:1:100";
+    }
+
+    @Test
+    void unchangedRealmKeepsItsFingerprintTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60);
+        String fingerprint = fingerprints.get(null, realm);
+        Assertions.assertEquals(fingerprint, fingerprints.get(null, realm));
+        Assertions.assertEquals(1, hashes);
+    }
+
+    @Test
+    void changedUsersChangeTheFingerprintWithoutHashingTheRealmTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60);
+        String fingerprint = fingerprints.get(null, realm);
+        fingerprints.usersChanged("realm");
+        String changed = fingerprints.get(null, realm);
+        Assertions.assertNotEquals(fingerprint, changed);
+        Assertions.assertEquals(changed, fingerprints.get(null, realm));
+        Assertions.assertEquals(1, hashes);
+    }
+
+    @Test
+    void changedStatisticsChangeTheFingerprintTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60);
+        String fingerprint = fingerprints.get(null, realm);
+        statistics = "2:200:2:200";
+        Assertions.assertNotEquals(fingerprint, fingerprints.get(null, realm));
+        Assertions.assertEquals(1, hashes);
+    }
+
+    @Test
+    void changedRealmIsHashedAgainTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60);
+        String fingerprint = fingerprints.get(null, realm);
+        fingerprints.invalidate("realm");
+        Assertions.assertNotEquals(fingerprint, fingerprints.get(null, realm));
+        Assertions.assertEquals(2, hashes);
+    }
+
+    @Test
+    void expiredRealmIsHashedAgainTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(0);
+        String fingerprint = fingerprints.get(null, realm);
+        Assertions.assertNotEquals(fingerprint, fingerprints.get(null, realm));
+        Assertions.assertEquals(2, hashes);
+    }
+
+    @Test
+    void realmChangedWhileHashedIsNotKeptTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60) {
+            @Override
+            String hashRealm(KeycloakSession session, RealmModel realm) {
+                String hash = super.hashRealm(session, realm);
+                if (hashes == 1) {
+                    invalidate(realm.getId());
+                }
+                return hash;
+            }
+        };
+        fingerprints.get(null, realm);
+        fingerprints.get(null, realm);
+        fingerprints.get(null, realm);
+        Assertions.assertEquals(2, hashes);
+    }
+
+    @Test
+    void eventsChangeTheFingerprintTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60);
+        String fingerprint = fingerprints.get(null, realm);
+
+        fingerprints.onEvent(event(EventType.LOGIN));
+        fingerprints.onEvent(adminEvent(ResourceType.USER_SESSION), false);
+        Assertions.assertEquals(fingerprint, fingerprints.get(null, realm));
+
+        fingerprints.onEvent(event(EventType.UPDATE_PASSWORD));
+        String changed = fingerprints.get(null, realm);
+        Assertions.assertNotEquals(fingerprint, changed);
+
+        fingerprints.onEvent(adminEvent(ResourceType.REALM_ROLE_MAPPING), false);
+        fingerprint = fingerprints.get(null, realm);
+        Assertions.assertNotEquals(changed, fingerprint);
+        Assertions.assertEquals(1, hashes);
+
+        fingerprints.onEvent(adminEvent(ResourceType.AUTH_FLOW), false);
+        fingerprints.get(null, realm);
+        Assertions.assertEquals(2, hashes);
+    }
+
+    @Test
+    void providerEventsChangeTheFingerprintTest() {
+        RealmFingerprints fingerprints = new CountingFingerprints(60);
+        String fingerprint = fingerprints.get(null, realm);
+
+        fingerprints.onEvent(fake(UserModel.UserRemovedEvent.class, (method, args) -> "getRealm".equals(method) ? realm : null));
+        String changed = fingerprints.get(null, realm);
+        Assertions.assertNotEquals(fingerprint, changed);
+        Assertions.assertEquals(1, hashes);
+
+        ClientModel client = fake(ClientModel.class, (method, args) -> "getRealm".equals(method) ? realm : null);
+        fingerprints.onEvent(fake(ClientModel.ClientUpdatedEvent.class, (method, args) -> "getUpdatedClient".equals(method) ? client : null));
+        Assertions.assertNotEquals(changed, fingerprints.get(null, realm));
+        Assertions.assertEquals(2, hashes);
+    }
+
+    @Test
+    void matchesTest() {
+        Assertions.assertTrue(RealmFingerprints.matches("W/\"abc\"", "abc"));
+        Assertions.assertTrue(RealmFingerprints.matches("\"abc\"", "abc"));
+        Assertions.assertTrue(RealmFingerprints.matches("\"xyz\", W/\"abc\"", "abc"));
+        Assertions.assertTrue(RealmFingerprints.matches("*", "abc"));
+        Assertions.assertFalse(RealmFingerprints.matches("W/\"abcd\"", "abc"));
+        Assertions.assertFalse(RealmFingerprints.matches(null, "abc"));
+        Assertions.assertFalse(RealmFingerprints.matches("*", null));
+    }
+
+    private static Event event(EventType type) {
+        Event event = new Event();
+        event.setRealmId("realm");
+        event.setType(type);
+        return event;
+    }
+
+    private static AdminEvent adminEvent(ResourceType resourceType) {
+        AdminEvent event = new AdminEvent();
+        event.setRealmId("realm");
+        event.setResourceType(resourceType);
+        return event;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(RealmFingerprintsTest.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    return handler.handle(method.getName(), args);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    private class CountingFingerprints extends RealmFingerprints {
+        CountingFingerprints(int maxAgeSeconds) {
+            super(maxAgeSeconds);
+        }
+
+        @Override
+        String hashRealm(KeycloakSession session, RealmModel realm) {
+            hashes++;
+            return "hash";
+        }
+
+        @Override
+        String getUserStatistics(KeycloakSession session, RealmModel realm) {
+            return statistics;
+        }
+    }
+}
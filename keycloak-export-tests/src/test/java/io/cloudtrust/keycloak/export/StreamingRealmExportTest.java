@@ -0,0 +1,148 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+class StreamingRealmExportTest {
+    private static final int USERS = 1003;
+    private static final int PAGE_SIZE = 10;
+
+    private final FakeSessionFactory factory = new FakeSessionFactory();
+    private final NavigableSet<String> usernames = new ConcurrentSkipListSet<>();
+
+    @BeforeEach
+    void createUsers() {
+        for (int i = 0; i < USERS; i++) {
+            usernames.add(String.format("user%04d", i));
+        }
+    }
+
+    @Test
+    void parallelOrderedExportEqualsSerialExportTest() throws IOException {
+        List<String> serial = exportUsers(1, true);
+        Assertions.assertEquals(USERS, serial.size());
+        Assertions.assertEquals("user0000", serial.get(0));
+        Assertions.assertEquals(serial, exportUsers(4, true));
+    }
+
+    @Test
+    void parallelUnorderedExportHasAllUsersTest() throws IOException {
+        List<String> serial = exportUsers(1, true);
+        List<String> unordered = exportUsers(4, false);
+        Assertions.assertEquals(serial.size(), unordered.size());
+        Assertions.assertEquals(new HashSet<>(serial), new HashSet<>(unordered));
+    }
+
+    @Test
+    void usersCreatedAndRemovedDuringExportTest() throws IOException {
+        assertUsersCreatedAndRemovedDuringExport(1);
+    }
+
+    @Test
+    void usersCreatedAndRemovedDuringParallelExportTest() throws IOException {
+        assertUsersCreatedAndRemovedDuringExport(4);
+    }
+
+    private void assertUsersCreatedAndRemovedDuringExport(int workers) throws IOException {
+        List<String> exported = exportUsers(workers, true, page -> {
+            if (page == 50) {
+                // Before the position of the export: with pages read by offset, the next pages would be shifted
+                usernames.add("user0000a");
+                usernames.remove("user0001");
+                usernames.remove("user0002");
+            }
+        });
+        Assertions.assertEquals(USERS, exported.size());
+        Assertions.assertEquals(new HashSet<>(exported).size(), exported.size());
+        Assertions.assertEquals("user1002", exported.get(USERS - 1));
+    }
+
+    private List<String> exportUsers(int workers, boolean ordered) throws IOException {
+        return exportUsers(workers, ordered, page -> {
+        });
+    }
+
+    /**
+     * Exports the users of a realm whose pages take a random time to load
+     *
+     * @param onPage called with the number of pages loaded so far when a page is loaded
+     * @return the usernames, in the order they were written
+     */
+    private List<String> exportUsers(int workers, boolean ordered, Consumer<Integer> onPage) throws IOException {
+        AtomicInteger pages = new AtomicInteger();
+        StreamingRealmExport export = new StreamingRealmExport(factory.get(), "realm", PAGE_SIZE) {
+            @Override
+            String getUsernameAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+                Iterator<String> it = (after == null ? usernames : usernames.tailSet(after, false)).iterator();
+                for (int i = 1; it.hasNext(); i++) {
+                    String username = it.next();
+                    if (i == position) {
+                        return username;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            int writeUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, JsonGenerator userIds, String after, String last) throws IOException {
+                sleep(ThreadLocalRandom.current().nextInt(3));
+                onPage.accept(pages.incrementAndGet());
+                NavigableSet<String> page = usernames;
+                if (after != null) {
+                    page = page.tailSet(after, false);
+                }
+                if (last != null) {
+                    page = page.headSet(last, true);
+                }
+                List<String> users = new ArrayList<>(page);
+                for (String username : users) {
+                    generator.writeStartObject();
+                    generator.writeStringField("username", username);
+                    generator.writeEndObject();
+                }
+                return users.size();
+            }
+        };
+        export.setWorkers(workers);
+        export.setOrdered(ordered);
+
+        ObjectMapper mapper = new ObjectMapper();
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(writer)) {
+            generator.writeStartArray();
+            export.writeAllUsers(generator, null);
+            generator.writeEndArray();
+        }
+        List<String> usernames = new ArrayList<>();
+        for (JsonNode user : mapper.readTree(writer.toString())) {
+            usernames.add(user.get("username").asText());
+        }
+        return usernames;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.cloudtrust.keycloak.export;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.ModelException;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class UserBatchImporterTest {
+    private final FakeSessionFactory factory = new FakeSessionFactory();
+
+    @Test
+    void batchesAreCommittedTest() {
+        List<String> imported = Collections.synchronizedList(new ArrayList<>());
+        List<Long> batches = new ArrayList<>();
+        try (UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 3, 1,
+                (session, realm, userRep) -> imported.add(realm.getId() + "/" + userRep.getUsername()))) {
+            importer.setCommitListener((first, size) -> batches.addAll(Arrays.asList(first, (long) size)));
+            for (int i = 0; i < 7; i++) {
+                importer.add(user(i));
+            }
+            importer.finish();
+            Assertions.assertEquals(7, importer.getImportedCount());
+        }
+        Assertions.assertEquals("realm/user0", imported.get(0));
+        Assertions.assertEquals(7, imported.size());
+        Assertions.assertEquals(Arrays.asList(0L, 3L, 3L, 3L, 6L, 1L), batches);
+        Assertions.assertEquals(3, factory.getCommits());
+    }
+
+    @Test
+    void technicalErrorIsRetriedTest() {
+        AtomicInteger attempts = new AtomicInteger();
+        try (UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 10, 1, (session, realm, userRep) -> {
+            if (attempts.incrementAndGet() <= UserBatchImporter.MAX_RETRIES) {
+                throw new IllegalStateException("Connection lost");
+            }
+        })) {
+            importer.add(user(0));
+            importer.finish();
+            Assertions.assertEquals(1, importer.getImportedCount());
+        }
+        Assertions.assertEquals(UserBatchImporter.MAX_RETRIES + 1, attempts.get());
+        Assertions.assertEquals(UserBatchImporter.MAX_RETRIES, factory.getRollbacks());
+        Assertions.assertEquals(1, factory.getCommits());
+    }
+
+    @Test
+    void retriesAreLimitedTest() {
+        AtomicInteger attempts = new AtomicInteger();
+        try (UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 10, 1, (session, realm, userRep) -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("Connection lost");
+        })) {
+            importer.add(user(0));
+            Assertions.assertThrows(IllegalStateException.class, importer::finish);
+        }
+        Assertions.assertEquals(UserBatchImporter.MAX_RETRIES + 1, attempts.get());
+        Assertions.assertEquals(0, factory.getCommits());
+    }
+
+    @Test
+    void modelErrorIsNotRetriedTest() {
+        AtomicInteger attempts = new AtomicInteger();
+        try (UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 10, 1, (session, realm, userRep) -> {
+            attempts.incrementAndGet();
+            throw new ModelDuplicateException("Duplicate");
+        })) {
+            importer.add(user(0));
+            Assertions.assertThrows(ModelDuplicateException.class, importer::finish);
+        }
+        Assertions.assertEquals(1, attempts.get());
+        Assertions.assertEquals(1, factory.getRollbacks());
+    }
+
+    @Test
+    void failedUsersAreReportedTest() {
+        List<String> failed = new ArrayList<>();
+        AtomicInteger reported = new AtomicInteger();
+        UserBatchImporter.UserImportListener listener = new UserBatchImporter.UserImportListener() {
+            @Override
+            public void usersImported(int count) {
+                reported.addAndGet(count);
+            }
+
+            @Override
+            public void userFailed(UserRepresentation userRep, ModelException error) {
+                failed.add(userRep.getUsername());
+            }
+        };
+        List<Long> batches = new ArrayList<>();
+        try (UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 5, 1, (session, realm, userRep) -> {
+            if ("user2".equals(userRep.getUsername())) {
+                throw new ModelDuplicateException("Duplicate");
+            }
+        }, listener)) {
+            importer.setCommitListener((first, size) -> batches.addAll(Arrays.asList(first, (long) size)));
+            for (int i = 0; i < 5; i++) {
+                importer.add(user(i));
+            }
+            importer.finish();
+            Assertions.assertEquals(4, importer.getImportedCount());
+        }
+        Assertions.assertEquals(Collections.singletonList("user2"), failed);
+        Assertions.assertEquals(4, reported.get());
+        // The failed batch is imported again one user per transaction, and recorded as a whole once done
+        Assertions.assertEquals(4, factory.getCommits());
+        Assertions.assertEquals(Arrays.asList(0L, 5L), batches);
+    }
+
+    @Test
+    void batchesAreImportedConcurrentlyTest() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Map<Long, Integer> batches = new ConcurrentHashMap<>();
+        try (UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 10, 4, (session, realm, userRep) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(1);
+            running.decrementAndGet();
+        })) {
+            importer.setCommitListener(batches::put);
+            for (int i = 0; i < 205; i++) {
+                importer.add(user(i));
+            }
+            importer.finish();
+            Assertions.assertEquals(205, importer.getImportedCount());
+        }
+        Assertions.assertEquals(21, batches.size());
+        Assertions.assertEquals(5, batches.get(200L).intValue());
+        Assertions.assertTrue(maxRunning.get() <= 4);
+        Assertions.assertEquals(21, factory.getCommits());
+    }
+
+    @Test
+    void failureStopsImportTest() {
+        AtomicInteger imported = new AtomicInteger();
+        UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 10, 2, (session, realm, userRep) -> {
+            if ("user15".equals(userRep.getUsername())) {
+                throw new ModelDuplicateException("Duplicate");
+            }
+            imported.incrementAndGet();
+        });
+        Assertions.assertThrows(ModelDuplicateException.class, () -> {
+            try {
+                for (int i = 0; i < 10000; i++) {
+                    importer.add(user(i));
+                }
+                importer.finish();
+            } finally {
+                importer.close();
+            }
+        });
+        // The batches started before the failure was seen are completed, the others are not imported. The failed
+        // batch imported 5 users before being rolled back.
+        Assertions.assertTrue(imported.get() < 10000);
+        Assertions.assertEquals(imported.get(), factory.getCommits() * 10 + 5);
+    }
+
+    @Test
+    void closeAbortsPendingBatchesTest() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger imported = new AtomicInteger();
+        UserBatchImporter importer = new UserBatchImporter(factory.get(), "realm", 1, 2, (session, realm, userRep) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            imported.incrementAndGet();
+        });
+        // Two batches running, two waiting for a worker
+        for (int i = 0; i < 4; i++) {
+            importer.add(user(i));
+        }
+        Assertions.assertTrue(started.await(10, TimeUnit.SECONDS));
+        importer.close();
+        release.countDown();
+
+        IllegalStateException error = Assertions.assertThrows(IllegalStateException.class, importer::finish);
+        Assertions.assertEquals("Import aborted", error.getMessage());
+        Assertions.assertEquals(2, imported.get());
+        Assertions.assertEquals(2, factory.getCommits());
+    }
+
+    private static UserRepresentation user(int i) {
+        UserRepresentation userRep = new UserRepresentation();
+        userRep.setUsername("user" + i);
+        return userRep;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
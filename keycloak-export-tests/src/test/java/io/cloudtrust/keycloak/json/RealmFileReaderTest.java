@@ -0,0 +1,172 @@
+package io.cloudtrust.keycloak.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.export.dto.BetterUserRepresentation;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class RealmFileReaderTest {
+    @Test
+    void readSingleRealmTest() throws IOException {
+        byte[] content = readResource("exported-realm.json");
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        List<RealmEntry> entries = reader.scan();
+        Assertions.assertEquals(1, entries.size());
+        Assertions.assertEquals("Cloudtrust", entries.get(0).getName());
+
+        BetterRealmRepresentation realm = reader.readRealm(entries.get(0));
+        Assertions.assertEquals("Cloudtrust", realm.getId());
+        Assertions.assertNull(realm.getUsers());
+        Assertions.assertFalse(realm.getClients().isEmpty());
+
+        List<UserRepresentation> users = new ArrayList<>();
+        reader.readUsers(entries.get(0), users::add);
+        Assertions.assertEquals(1, users.size());
+        Assertions.assertTrue(users.get(0) instanceof BetterUserRepresentation);
+        Assertions.assertEquals("uglykidjoe", users.get(0).getUsername());
+    }
+
+    @Test
+    void readRealmArrayTest() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write('[');
+        os.write(readResource("exported-realm.json"));
+        os.write(',');
+        os.write(readResource("test-export-realm.json"));
+        os.write(']');
+        byte[] content = os.toByteArray();
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        List<RealmEntry> entries = reader.scan();
+        Assertions.assertEquals(2, entries.size());
+        Assertions.assertEquals("test-export", entries.get(1).getName());
+        Assertions.assertEquals("test-export", reader.readRealm(entries.get(1)).getRealm());
+
+        List<String> usernames = new ArrayList<>();
+        reader.readUsers(entries.get(1), u -> usernames.add(u.getUsername()));
+        Assertions.assertEquals(2, usernames.size());
+        Assertions.assertTrue(usernames.contains("user1"));
+    }
+
+    @Test
+    void findRealmTest() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write('[');
+        os.write(readResource("exported-realm.json"));
+        os.write(',');
+        os.write(readResource("test-export-realm.json"));
+        os.write(']');
+        byte[] content = os.toByteArray();
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        RealmEntry entry = reader.find("test-export");
+        Assertions.assertNotNull(entry);
+        Assertions.assertEquals(reader.scan().get(1).getOffset(), entry.getOffset());
+        Assertions.assertEquals("test-export", reader.readRealm(entry).getRealm());
+        Assertions.assertNull(reader.find("unknown"));
+    }
+
+    @Test
+    void findStopsAtRealmTest() throws IOException {
+        // The content following the requested realm is never read
+        byte[] content = "[{\"realm\":\"first\",\"users\":[{\"username\":\"user\"}]},{\"realm\":\"second\"},{not json"
+                .getBytes(StandardCharsets.UTF_8);
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        RealmEntry entry = reader.find("second");
+        Assertions.assertEquals("second", reader.readRealm(entry).getRealm());
+    }
+
+    @Test
+    void readCborRealmTest() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ObjectMapper jsonMapper = new ObjectMapper();
+        try (JsonParser parser = jsonMapper.getFactory().createParser(readResource("exported-realm.json"));
+             JsonGenerator generator = CborSerialization.mapper.getFactory().createGenerator(os)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        byte[] content = os.toByteArray();
+        Assertions.assertTrue(CborSerialization.isCbor(new ByteArrayInputStream(content)));
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), jsonMapper);
+
+        RealmEntry entry = reader.scan().get(0);
+        Assertions.assertEquals("Cloudtrust", entry.getName());
+        Assertions.assertFalse(reader.readRealm(entry).getClients().isEmpty());
+
+        List<UserRepresentation> users = new ArrayList<>();
+        reader.readUsers(entry, users::add);
+        Assertions.assertEquals("uglykidjoe", users.get(0).getUsername());
+        Assertions.assertEquals("1b9748f0-b9ba-4aaa-874f-0f0a3652dcf4", users.get(0).getCredentials().get(0).getId());
+    }
+
+    @Test
+    void realmWithoutUsersTest() throws IOException {
+        byte[] content = "{\"realm\":\"empty\",\"enabled\":true}".getBytes(StandardCharsets.UTF_8);
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        RealmEntry entry = reader.scan().get(0);
+        Assertions.assertEquals("empty", entry.getName());
+        Assertions.assertEquals(-1, entry.getUsersOffset());
+        reader.readUsers(entry, u -> Assertions.fail("No user expected"));
+    }
+
+    @Test
+    void readUserIdsTest() throws IOException {
+        byte[] content = "{\"realm\":\"delta\",\"userIds\":[\"id1\",\"id2\"],\"users\":[{\"id\":\"id2\",\"username\":\"user2\"}]}"
+                .getBytes(StandardCharsets.UTF_8);
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        RealmEntry entry = reader.scan().get(0);
+        List<String> userIds = new ArrayList<>();
+        reader.readUserIds(entry, userIds::add);
+        Assertions.assertEquals(Arrays.asList("id1", "id2"), userIds);
+        Assertions.assertNull(reader.readRealm(entry).getUserIds());
+
+        List<String> usernames = new ArrayList<>();
+        reader.readUsers(entry, u -> usernames.add(u.getUsername()));
+        Assertions.assertEquals(Collections.singletonList("user2"), usernames);
+    }
+
+    @Test
+    void skipUsersTest() throws IOException {
+        byte[] content = ("{\"realm\":\"resumed\",\"users\":[{\"username\":\"user1\",\"attributes\":{\"a\":[\"1\"]}},"
+                + "{\"username\":\"user2\"},{\"username\":\"user3\"}]}").getBytes(StandardCharsets.UTF_8);
+        RealmFileReader reader = new RealmFileReader(() -> new ByteArrayInputStream(content), new ObjectMapper());
+
+        RealmEntry entry = reader.scan().get(0);
+        List<String> usernames = new ArrayList<>();
+        reader.readUsers(entry, 2, u -> usernames.add(u.getUsername()));
+        Assertions.assertEquals(Collections.singletonList("user3"), usernames);
+
+        reader.readUsers(entry, 5, u -> Assertions.fail("No user expected"));
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        try (InputStream is = RealmFileReaderTest.class.getClassLoader().getResourceAsStream(name)) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                os.write(buffer, 0, read);
+            }
+            return os.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.cloudtrust.keycloak.export;
+
+/**
+ * A single byte range of a Range request header (RFC 7233)
+ */
+public class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses a Range header. Headers which are not a single byte range are ignored, as allowed by the RFC.
+     *
+     * @param header the Range header, can be null
+     * @param length the length of the content
+     * @return the requested range, or null if the whole content should be returned
+     * @throws IllegalArgumentException if the range can't be satisfied
+     */
+    public static ByteRange parse(String header, long length) {
+        if (header == null || !header.startsWith(BYTES_UNIT) || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range: the last bytes of the content
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    throw new IllegalArgumentException("Unsatisfiable range " + header);
+                }
+                return new ByteRange(Math.max(0, length - suffix), length - 1);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (end < start) {
+                // Invalid range
+                return null;
+            }
+            if (start >= length) {
+                throw new IllegalArgumentException("Unsatisfiable range " + header);
+            }
+            return new ByteRange(start, Math.min(end, length - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header of the response
+     */
+    public String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+}
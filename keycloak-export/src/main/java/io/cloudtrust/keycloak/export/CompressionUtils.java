@@ -0,0 +1,118 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.keycloak.util.JsonSerialization;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressionUtils {
+    public static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+    private static final byte[] ZSTD_MAGIC = {(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd};
+
+    private CompressionUtils() {
+    }
+
+    /**
+     * Checks whether the client accepts gzip encoded responses
+     *
+     * @param headers the request headers
+     * @return true if gzip is listed in the Accept-Encoding header without a zero quality
+     */
+    public static boolean acceptsGzip(HttpHeaders headers) {
+        List<String> acceptEncodings = headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncodings == null) {
+            return false;
+        }
+        for (String acceptEncoding : acceptEncodings) {
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (GZIP.equalsIgnoreCase(parts[0].trim()) && (parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses an entity with gzip while it is written
+     *
+     * @param entity a StreamingOutput, or an object serialized in JSON
+     * @return the compressed output
+     */
+    public static StreamingOutput gzip(Object entity) {
+        StreamingOutput output = entity instanceof StreamingOutput ? (StreamingOutput) entity
+                : os -> JsonSerialization.mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET).writeValue(os, entity);
+        return os -> {
+            GZIPOutputStream gzip = new GZIPOutputStream(os, BUFFER_SIZE);
+            output.write(gzip);
+            gzip.finish();
+            gzip.flush();
+        };
+    }
+
+    /**
+     * Checks whether a stream starts with the gzip magic bytes. The stream is consumed.
+     *
+     * @param is the stream to read
+     * @return true if the stream is gzip compressed
+     * @throws IOException if the stream can't be read
+     */
+    public static boolean isGzip(InputStream is) throws IOException {
+        byte[] header = new byte[GZIP_MAGIC.length];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = is.read(header, length, header.length - length)) > 0) {
+            length += read;
+        }
+        return startsWith(header, length, GZIP_MAGIC);
+    }
+
+    /**
+     * Detects the compression of a stream from its first bytes
+     *
+     * @param is the stream to read
+     * @return a stream on the decompressed content, or on the original content if it is not compressed
+     * @throws IOException if the stream can't be read or uses an unsupported compression
+     */
+    public static InputStream decompress(InputStream is) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(is, ZSTD_MAGIC.length);
+        byte[] header = new byte[ZSTD_MAGIC.length];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = pushback.read(header, length, header.length - length)) > 0) {
+            length += read;
+        }
+        pushback.unread(header, 0, length);
+        if (startsWith(header, length, GZIP_MAGIC)) {
+            return new GZIPInputStream(pushback, BUFFER_SIZE);
+        }
+        if (startsWith(header, length, ZSTD_MAGIC)) {
+            pushback.close();
+            throw new IOException("Zstandard compressed files are not supported, use gzip or decompress the file before importing it");
+        }
+        return pushback;
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,30 @@
+package io.cloudtrust.keycloak.export;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes written to a stream, the count can be read while the stream is being written
+ */
+class CountingOutputStream extends FilterOutputStream {
+    private final AtomicLong count;
+
+    CountingOutputStream(OutputStream out, AtomicLong count) {
+        super(out);
+        this.count = count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count.incrementAndGet();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count.addAndGet(len);
+    }
+}
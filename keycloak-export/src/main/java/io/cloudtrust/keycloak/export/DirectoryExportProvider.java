@@ -0,0 +1,84 @@
+package io.cloudtrust.keycloak.export;
+
+import org.jboss.logging.Logger;
+import org.keycloak.exportimport.ExportProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exports realms to a directory, each realm in a sub-directory named after it, as far as the name is safe in a path
+ * (see {@link DirectoryRealmExport#directoryName(String)}), and written by
+ * {@link DirectoryRealmExport}. The result is imported by the ctDirectory import provider.
+ */
+public class DirectoryExportProvider implements ExportProvider {
+    private static final Logger logger = Logger.getLogger(DirectoryExportProvider.class);
+
+    private final File rootDirectory;
+    private final int usersPerShard;
+    private final int workers;
+
+    /**
+     * @param rootDirectory the directory of the export
+     * @param usersPerShard the number of users of each shard
+     * @param workers       the number of threads writing shards at the same time
+     */
+    public DirectoryExportProvider(File rootDirectory, int usersPerShard, int workers) {
+        this.rootDirectory = rootDirectory;
+        this.usersPerShard = usersPerShard;
+        this.workers = workers;
+    }
+
+    @Override
+    public void exportModel(KeycloakSessionFactory factory) throws IOException {
+        logger.infof("Exporting all realms to directory %s", rootDirectory.getAbsolutePath());
+        Map<String, String> realms = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            Map<String, String> result = new LinkedHashMap<>();
+            session.realms().getRealmsStream().forEach(r -> result.put(r.getId(), r.getName()));
+            return result;
+        });
+        for (Map.Entry<String, String> realm : realms.entrySet()) {
+            exportRealm(factory, realm.getKey(), realm.getValue());
+        }
+    }
+
+    @Override
+    public void exportRealm(KeycloakSessionFactory factory, String realmName) throws IOException {
+        logger.infof("Exporting realm '%s' to directory %s", realmName, rootDirectory.getAbsolutePath());
+        String realmId = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            RealmModel realm = session.realms().getRealmByName(realmName);
+            return realm == null ? null : realm.getId();
+        });
+        if (realmId == null) {
+            throw new IllegalArgumentException("Realm '" + realmName + "' not found");
+        }
+        exportRealm(factory, realmId, realmName);
+    }
+
+    private void exportRealm(KeycloakSessionFactory factory, String realmId, String realmName) throws IOException {
+        DirectoryRealmExport export = newRealmExport(factory, realmId);
+        Metrics.Operation metrics = Metrics.start(Metrics.EXPORT, realmName);
+        export.setMetrics(metrics);
+        try {
+            export.write(rootDirectory.toPath().resolve(DirectoryRealmExport.directoryName(realmName)));
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    DirectoryRealmExport newRealmExport(KeycloakSessionFactory factory, String realmId) {
+        DirectoryRealmExport export = new DirectoryRealmExport(factory, realmId, usersPerShard);
+        export.setWorkers(workers);
+        return export;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
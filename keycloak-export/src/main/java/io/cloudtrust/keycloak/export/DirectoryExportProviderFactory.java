@@ -0,0 +1,49 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.exportimport.ExportImportConfig;
+import org.keycloak.exportimport.ExportProvider;
+import org.keycloak.exportimport.ExportProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.File;
+
+public class DirectoryExportProviderFactory implements ExportProviderFactory {
+    public static final String ID = "ctDirectory";
+
+    private static final int DEFAULT_USERS_PER_SHARD = 1000;
+
+    private int usersPerShard;
+    private int workers;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public ExportProvider create(KeycloakSession session) {
+        String dir = ExportImportConfig.getDir();
+        if (dir == null) {
+            throw new IllegalArgumentException("Property " + ExportImportConfig.DIR + " needs to be provided!");
+        }
+        return new DirectoryExportProvider(new File(dir), usersPerShard, workers);
+    }
+
+    @Override
+    public void init(Scope config) {
+        usersPerShard = config.getInt("usersPerShard", DEFAULT_USERS_PER_SHARD);
+        workers = config.getInt("exportWorkers", 1);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,339 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.export.UserBatchImporter.UserImporter;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.export.dto.RealmManifestRepresentation;
+import io.cloudtrust.keycloak.export.dto.ShardRepresentation;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.exportimport.ImportProvider;
+import org.keycloak.exportimport.Strategy;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.RepresentationToModel;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.managers.RealmManager;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Imports realms exported by the ctDirectory export provider: each sub-directory holding a manifest is a realm.
+ * The realm structure is imported first, then its shards of users are imported concurrently by importWorkers threads,
+ * each shard in its own transaction. A shard which fails is rolled back as a whole, so that it can be retried
+ * without affecting the other shards; after a technical error, it is retried shardRetries times before being reported
+ * as failed. A shard rejected by the model (a duplicated user, an unmet password policy...) would fail the same way
+ * again, so it is reported as failed at once.
+ * <p>
+ * With a checkpoint file, the realms and shards committed are recorded, and skipped when the import is run again
+ * after a failure.
+ */
+public class DirectoryImportProvider implements ImportProvider {
+    private static final Logger logger = Logger.getLogger(DirectoryImportProvider.class);
+
+    private final File rootDirectory;
+    private final ImportOptions options;
+    private ImportCheckpoint checkpoint;
+
+    /**
+     * @param rootDirectory the directory to import
+     * @param options       the import options
+     */
+    public DirectoryImportProvider(File rootDirectory, ImportOptions options) {
+        this.rootDirectory = rootDirectory;
+        this.options = options;
+    }
+
+    @Override
+    public void importModel(KeycloakSessionFactory factory, Strategy strategy) throws IOException {
+        logger.infof("Full importing from directory %s", rootDirectory.getAbsolutePath());
+
+        Map<String, Path> realms = findRealms();
+        openCheckpoint();
+        Path masterRealm = realms.remove(Config.getAdminRealm());
+        if (masterRealm != null) {
+            importRealm(factory, masterRealm, strategy);
+        }
+        for (Path realmDirectory : realms.values()) {
+            importRealm(factory, realmDirectory, strategy);
+        }
+        if (masterRealm != null) {
+            KeycloakModelUtils.runJobInTransaction(factory, this::setupMasterAdminManagement);
+        }
+        deleteCheckpoint();
+    }
+
+    @Override
+    public void importRealm(KeycloakSessionFactory factory, String realmName, Strategy strategy) throws IOException {
+        logger.infof("Importing realm '%s' from directory %s", realmName, rootDirectory.getAbsolutePath());
+
+        Path realmDirectory = findRealms().get(realmName);
+        if (realmDirectory == null) {
+            throw new IllegalArgumentException("Realm '" + realmName + "' not found in directory " + rootDirectory.getAbsolutePath());
+        }
+        openCheckpoint();
+        importRealm(factory, realmDirectory, strategy);
+        if (Config.getAdminRealm().equals(realmName)) {
+            KeycloakModelUtils.runJobInTransaction(factory, this::setupMasterAdminManagement);
+        }
+        deleteCheckpoint();
+    }
+
+    @Override
+    public boolean isMasterRealmExported() throws IOException {
+        return findRealms().containsKey(Config.getAdminRealm());
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    /**
+     * @return the directories of the complete realm exports, by realm name
+     */
+    private Map<String, Path> findRealms() throws IOException {
+        Map<String, Path> realms = new LinkedHashMap<>();
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(rootDirectory.toPath(), Files::isDirectory)) {
+            stream.forEach(directories::add);
+        }
+        Collections.sort(directories);
+        for (Path directory : directories) {
+            if (Files.exists(directory.resolve(DirectoryRealmExport.MANIFEST_FILE))) {
+                realms.put(readManifest(directory).getRealm(), directory);
+            }
+        }
+        return realms;
+    }
+
+    private RealmManifestRepresentation readManifest(Path directory) throws IOException {
+        try (InputStream is = Files.newInputStream(directory.resolve(DirectoryRealmExport.MANIFEST_FILE))) {
+            return JsonSerialization.readValue(is, RealmManifestRepresentation.class);
+        }
+    }
+
+    private void importRealm(KeycloakSessionFactory factory, Path directory, Strategy strategy) throws IOException {
+        RealmManifestRepresentation manifest = readManifest(directory);
+        if (checkpoint != null && checkpoint.isCompleted(manifest.getRealm())) {
+            logger.infof("Realm '%s' was imported by a previous run, skipped", manifest.getRealm());
+            return;
+        }
+        Metrics.Operation metrics = Metrics.start(Metrics.IMPORT, manifest.getRealm());
+        try {
+            long start = System.nanoTime();
+            BetterRealmRepresentation realmRep;
+            try (RealmFileReader reader = newReader(directory.resolve(manifest.getRealmFile()))) {
+                realmRep = reader.readRealm(scanShard(reader, manifest.getRealmFile()));
+            }
+            metrics.record("parse", start);
+
+            String realmId = getResumedRealmId(factory, manifest.getRealm());
+            UserImporter importer = ImportExportUtils::importUser;
+            UserImporter federatedImporter = RepresentationToModel::importFederatedUser;
+            if (realmId != null) {
+                logger.infof("Resuming the import of realm '%s'", manifest.getRealm());
+                importer = ImportExportUtils::importMissingUser;
+                federatedImporter = ImportExportUtils::importMissingFederatedUser;
+            } else {
+                start = System.nanoTime();
+                realmId = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                    RealmModel realm = ImportExportUtils.importRealm(session, null, realmRep, strategy, true);
+                    return realm == null ? null : realm.getId();
+                });
+                metrics.record("realm", start);
+                if (realmId == null) {
+                    return;
+                }
+                if (checkpoint != null) {
+                    checkpoint.realmImported(manifest.getRealm(), realmId);
+                }
+            }
+
+            start = System.nanoTime();
+            List<String> failedShards = new ArrayList<>();
+            importShards(factory, realmId, directory, manifest, manifest.getUserShards(), RealmFileReader::readUsers,
+                    importer, metrics, failedShards);
+            importShards(factory, realmId, directory, manifest, manifest.getFederatedUserShards(), RealmFileReader::readFederatedUsers,
+                    federatedImporter, null, failedShards);
+            metrics.record("users", start);
+
+            start = System.nanoTime();
+            KeycloakModelUtils.runJobInTransaction(factory, session ->
+                    new RealmManager(session).setupClientServiceAccountsAndAuthorizationOnImport(realmRep, false));
+            metrics.record("setup", start);
+
+            if (!failedShards.isEmpty()) {
+                throw new IllegalStateException("Failed to import shards " + failedShards + " of realm '" + manifest.getRealm() + "'");
+            }
+            if (checkpoint != null) {
+                checkpoint.realmCompleted(manifest.getRealm());
+            }
+            logger.infof("Realm '%s' imported from %d user shards", manifest.getRealm(), manifest.getUserShards().size());
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    /**
+     * Imports the shards concurrently, except those committed by a previous run, and adds the name of the shards
+     * which could not be imported to failedShards
+     *
+     * @param metrics the operation counting the imported users, or null to not count them
+     */
+    void importShards(KeycloakSessionFactory factory, String realmId, Path directory, RealmManifestRepresentation manifest,
+                              List<ShardRepresentation> allShards, ShardReader shardReader, UserImporter importer,
+                              Metrics.Operation metrics, List<String> failedShards) {
+        if (allShards == null) {
+            return;
+        }
+        List<ShardRepresentation> shards = allShards.stream()
+                .filter(shard -> checkpoint == null || !checkpoint.isShardImported(manifest.getRealm(), shard.getFile()))
+                .collect(Collectors.toList());
+        if (shards.isEmpty()) {
+            return;
+        }
+        Map<String, Future<Integer>> results = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(options.getImportWorkers(), shards.size())));
+        try {
+            for (ShardRepresentation shard : shards) {
+                results.put(shard.getFile(), executor.submit(() -> {
+                    int count = importShard(factory, realmId, directory.resolve(shard.getFile()), shardReader, importer, metrics);
+                    if (checkpoint != null) {
+                        checkpoint.shardImported(manifest.getRealm(), shard.getFile());
+                    }
+                    return count;
+                }));
+            }
+            executor.shutdown();
+
+            for (Map.Entry<String, Future<Integer>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException e) {
+                    logger.errorf(e.getCause(), "Failed to import shard %s of directory %s", result.getKey(), directory);
+                    failedShards.add(result.getKey());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing shards", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Imports a shard in a single transaction, retried as a whole after a technical failure
+     *
+     * @return the number of users imported
+     */
+    private int importShard(KeycloakSessionFactory factory, String realmId, Path file, ShardReader shardReader, UserImporter importer,
+                            Metrics.Operation metrics) throws IOException {
+        try (RealmFileReader reader = newReader(file)) {
+            RealmEntry entry = scanShard(reader, file.getFileName().toString());
+            for (int attempt = 0; ; attempt++) {
+                int[] count = new int[1];
+                try {
+                    Metrics.runJobInTransaction(factory, metrics, session -> {
+                        RealmModel realm = session.realms().getRealm(realmId);
+                        try {
+                            shardReader.read(reader, entry, userRep -> {
+                                importer.importUser(session, realm, userRep);
+                                count[0]++;
+                            });
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (ModelException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    if (attempt >= options.getShardRetries()) {
+                        throw e;
+                    }
+                    logger.warnf(e, "Failed to import shard %s, retrying", file.getFileName());
+                    continue;
+                }
+                if (metrics != null) {
+                    metrics.addUsers(count[0]);
+                }
+                return count[0];
+            }
+        }
+    }
+
+    /**
+     * @return the id of the realm if its structure was committed by a previous run which did not complete, and the
+     * realm still exists, null otherwise
+     */
+    private String getResumedRealmId(KeycloakSessionFactory factory, String realmName) {
+        String realmId = checkpoint == null ? null : checkpoint.getRealmId(realmName);
+        if (realmId == null) {
+            return null;
+        }
+        boolean exists = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> session.realms().getRealm(realmId) != null);
+        return exists ? realmId : null;
+    }
+
+    private void openCheckpoint() throws IOException {
+        if (options.getCheckpointFile() != null && checkpoint == null) {
+            checkpoint = ImportCheckpoint.open(Paths.get(options.getCheckpointFile()), rootDirectory.toPath());
+        }
+    }
+
+    private void deleteCheckpoint() {
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+    }
+
+    private RealmFileReader newReader(Path file) {
+        return new RealmFileReader(new FileSource(file, options.getMapThreshold(), options.getReadAheadBuffers()), new ObjectMapper());
+    }
+
+    private RealmEntry scanShard(RealmFileReader reader, String fileName) throws IOException {
+        List<RealmEntry> entries = reader.scan();
+        if (entries.size() != 1) {
+            throw new IllegalArgumentException("A single realm was expected in " + fileName + ", found " + entries.size());
+        }
+        return entries.get(0);
+    }
+
+    private void setupMasterAdminManagement(KeycloakSession session) {
+        // If master was imported, we may need to re-create realm management clients
+        session.realms().getRealmsStream().filter(r -> r.getMasterAdminClient() == null).forEach(realm -> {
+            logger.infof("Re-created management client in master realm for realm '%s'", realm.getName());
+            new RealmManager(session).setupMasterAdminManagement(realm);
+        });
+    }
+
+    @FunctionalInterface
+    interface ShardReader {
+        void read(RealmFileReader reader, RealmEntry entry, Consumer<UserRepresentation> consumer) throws IOException;
+    }
+}
@@ -0,0 +1,45 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.exportimport.ExportImportConfig;
+import org.keycloak.exportimport.ImportProvider;
+import org.keycloak.exportimport.ImportProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.File;
+
+public class DirectoryImportProviderFactory implements ImportProviderFactory {
+    private static final String ID = DirectoryExportProviderFactory.ID;
+
+    private ImportOptions options;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public ImportProvider create(KeycloakSession session) {
+        String dir = ExportImportConfig.getDir();
+        if (dir == null) {
+            throw new IllegalArgumentException("Property " + ExportImportConfig.DIR + " needs to be provided!");
+        }
+        return new DirectoryImportProvider(new File(dir), options);
+    }
+
+    @Override
+    public void init(Scope config) {
+        options = ImportOptions.fromConfig(config);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,313 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.cloudtrust.keycloak.export.dto.RealmManifestRepresentation;
+import io.cloudtrust.keycloak.export.dto.ShardRepresentation;
+import org.jboss.logging.Logger;
+import org.keycloak.exportimport.util.ExportOptions;
+import org.keycloak.exportimport.util.ExportUtils;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a realm to a directory: the realm without its users in realm.json, its users in users-00001.json,
+ * users-00002.json... and its federated users in federated-users-00001.json... Each shard holds a page of users
+ * in the format of a realm export, {"realm": "...", "users": [...]}, loaded in its own transaction, so that shards
+ * can be written, and later imported, independently and concurrently. The manifest listing the shards is written
+ * last.
+ * <p>
+ * Shards are ranges of usernames, and of ids for federated users, found with the keyset cursor of {@link UserQueries}
+ * by the calling thread before the shard is handed to a worker. Shards read in separate transactions therefore never
+ * overlap: a user created or removed during the export may or may not be exported, but the other users are exported
+ * exactly once.
+ */
+public class DirectoryRealmExport {
+    private static final Logger logger = Logger.getLogger(DirectoryRealmExport.class);
+
+    public static final String REALM_FILE = "realm.json";
+    public static final String MANIFEST_FILE = "manifest.json";
+    private static final String USERS_SHARD = "users-%05d.json";
+    private static final String FEDERATED_USERS_SHARD = "federated-users-%05d.json";
+    private static final String SHARDS_GLOB = "{users,federated-users}-*.json";
+    private static final Pattern UNSAFE_CHARACTERS = Pattern.compile("[^A-Za-z0-9._-]");
+
+    private static final ObjectMapper mapper = JsonSerialization.mapper.copy()
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final int usersPerShard;
+    private Metrics.Operation metrics;
+    private int workers = 1;
+
+    /**
+     * @param sessionFactory the session factory
+     * @param realmId        the realm to export
+     * @param usersPerShard  the number of users of each shard
+     */
+    public DirectoryRealmExport(KeycloakSessionFactory sessionFactory, String realmId, int usersPerShard) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.usersPerShard = usersPerShard;
+    }
+
+    /**
+     * @param metrics the operation recording the time spent in each phase of the export, can be null
+     */
+    public void setMetrics(Metrics.Operation metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param workers the number of threads writing shards at the same time
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Names the directory of a realm after the realm, without the characters which are not safe in a path. When some
+     * were replaced, or the name is made of dots only, a hash of the realm name is added so that the name stays unique.
+     *
+     * @param realmName the name of the realm
+     * @return a name which can be used as a single segment of a path
+     */
+    public static String directoryName(String realmName) {
+        String name = UNSAFE_CHARACTERS.matcher(realmName).replaceAll("_");
+        if (name.equals(realmName) && !name.matches("\\.*")) {
+            return name;
+        }
+        return name + "-" + Integer.toHexString(realmName.hashCode());
+    }
+
+    /**
+     * Writes the realm to the directory, replacing a previous export of the realm
+     *
+     * @param directory the directory of the realm, created if needed
+     * @return the manifest of the export
+     * @throws IOException if the files can't be written
+     */
+    public RealmManifestRepresentation write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        // Removed first, so that an interrupted export is never taken for a complete one
+        Files.deleteIfExists(directory.resolve(MANIFEST_FILE));
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(directory, SHARDS_GLOB)) {
+            for (Path shard : shards) {
+                Files.delete(shard);
+            }
+        }
+
+        try {
+            long start = System.nanoTime();
+            RealmManifestRepresentation manifest = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                RealmRepresentation realmRep = exportRealm(session, realm);
+                writeFile(directory.resolve(REALM_FILE), realmRep);
+                RealmManifestRepresentation m = new RealmManifestRepresentation();
+                m.setRealm(realm.getName());
+                m.setRealmFile(REALM_FILE);
+                return m;
+            });
+            record("skeleton", start);
+
+            start = System.nanoTime();
+            manifest.setUserShards(writeShards(directory, USERS_SHARD, "users", this::getUsernameAfter, this::writeUsers));
+            record("users", start);
+
+            start = System.nanoTime();
+            manifest.setFederatedUserShards(writeShards(directory, FEDERATED_USERS_SHARD, "federatedUsers",
+                    this::getFederatedUserIdAfter, this::writeFederatedUsers));
+            record("federatedUsers", start);
+
+            manifest.setCreatedTimestamp(System.currentTimeMillis());
+            Path tmp = directory.resolve(MANIFEST_FILE + ".tmp");
+            writeFile(tmp, manifest);
+            Files.move(tmp, directory.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.infof("Exported realm %s to %s with %d user shards", manifest.getRealm(), directory, manifest.getUserShards().size());
+            return manifest;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void record(String phase, long start) {
+        if (metrics != null) {
+            metrics.record(phase, start);
+        }
+    }
+
+    /**
+     * Writes the shards with several workers, each shard being the range of keys up to the key found at the number of
+     * users per shard after the previous shard, until a shard has no upper bound
+     *
+     * @return the non-empty shards, in order
+     */
+    private List<ShardRepresentation> writeShards(Path directory, String pattern, String field, KeyFinder keyFinder,
+                                                  PageWriter pageWriter) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        CompletionService<ShardRepresentation> results = new ExecutorCompletionService<>(executor);
+        Map<String, ShardRepresentation> shards = new TreeMap<>();
+        int nextShard = 0;
+        int inFlight = 0;
+        boolean more = true;
+        String after = null;
+        try {
+            while (true) {
+                while (more && inFlight < workers) {
+                    Path file = directory.resolve(String.format(pattern, ++nextShard));
+                    String shardAfter = after;
+                    String last = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                            keyFinder.find(session, session.realms().getRealm(realmId), shardAfter, usersPerShard));
+                    results.submit(() -> writeShard(file, field, shardAfter, last, pageWriter));
+                    inFlight++;
+                    more = last != null;
+                    after = last;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+                ShardRepresentation shard = results.take().get();
+                inFlight--;
+                // The last shard is empty when the number of users is a multiple of the size of the shards
+                if (shard.getUsers() > 0) {
+                    shards.put(shard.getFile(), shard);
+                } else {
+                    Files.delete(directory.resolve(shard.getFile()));
+                }
+            }
+            return new ArrayList<>(shards.values());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting users", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to export users", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ShardRepresentation writeShard(Path file, String field, String after, String last, PageWriter pageWriter) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file));
+                 JsonGenerator generator = mapper.getFactory().createGenerator(os)) {
+                generator.writeStartObject();
+                generator.writeStringField("realm", realm.getName());
+                generator.writeArrayFieldStart(field);
+                int size = pageWriter.write(session, realm, generator, after, last);
+                generator.writeEndArray();
+                generator.writeEndObject();
+                return new ShardRepresentation(file.getFileName().toString(), size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @return the realm without its users
+     */
+    RealmRepresentation exportRealm(KeycloakSession session, RealmModel realm) {
+        return ExportUtils.exportRealm(session, realm, false, true);
+    }
+
+    /**
+     * @param after    the username before the shard, excluded, or null for the first shard
+     * @param position the position of the username in the shard, from 1
+     * @return the username at the position, or null if there are fewer users
+     */
+    String getUsernameAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        return UserQueries.getUsernameAfter(session, realm, after, position);
+    }
+
+    /**
+     * @param after    the id before the shard, excluded, or null for the first shard
+     * @param position the position of the id in the shard, from 1
+     * @return the id of the federated user at the position, or null if there are fewer federated users
+     */
+    String getFederatedUserIdAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        return UserQueries.getFederatedUserIdAfter(session, realm, after, position);
+    }
+
+    /**
+     * @param after the username before the shard, excluded, or null for the first shard
+     * @param last  the last username of the shard, included, or null for the last shard
+     * @return the number of users written
+     */
+    int writeUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+        List<UserModel> users = UserQueries.getUsers(session, realm, after, last);
+        for (UserRepresentation userRep : ImportExportUtils.exportUsers(session, realm, users)) {
+            mapper.writeValue(generator, userRep);
+        }
+        if (metrics != null) {
+            metrics.addUsers(users.size());
+        }
+        return users.size();
+    }
+
+    /**
+     * @param after the id before the shard, excluded, or null for the first shard
+     * @param last  the last id of the shard, included, or null for the last shard
+     * @return the number of federated users written
+     */
+    int writeFederatedUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+        ExportOptions options = new ExportOptions(true, true, true, false);
+        List<String> userIds = UserQueries.getFederatedUserIds(session, realm, after, last);
+        for (String userId : userIds) {
+            mapper.writeValue(generator, ExportUtils.exportFederatedUser(session, realm, userId, options));
+        }
+        return userIds.size();
+    }
+
+    private static void writeFile(Path file, Object value) {
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file))) {
+            mapper.writeValue(os, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface KeyFinder {
+        String find(KeycloakSession session, RealmModel realm, String after, int position);
+    }
+
+    @FunctionalInterface
+    private interface PageWriter {
+        int write(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException;
+    }
+}
@@ -0,0 +1,119 @@
+package io.cloudtrust.keycloak.export;
+
+import io.cloudtrust.keycloak.export.dto.ExportJobRepresentation;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A realm export running in the background and written to a local file
+ */
+public class ExportJob {
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, FAILED
+    }
+
+    private final String id;
+    private final String realmId;
+    private final String realmName;
+    private final String format;
+    private final Path file;
+    private final long createdTimestamp = System.currentTimeMillis();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile Status status = Status.PENDING;
+    private volatile long startedTimestamp;
+    private volatile long finishedTimestamp;
+    private volatile long totalUsers = -1;
+    private volatile StreamingRealmExport export;
+    private volatile String error;
+
+    ExportJob(String id, String realmId, String realmName, String format, Path file) {
+        this.id = id;
+        this.realmId = realmId;
+        this.realmName = realmName;
+        this.format = format;
+        this.file = file;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getRealmName() {
+        return realmName;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getFinishedTimestamp() {
+        return finishedTimestamp;
+    }
+
+    AtomicLong getBytesWritten() {
+        return bytesWritten;
+    }
+
+    void start(StreamingRealmExport export, long totalUsers) {
+        this.export = export;
+        this.totalUsers = totalUsers;
+        this.startedTimestamp = System.currentTimeMillis();
+        this.status = Status.RUNNING;
+    }
+
+    void complete() {
+        this.finishedTimestamp = System.currentTimeMillis();
+        this.status = Status.COMPLETED;
+    }
+
+    void fail(String error) {
+        this.error = error;
+        this.finishedTimestamp = System.currentTimeMillis();
+        this.status = Status.FAILED;
+    }
+
+    public ExportJobRepresentation toRepresentation() {
+        ExportJobRepresentation rep = new ExportJobRepresentation();
+        rep.setId(id);
+        rep.setRealm(realmName);
+        rep.setFormat(format);
+        rep.setStatus(status.name());
+        rep.setCreatedTimestamp(createdTimestamp);
+        rep.setBytesWritten(bytesWritten.get());
+        rep.setError(error);
+        if (finishedTimestamp > 0) {
+            rep.setFinishedTimestamp(finishedTimestamp);
+        }
+        if (export == null) {
+            // Not started yet, or failed before starting
+            return rep;
+        }
+        rep.setStartedTimestamp(startedTimestamp);
+        rep.setUsersWritten((long) export.getExportedUsers());
+        if (totalUsers >= 0) {
+            rep.setTotalUsers(totalUsers);
+        }
+        if (status == Status.RUNNING) {
+            // Estimated from the rate at which the users have been read so far
+            long processed = export.getProcessedUsers();
+            if (processed > 0 && totalUsers >= processed) {
+                long elapsed = System.currentTimeMillis() - startedTimestamp;
+                rep.setEtaSeconds(elapsed * (totalUsers - processed) / processed / 1000);
+            }
+        }
+        return rep;
+    }
+}
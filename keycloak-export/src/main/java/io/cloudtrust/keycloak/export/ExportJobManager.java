@@ -0,0 +1,142 @@
+package io.cloudtrust.keycloak.export;
+
+import io.cloudtrust.keycloak.export.ExportJob.Status;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs realm exports in the background, each one written to a file of the jobs directory.
+ * <p>
+ * Jobs are kept in memory by the node which started them, and removed with their file once the retention delay
+ * has elapsed after their end. All the files are removed when Keycloak stops.
+ */
+public class ExportJobManager {
+    private static final Logger logger = Logger.getLogger(ExportJobManager.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final Path directory;
+    private final int usersPageSize;
+    private final int exportWorkers;
+    private final long retentionMillis;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService cleaner;
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param sessionFactory   the session factory
+     * @param directory        the directory where the exports are written
+     * @param workers          the number of exports running at the same time, other jobs wait for their turn
+     * @param retentionMinutes the number of minutes a finished job can be downloaded
+     * @param usersPageSize    the number of users loaded per transaction
+     * @param exportWorkers    the number of threads loading and serializing the users of each export
+     */
+    public ExportJobManager(KeycloakSessionFactory sessionFactory, Path directory, int workers, int retentionMinutes, int usersPageSize,
+                            int exportWorkers) {
+        this.sessionFactory = sessionFactory;
+        this.directory = directory;
+        this.usersPageSize = usersPageSize;
+        this.exportWorkers = exportWorkers;
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+        this.executor = Executors.newFixedThreadPool(workers);
+        this.cleaner = Executors.newSingleThreadScheduledExecutor();
+        this.cleaner.scheduleWithFixedDelay(this::removeExpiredJobs, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Starts the export of a realm with its users
+     *
+     * @param realm    the realm to export
+     * @param since    only export the users changed after this date, or null for a full export
+     * @param format   json, json.gz or cbor
+     * @param throttle the throttle limiting the users read by the export, or null
+     * @return the job, pending until a worker is available
+     * @throws IOException if the jobs directory can't be created
+     */
+    public ExportJob start(RealmModel realm, Long since, String format, ExportThrottle throttle) throws IOException {
+        Files.createDirectories(directory);
+        String id = UUID.randomUUID().toString();
+        ExportJob job = new ExportJob(id, realm.getId(), realm.getName(), format, directory.resolve(id + "." + format));
+        jobs.put(id, job);
+        executor.execute(() -> run(job, since, throttle));
+        logger.infof("Export job %s of realm '%s' submitted", id, realm.getName());
+        return job;
+    }
+
+    /**
+     * @return the job of the realm, or null if it does not exist or belongs to another realm
+     */
+    public ExportJob get(RealmModel realm, String id) {
+        ExportJob job = jobs.get(id);
+        return job != null && job.getRealmId().equals(realm.getId()) ? job : null;
+    }
+
+    /**
+     * Stops the running jobs and removes the files of all the jobs
+     */
+    public void close() {
+        cleaner.shutdownNow();
+        executor.shutdownNow();
+        jobs.values().forEach(this::deleteFile);
+        jobs.clear();
+    }
+
+    private void run(ExportJob job, Long since, ExportThrottle throttle) {
+        StreamingRealmExport export = new StreamingRealmExport(sessionFactory, job.getRealmId(), usersPageSize);
+        export.setSince(since);
+        export.setCbor("cbor".equals(job.getFormat()));
+        export.setWorkers(exportWorkers);
+        export.setThrottle(throttle);
+        Metrics.Operation metrics = Metrics.start(Metrics.EXPORT, job.getRealmName());
+        export.setMetrics(metrics);
+        StreamingOutput output = metrics.meter("json.gz".equals(job.getFormat()) ? CompressionUtils.gzip(export) : export);
+        try (OutputStream os = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(job.getFile()), BUFFER_SIZE), job.getBytesWritten())) {
+            long totalUsers = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                    (long) session.users().getUsersCount(session.realms().getRealm(job.getRealmId()), true));
+            job.start(export, totalUsers);
+            output.write(os);
+            job.complete();
+            logger.infof("Export job %s of realm '%s' completed: %d bytes written", job.getId(), job.getRealmName(), job.getBytesWritten().get());
+        } catch (IOException | RuntimeException e) {
+            logger.errorf(e, "Export job %s of realm '%s' failed", job.getId(), job.getRealmName());
+            job.fail(e.getMessage());
+            deleteFile(job);
+        }
+    }
+
+    private void removeExpiredJobs() {
+        long limit = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> {
+            boolean expired = (job.getStatus() == Status.COMPLETED || job.getStatus() == Status.FAILED) && job.getFinishedTimestamp() < limit;
+            if (expired) {
+                deleteFile(job);
+            }
+            return expired;
+        });
+    }
+
+    private void deleteFile(ExportJob job) {
+        try {
+            Files.deleteIfExists(job.getFile());
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete the file of export job %s", job.getId());
+        }
+    }
+}
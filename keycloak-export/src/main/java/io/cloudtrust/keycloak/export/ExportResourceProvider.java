@@ -1,10 +1,15 @@
 package io.cloudtrust.keycloak.export;
 
-import io.cloudtrust.keycloak.export.dto.BetterCredentialRepresentation;
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.export.dto.ExportJobRepresentation;
+import io.cloudtrust.keycloak.export.dto.ImportJobRepresentation;
+import io.cloudtrust.keycloak.export.dto.UsersPageRepresentation;
+import io.cloudtrust.keycloak.json.CborSerialization;
 import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.common.ClientConnection;
-import org.keycloak.credential.CredentialModel;
+import org.keycloak.exportimport.util.ExportOptions;
 import org.keycloak.exportimport.util.ExportUtils;
 import org.keycloak.jose.jws.JWSInput;
 import org.keycloak.jose.jws.JWSInputException;
@@ -14,9 +19,9 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ModelDuplicateException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.policy.PasswordPolicyNotMetException;
 import org.keycloak.representations.AccessToken;
-import org.keycloak.representations.idm.CredentialRepresentation;
 import org.keycloak.representations.idm.RealmRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
 import org.keycloak.services.ErrorResponse;
@@ -29,27 +34,52 @@ import org.keycloak.services.resources.admin.AdminAuth;
 import org.keycloak.services.resources.admin.AdminRoot;
 import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
 import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.util.JsonSerialization;
 
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.ForbiddenException;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
- * ExportResourceProvider exposes two endpoints to import and export realms
+ * ExportResourceProvider exposes the endpoints to import and export realms: the export of a realm, of all the realms,
+ * of the pages of users of a realm and the background export jobs, the import of a realm, directly or as a background
+ * job, and the metrics of these operations
  */
 public class ExportResourceProvider implements RealmResourceProvider {
 
@@ -57,13 +87,38 @@ public class ExportResourceProvider implements RealmResourceProvider {
 
     private KeycloakSession session;
 
+    private static final int MAX_USERS_PAGE_SIZE = 10000;
+    private static final String FORMAT_JSON = "json";
+    private static final String FORMAT_JSON_GZ = "json.gz";
+    private static final String FORMAT_CBOR = "cbor";
+    private static final String GZIP_MEDIA_TYPE = "application/gzip";
+
+    private final int usersPageSize;
+    private final int exportWorkers;
+    private final int realmWorkers;
+    private final java.nio.file.Path spoolDirectory;
+    private final ExportThrottle throttle;
+    private final RealmFingerprints fingerprints;
+    private final ExportJobManager jobManager;
+    private final ImportJobManager importJobManager;
+
     protected AppAuthManager authManager;
 
     @Context
     protected ClientConnection clientConnection;
 
-    public ExportResourceProvider(KeycloakSession session) {
+    public ExportResourceProvider(KeycloakSession session, int usersPageSize, int exportWorkers, int realmWorkers,
+                                  java.nio.file.Path spoolDirectory, ExportThrottle throttle, RealmFingerprints fingerprints,
+                                  ExportJobManager jobManager, ImportJobManager importJobManager) {
         this.session = session;
+        this.usersPageSize = usersPageSize;
+        this.exportWorkers = exportWorkers;
+        this.realmWorkers = realmWorkers;
+        this.spoolDirectory = spoolDirectory;
+        this.throttle = throttle;
+        this.fingerprints = fingerprints;
+        this.jobManager = jobManager;
+        this.importJobManager = importJobManager;
         this.authManager = new AppAuthManager();
 
     }
@@ -75,8 +130,350 @@ public class ExportResourceProvider implements RealmResourceProvider {
 
     @GET
     @Path("realm")
+    @Produces({MediaType.APPLICATION_JSON, GZIP_MEDIA_TYPE, CborSerialization.MEDIA_TYPE})
+    public Response exportRealm(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, @QueryParam("stream") boolean stream,
+                                @QueryParam("users") @DefaultValue("true") boolean includeUsers, @QueryParam("format") String format,
+                                @QueryParam("since") Long since, @QueryParam("ordered") @DefaultValue("true") boolean ordered,
+                                @QueryParam("throttled") boolean throttled) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        if (format != null && !FORMAT_JSON.equals(format) && !FORMAT_JSON_GZ.equals(format) && !FORMAT_CBOR.equals(format)) {
+            throw new BadRequestException("Unsupported format " + format);
+        }
+        if (!includeUsers && since != null) {
+            throw new BadRequestException("An incremental export requires the users");
+        }
+        boolean cbor = FORMAT_CBOR.equals(format) || (format == null && acceptsCbor(headers));
+        // Only full exports have a fingerprint, read without exporting the users
+        String fingerprint = includeUsers && since == null ? fingerprints.get(session, realm) : null;
+        if (RealmFingerprints.matches(headers.getHeaderString(HttpHeaders.IF_NONE_MATCH), fingerprint)) {
+            return Response.notModified(new EntityTag(fingerprint, true)).header(HttpHeaders.CACHE_CONTROL, cacheControl()).build();
+        }
+        Metrics.Operation metrics = Metrics.start(Metrics.EXPORT, realm.getName());
+        StreamingOutput output;
+        if (!includeUsers) {
+            long start = System.nanoTime();
+            RealmRepresentation realmRep = ExportUtils.exportRealm(session, realm, false, true);
+            metrics.record("skeleton", start);
+            output = cbor ? CborSerialization.output(realmRep) : jsonOutput(realmRep);
+        } else if (stream || since != null || throttled) {
+            // Throttled exports are always streamed, as their users are read page by page
+            StreamingRealmExport export = new StreamingRealmExport(session.getKeycloakSessionFactory(), realm.getId(), usersPageSize);
+            export.setSince(since);
+            export.setCbor(cbor);
+            export.setMetrics(metrics);
+            export.setWorkers(exportWorkers);
+            export.setOrdered(ordered);
+            if (throttled) {
+                export.setThrottle(throttle);
+            }
+            output = export;
+        } else {
+            long start = System.nanoTime();
+            RealmRepresentation realmRep = ExportUtils.exportRealm(session, realm, false, true);
+            metrics.record("skeleton", start);
+            start = System.nanoTime();
+            exportAllUsers(realmRep, realm);
+            metrics.record("users", start);
+            if (realmRep.getUsers() != null) {
+                metrics.addUsers(realmRep.getUsers().size());
+            }
+            output = cbor ? CborSerialization.output(realmRep) : jsonOutput(realmRep);
+        }
+
+        Response.ResponseBuilder response;
+        if (cbor) {
+            response = exportCbor(headers, realm, metrics, output, format != null);
+        } else if (FORMAT_JSON_GZ.equals(format)) {
+            // Compressed file download
+            response = Response.ok(metrics.meter(CompressionUtils.gzip(output)), GZIP_MEDIA_TYPE)
+                    .header("Content-Disposition", "attachment; filename=\"" + realm.getName() + "-realm.json.gz\"");
+        } else if (CompressionUtils.acceptsGzip(headers)) {
+            response = Response.ok(metrics.meter(CompressionUtils.gzip(output)), MediaType.APPLICATION_JSON_TYPE)
+                    .header(HttpHeaders.CONTENT_ENCODING, CompressionUtils.GZIP);
+        } else {
+            response = Response.ok(metrics.meter(output), MediaType.APPLICATION_JSON_TYPE);
+        }
+        if (fingerprint != null) {
+            response.tag(new EntityTag(fingerprint, true)).header(HttpHeaders.CACHE_CONTROL, cacheControl());
+        }
+        return response.build();
+    }
+
+    /**
+     * @return the Cache-Control header of the exports having a fingerprint, which clients revalidate for each use as
+     * the fingerprint is cheap to check
+     */
+    private String cacheControl() {
+        return "private, no-cache";
+    }
+
+    /**
+     * Returns the fingerprint of the full export of the realm as an ETag, without exporting it.
+     * The fingerprint is kept up to date from the changes of the realm, and compared to the If-None-Match header if any.
+     */
+    @HEAD
+    @Path("realm")
+    public Response getRealmFingerprint(@Context final HttpHeaders headers, @Context final UriInfo uriInfo) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        String fingerprint = fingerprints.get(session, realm);
+        EntityTag tag = new EntityTag(fingerprint, true);
+        if (RealmFingerprints.matches(headers.getHeaderString(HttpHeaders.IF_NONE_MATCH), fingerprint)) {
+            return Response.notModified(tag).header(HttpHeaders.CACHE_CONTROL, cacheControl()).build();
+        }
+        return Response.ok().tag(tag).header(HttpHeaders.CACHE_CONTROL, cacheControl()).build();
+    }
+
+    /**
+     * Exports all the realms, with their users, as a JSON array which can be imported by the ctSingleFile provider.
+     * Only available in the master realm.
+     *
+     * @param format    json (default) or json.gz
+     * @param throttled true to limit the users read per second with the throttle of the node
+     */
+    @GET
+    @Path("realms")
+    @Produces({MediaType.APPLICATION_JSON, GZIP_MEDIA_TYPE})
+    public Response exportRealms(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, @QueryParam("format") String format,
+                                 @QueryParam("throttled") boolean throttled) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        if (!Config.getAdminRealm().equals(realm.getName())) {
+            throw new NotFoundException();
+        }
+        if (format != null && !FORMAT_JSON.equals(format) && !FORMAT_JSON_GZ.equals(format)) {
+            throw new BadRequestException("Unsupported format " + format);
+        }
+        Map<String, String> realms = new LinkedHashMap<>();
+        session.realms().getRealmsStream().forEach(r -> realms.put(r.getId(), r.getName()));
+        MultiRealmExport output = new MultiRealmExport(session.getKeycloakSessionFactory(), realms, usersPageSize, exportWorkers,
+                realmWorkers, spoolDirectory);
+        if (throttled) {
+            output.setThrottle(throttle);
+        }
+
+        if (FORMAT_JSON_GZ.equals(format)) {
+            return Response.ok(CompressionUtils.gzip(output), GZIP_MEDIA_TYPE)
+                    .header("Content-Disposition", "attachment; filename=\"realms.json.gz\"")
+                    .build();
+        }
+        if (CompressionUtils.acceptsGzip(headers)) {
+            return Response.ok(CompressionUtils.gzip(output), MediaType.APPLICATION_JSON_TYPE)
+                    .header(HttpHeaders.CONTENT_ENCODING, CompressionUtils.GZIP)
+                    .build();
+        }
+        return Response.ok(output, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Returns the export and import metrics of this node in the Prometheus text format
+     */
+    @GET
+    @Path("metrics")
+    @Produces(Metrics.CONTENT_TYPE)
+    public Response getMetrics(@Context final HttpHeaders headers, @Context final UriInfo uriInfo) {
+        authenticateExport(headers, uriInfo);
+        return Response.ok(Metrics.scrape(), Metrics.CONTENT_TYPE).build();
+    }
+
+    /**
+     * Starts an export of the realm with its users in the background
+     *
+     * @param since     only export the users changed after this date, in milliseconds since epoch
+     * @param format    json (default), json.gz or cbor
+     * @param throttled true to limit the users read per second with the throttle of the node
+     */
+    @POST
+    @Path("realm/jobs")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startExportJob(@Context final HttpHeaders headers, @Context final UriInfo uriInfo,
+                                   @QueryParam("since") Long since, @QueryParam("format") @DefaultValue(FORMAT_JSON) String format,
+                                   @QueryParam("throttled") boolean throttled) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        if (!FORMAT_JSON.equals(format) && !FORMAT_JSON_GZ.equals(format) && !FORMAT_CBOR.equals(format)) {
+            throw new BadRequestException("Unsupported format " + format);
+        }
+        ExportJob job;
+        try {
+            job = jobManager.start(realm, since, format, throttled ? throttle : null);
+        } catch (IOException e) {
+            logger.error("Failed to start export job", e);
+            return ErrorResponse.error("Failed to start export job. See logs for details", Response.Status.INTERNAL_SERVER_ERROR);
+        }
+        URI location = uriInfo.getAbsolutePathBuilder().path(job.getId()).build();
+        return Response.accepted(job.toRepresentation()).location(location).build();
+    }
+
+    /**
+     * Returns the state and progress of an export job
+     */
+    @GET
+    @Path("realm/jobs/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    public RealmRepresentation exportRealm(@Context final HttpHeaders headers, @Context final UriInfo uriInfo) {
+    public ExportJobRepresentation getExportJob(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, @PathParam("id") String id) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        return getJob(realm, id).toRepresentation();
+    }
+
+    /**
+     * Downloads the file of a completed export job. A single byte range can be requested to resume a download.
+     */
+    @GET
+    @Path("realm/jobs/{id}/content")
+    @Produces({MediaType.APPLICATION_JSON, GZIP_MEDIA_TYPE, CborSerialization.MEDIA_TYPE})
+    public Response downloadExportJob(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, @PathParam("id") String id,
+                                      @HeaderParam("Range") String range) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        ExportJob job = getJob(realm, id);
+        if (job.getStatus() != ExportJob.Status.COMPLETED) {
+            throw new ClientErrorException("Export job is " + job.getStatus(), Response.Status.CONFLICT);
+        }
+
+        java.nio.file.Path file = job.getFile();
+        long length;
+        try {
+            length = Files.size(file);
+        } catch (IOException e) {
+            throw new NotFoundException("Export file not found", e);
+        }
+        ByteRange byteRange;
+        try {
+            byteRange = ByteRange.parse(range, length);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", "bytes */" + length)
+                    .build();
+        }
+
+        String mediaType = FORMAT_CBOR.equals(job.getFormat()) ? CborSerialization.MEDIA_TYPE
+                : FORMAT_JSON_GZ.equals(job.getFormat()) ? GZIP_MEDIA_TYPE : MediaType.APPLICATION_JSON;
+        long start = byteRange == null ? 0 : byteRange.getStart();
+        long count = byteRange == null ? length : byteRange.getLength();
+        StreamingOutput output = os -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(os);
+                long position = start;
+                long remaining = count;
+                while (remaining > 0) {
+                    long transferred = channel.transferTo(position, remaining, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+            }
+        };
+        Response.ResponseBuilder response = byteRange == null ? Response.ok(output, mediaType)
+                : Response.status(Response.Status.PARTIAL_CONTENT).entity(output).type(mediaType)
+                .header("Content-Range", byteRange.toContentRange(length));
+        return response.header("Accept-Ranges", "bytes")
+                .header(HttpHeaders.CONTENT_LENGTH, count)
+                .header("Content-Disposition", "attachment; filename=\"" + job.getRealmName() + "-realm." + job.getFormat() + "\"")
+                .build();
+    }
+
+    private ExportJob getJob(RealmModel realm, String id) {
+        ExportJob job = jobManager.get(realm, id);
+        if (job == null) {
+            throw new NotFoundException("Export job not found");
+        }
+        return job;
+    }
+
+    private Response.ResponseBuilder exportCbor(HttpHeaders headers, RealmModel realm, Metrics.Operation metrics, StreamingOutput output, boolean download) {
+        Response.ResponseBuilder response;
+        if (CompressionUtils.acceptsGzip(headers)) {
+            response = Response.ok(metrics.meter(CompressionUtils.gzip(output)), CborSerialization.MEDIA_TYPE)
+                    .header(HttpHeaders.CONTENT_ENCODING, CompressionUtils.GZIP);
+        } else {
+            response = Response.ok(metrics.meter(output), CborSerialization.MEDIA_TYPE);
+        }
+        if (download) {
+            response.header("Content-Disposition", "attachment; filename=\"" + realm.getName() + "-realm.cbor\"");
+        }
+        return response;
+    }
+
+    private static StreamingOutput jsonOutput(Object entity) {
+        return os -> JsonSerialization.mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET).writeValue(os, entity);
+    }
+
+    /**
+     * @return true if CBOR is preferred to JSON in the Accept header of the request
+     */
+    private static boolean acceptsCbor(HttpHeaders headers) {
+        for (MediaType mediaType : headers.getAcceptableMediaTypes()) {
+            if (mediaType.isWildcardSubtype() || MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType)) {
+                return false;
+            }
+            if (MediaType.valueOf(CborSerialization.MEDIA_TYPE).isCompatible(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Exports a page of users of the realm, with their credentials.
+     * The next page is retrieved by passing the returned cursor, until no cursor is returned.
+     *
+     * @param cursor    the cursor returned with the previous page, none for the first page
+     * @param max       the maximum number of users in the page
+     * @param throttled true to wait for the throttle of the node before reading the page
+     */
+    @GET
+    @Path("realm/users")
+    @Produces(MediaType.APPLICATION_JSON)
+    public UsersPageRepresentation exportUsers(@Context final HttpHeaders headers, @Context final UriInfo uriInfo,
+                                               @QueryParam("cursor") String cursor, @QueryParam("max") Integer max,
+                                               @QueryParam("throttled") boolean throttled) {
+        RealmModel realm = authenticateExport(headers, uriInfo);
+        String after = decodeCursor(cursor);
+        int pageSize = Math.min(max == null ? usersPageSize : max, MAX_USERS_PAGE_SIZE);
+        if (pageSize <= 0) {
+            throw new BadRequestException("Invalid max value");
+        }
+
+        Supplier<UsersPageRepresentation> query = () -> {
+            // Read one more user to know whether there is a next page
+            List<UserModel> users = UserQueries.getUsersAfter(session, realm, after, pageSize + 1);
+            UsersPageRepresentation page = new UsersPageRepresentation();
+            List<UserModel> pageUsers = users.subList(0, Math.min(pageSize, users.size()));
+            page.setUsers(ImportExportUtils.exportUsers(session, realm, pageUsers));
+            if (users.size() > pageSize) {
+                page.setNext(encodeCursor(pageUsers.get(pageSize - 1).getUsername()));
+            }
+            return page;
+        };
+        return throttled ? throttle.run(pageSize, null, query) : query.get();
+    }
+
+    /**
+     * @return the cursor of the page following the given username, the usernames being unique in a realm
+     */
+    private static String encodeCursor(String lastUsername) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastUsername.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the last username of the previous page, or null for the first page
+     */
+    private static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor", e);
+        }
+    }
+
+    /**
+     * Checks that the caller is an admin of the master realm allowed to manage the realm of the request
+     *
+     * @return the realm of the request
+     */
+    private RealmModel authenticateExport(HttpHeaders headers, UriInfo uriInfo) {
         //retrieving the realm should be done before authentication
         // authentication overrides the value with master inside the context
         // this is done this way to avoid changing the copied code below (authenticateRealmAdminRequest)
@@ -88,49 +485,42 @@ public class ExportResourceProvider implements RealmResourceProvider {
         if (roleModel != null && adminAuth.getUser().hasRole(roleModel)
                 && adminAuth.getRealm().equals(realmManager.getKeycloakAdminstrationRealm())
                 && realmAuth.realm().canManageRealm()) {
-            RealmRepresentation realmRep = ExportUtils.exportRealm(session, realm, true, true);
-            //correct users
-            if (realmRep.getUsers() != null) {
-                setCorrectCredentials(realmRep.getUsers(), realm);
-            }
-            return realmRep;
+            return realm;
         } else {
             throw new ForbiddenException();
         }
     }
 
     /**
-     * This method rewrites the credential list for the users, including the Id (which is missing by default).
-     * Unfortunately, due to the limitations in the keycloak API, there is no way to unit test this.
+     * Adds the users and federated users of the realm to its representation, as a full export by ExportUtils does.
+     * The users are read with a single query, and exported by pages whose credentials are loaded at once, including
+     * their Id (which is missing from the export of ExportUtils).
      *
-     * @param users The user representations to correct
-     * @param realm the realm being exported
-     */
-    private void setCorrectCredentials(List<UserRepresentation> users, RealmModel realm) {
-        Map<String, UserRepresentation> userRepMap = new HashMap<>(users.size());
-        users.stream().collect(Collectors.toMap(UserRepresentation::getId, u -> u));
-
-        session.users().getUsersStream(realm, true).forEach(user -> {
-            UserRepresentation userRep = userRepMap.get(user.getId());
-            if (userRep != null) {
-                // Credentials
-                List<CredentialRepresentation> credReps = session.userCredentialManager().getStoredCredentialsStream(realm, user)
-                        .map(this::exportCredential)
-                        .collect(Collectors.toList());
-                userRep.setCredentials(credReps);
+     * @param realmRep the representation of the realm, without its users
+     * @param realm    the realm being exported
+     */
+    private void exportAllUsers(RealmRepresentation realmRep, RealmModel realm) {
+        List<UserRepresentation> users = new ArrayList<>();
+        List<UserModel> page = new ArrayList<>(usersPageSize);
+        Iterator<UserModel> it = session.users().getUsersStream(realm, true).iterator();
+        while (it.hasNext()) {
+            page.add(it.next());
+            if (page.size() == usersPageSize || !it.hasNext()) {
+                users.addAll(ImportExportUtils.exportUsers(session, realm, page));
+                page.clear();
             }
-        });
-    }
+        }
+        if (!users.isEmpty()) {
+            realmRep.setUsers(users);
+        }
 
-    private BetterCredentialRepresentation exportCredential(CredentialModel userCred) {
-        BetterCredentialRepresentation credRep = new BetterCredentialRepresentation();
-        credRep.setId(userCred.getId());
-        credRep.setType(userCred.getType());
-        credRep.setCreatedDate(userCred.getCreatedDate());
-        credRep.setCredentialData(userCred.getCredentialData());
-        credRep.setSecretData(userCred.getSecretData());
-        credRep.setUserLabel(userCred.getUserLabel());
-        return credRep;
+        ExportOptions options = new ExportOptions(true, true, true, false);
+        List<UserRepresentation> federatedUsers = session.userFederatedStorage().getStoredUsersStream(realm, 0, -1)
+                .map(userId -> ExportUtils.exportFederatedUser(session, realm, userId, options))
+                .collect(Collectors.toList());
+        if (!federatedUsers.isEmpty()) {
+            realmRep.setFederatedUsers(federatedUsers);
+        }
     }
 
     @Override
@@ -188,7 +578,12 @@ public class ExportResourceProvider implements RealmResourceProvider {
             AdminAuth auth = authenticateRealmAdminRequest(headers, uriInfo);
             AdminPermissions.realms(session, auth).requireCreateRealm();
 
+            Metrics.Operation metrics = Metrics.start(Metrics.IMPORT, rep.getRealm());
+            long start = System.nanoTime();
             RealmModel realm = ImportExportUtils.importRealm(session, keycloak, rep, null, false);
+            metrics.record("realm", start);
+            metrics.addUsers(rep.getUsers() == null ? 0 : rep.getUsers().size());
+            metrics.finish();
             grantPermissionsToRealmCreator(auth, realm);
 
             URI location = AdminRoot.realmsUrl(session.getContext().getUri()).path(realm.getName()).build();
@@ -205,6 +600,65 @@ public class ExportResourceProvider implements RealmResourceProvider {
         }
     }
 
+    /**
+     * Imports a realm exported in CBOR
+     */
+    @POST
+    @Path("realm")
+    @Consumes(CborSerialization.MEDIA_TYPE)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importCborRealm(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, @Context KeycloakApplication keycloak, InputStream body) {
+        BetterRealmRepresentation rep;
+        try {
+            rep = CborSerialization.mapper.readValue(body, BetterRealmRepresentation.class);
+        } catch (IOException e) {
+            throw new BadRequestException("Invalid CBOR content", e);
+        }
+        return importRealm(headers, uriInfo, keycloak, rep);
+    }
+
+    /**
+     * Uploads a realm then imports it in the background, its users being committed in batches.
+     * The body is written to disk as it is received, and can be JSON, CBOR or a gzip compressed file.
+     */
+    @POST
+    @Path("realm/imports")
+    @Consumes({MediaType.APPLICATION_JSON, CborSerialization.MEDIA_TYPE, GZIP_MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startImportJob(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, InputStream body) {
+        AdminAuth auth = authenticateRealmAdminRequest(headers, uriInfo);
+        AdminPermissions.realms(session, auth).requireCreateRealm();
+
+        ImportJob job;
+        try {
+            job = importJobManager.start(body, auth.getRealm().getId(), auth.getUser().getId(), auth.hasRealmRole(AdminRoles.ADMIN));
+        } catch (IllegalArgumentException e) {
+            return ErrorResponse.error(e.getMessage(), Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        } catch (IOException e) {
+            logger.error("Failed to upload the realm", e);
+            return ErrorResponse.error("Failed to upload the realm. See logs for details", Response.Status.INTERNAL_SERVER_ERROR);
+        }
+        URI location = uriInfo.getAbsolutePathBuilder().path(job.getId()).build();
+        return Response.accepted(job.toRepresentation()).location(location).build();
+    }
+
+    /**
+     * Returns the state and progress of an import job, with the users which could not be imported
+     */
+    @GET
+    @Path("realm/imports/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ImportJobRepresentation getImportJob(@Context final HttpHeaders headers, @Context final UriInfo uriInfo, @PathParam("id") String id) {
+        AdminAuth auth = authenticateRealmAdminRequest(headers, uriInfo);
+        AdminPermissions.realms(session, auth).requireCreateRealm();
+
+        ImportJob job = importJobManager.get(auth.getUser().getId(), id);
+        if (job == null) {
+            throw new NotFoundException("Import job not found");
+        }
+        return job.toRepresentation();
+    }
+
     private void grantPermissionsToRealmCreator(AdminAuth auth, RealmModel realm) {
         if (auth.hasRealmRole(AdminRoles.ADMIN)) {
             return;
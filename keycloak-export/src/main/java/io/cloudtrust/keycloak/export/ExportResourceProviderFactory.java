@@ -23,6 +23,9 @@ import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * @author <a href="mailto:sthorger@redhat.com">Stian Thorgersen</a>
  */
@@ -30,6 +33,25 @@ public class ExportResourceProviderFactory implements RealmResourceProviderFacto
 
     public static final String ID = "export";
 
+    private static final int DEFAULT_USERS_PAGE_SIZE = 1000;
+    private static final int DEFAULT_IMPORT_USERS_PER_TRANSACTION = 1000;
+    private static final int DEFAULT_THROTTLE_USERS_PER_SECOND = 1000;
+    private static final int DEFAULT_FINGERPRINT_MAX_AGE_SECONDS = 3600;
+    private static final int DEFAULT_IMPORT_MAX_UPLOAD_MB = 10240;
+
+    private int usersPageSize;
+    private int exportWorkers;
+    private int realmWorkers;
+    private Path jobsDirectory;
+    private int jobWorkers;
+    private int jobRetentionMinutes;
+    private long importMaxUploadBytes;
+    private ImportOptions importOptions;
+    private ExportThrottle throttle;
+    private RealmFingerprints fingerprints;
+    private ExportJobManager jobManager;
+    private ImportJobManager importJobManager;
+
     @Override
     public String getId() {
         return ID;
@@ -37,21 +59,48 @@ public class ExportResourceProviderFactory implements RealmResourceProviderFacto
 
     @Override
     public RealmResourceProvider create(KeycloakSession session) {
-        return new ExportResourceProvider(session);
+        return new ExportResourceProvider(session, usersPageSize, exportWorkers, realmWorkers, jobsDirectory, throttle, fingerprints, jobManager, importJobManager);
+    }
+
+    /**
+     * @return the fingerprints of the realms, also notified of the events of the realms by
+     * {@link FingerprintEventListenerProviderFactory}
+     */
+    public RealmFingerprints getFingerprints() {
+        return fingerprints;
     }
 
     @Override
     public void init(Scope config) {
-        // Nothing to do
+        usersPageSize = config.getInt("usersPageSize", DEFAULT_USERS_PAGE_SIZE);
+        exportWorkers = config.getInt("exportWorkers", 1);
+        realmWorkers = config.getInt("realmWorkers", 1);
+        throttle = new ExportThrottle(config.getInt("throttleUsersPerSecond", DEFAULT_THROTTLE_USERS_PER_SECOND),
+                config.getInt("throttleMaxConcurrentQueries", 1));
+        fingerprints = new RealmFingerprints(config.getInt("fingerprintMaxAgeSeconds", DEFAULT_FINGERPRINT_MAX_AGE_SECONDS));
+        jobsDirectory = Paths.get(config.get("jobsDirectory", Paths.get(System.getProperty("java.io.tmpdir"), "keycloak-export-jobs").toString()));
+        jobWorkers = config.getInt("jobWorkers", 1);
+        jobRetentionMinutes = config.getInt("jobRetentionMinutes", 60);
+        importMaxUploadBytes = config.getLong("importMaxUploadMb", (long) DEFAULT_IMPORT_MAX_UPLOAD_MB) * 1024 * 1024;
+        importOptions = new ImportOptions();
+        importOptions.setUsersPerTransaction(config.getInt("importUsersPerTransaction", DEFAULT_IMPORT_USERS_PER_TRANSACTION));
+        importOptions.setImportWorkers(config.getInt("importWorkers", 1));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Nothing to do
+        factory.register(fingerprints);
+        jobManager = new ExportJobManager(factory, jobsDirectory, jobWorkers, jobRetentionMinutes, usersPageSize, exportWorkers);
+        importJobManager = new ImportJobManager(factory, jobsDirectory, jobWorkers, jobRetentionMinutes, importMaxUploadBytes, importOptions);
     }
 
     @Override
     public void close() {
-        // Nothing to close
+        if (jobManager != null) {
+            jobManager.close();
+        }
+        if (importJobManager != null) {
+            importJobManager.close();
+        }
     }
 }
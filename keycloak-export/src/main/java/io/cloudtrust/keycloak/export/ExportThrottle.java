@@ -0,0 +1,82 @@
+package io.cloudtrust.keycloak.export;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the database load of the throttled exports of this node, shared by all of them: the number of users read
+ * per second, with a token bucket holding up to one second of users, and the number of pages of users read at the
+ * same time.
+ * <p>
+ * A page takes as many tokens as the users it may hold before being read. When the bucket is empty, the page waits
+ * until enough tokens are added back, so that a burst of pages is spread over time rather than rejected. The time
+ * spent waiting is recorded as the throttle phase of the export and in the throttle metrics of the node.
+ */
+public class ExportThrottle {
+    private final double usersPerSecond;
+    private final Semaphore queries;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param usersPerSecond       the number of users read per second, or 0 for no limit
+     * @param maxConcurrentQueries the number of pages read at the same time, or 0 for no limit
+     */
+    public ExportThrottle(double usersPerSecond, int maxConcurrentQueries) {
+        this.usersPerSecond = usersPerSecond;
+        this.queries = maxConcurrentQueries > 0 ? new Semaphore(maxConcurrentQueries, true) : null;
+        this.tokens = usersPerSecond;
+    }
+
+    /**
+     * Waits for the throttle, then runs a query
+     *
+     * @param users   the maximum number of users read by the query
+     * @param metrics the operation recording the time spent waiting, can be null
+     * @param query   the query
+     * @return the result of the query
+     */
+    public <T> T run(int users, Metrics.Operation metrics, Supplier<T> query) {
+        long start = System.nanoTime();
+        try {
+            long waitNanos = reserve(users);
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            if (queries != null) {
+                queries.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the export throttle", e);
+        }
+        try {
+            Metrics.recordThrottle(users, System.nanoTime() - start);
+            if (metrics != null) {
+                metrics.record("throttle", start);
+            }
+            return query.get();
+        } finally {
+            if (queries != null) {
+                queries.release();
+            }
+        }
+    }
+
+    /**
+     * Takes tokens from the bucket, possibly more than it holds
+     *
+     * @return the time to wait until the tokens taken are available
+     */
+    private synchronized long reserve(int users) {
+        if (usersPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(usersPerSecond, tokens + (now - lastRefillNanos) * usersPerSecond / 1e9);
+        lastRefillNanos = now;
+        tokens -= users;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / usersPerSecond);
+    }
+}
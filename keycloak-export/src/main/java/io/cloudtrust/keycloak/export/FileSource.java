@@ -0,0 +1,204 @@
+package io.cloudtrust.keycloak.export;
+
+import io.cloudtrust.keycloak.json.RealmFileReader.StreamSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads an import file through a FileChannel.
+ * <p>
+ * Files smaller than the mapping threshold are read with a large direct buffer, bigger files are memory-mapped by
+ * segments. Uncompressed files are opened directly at the requested offset. Compressed files are decompressed once,
+ * in a single sequential pass, to a temporary file which is then opened at the requested offsets the same way, and
+ * removed when the source is closed. With read-ahead buffers, the file is read by a separate thread while the content
+ * is parsed.
+ */
+public class FileSource implements StreamSource {
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final Path path;
+    private final long mapThreshold;
+    private final int readAheadBuffers;
+    // The file read at the requested offsets: the file itself, or its decompressed copy
+    private Path content;
+
+    /**
+     * @param path             the file to read
+     * @param mapThreshold     size in bytes from which the file is memory-mapped, or 0 to never map it
+     * @param readAheadBuffers number of 1 MB buffers filled in advance by a read-ahead thread, or 0 to read in the calling thread
+     */
+    public FileSource(Path path, long mapThreshold, int readAheadBuffers) {
+        this.path = path;
+        this.mapThreshold = mapThreshold;
+        this.readAheadBuffers = readAheadBuffers;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        return open(0);
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        // Offsets are positions in the decompressed content
+        return readAhead(openChannel(getContent(), offset));
+    }
+
+    /**
+     * Removes the decompressed copy of the file, if any
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (content != null && !content.equals(path)) {
+            Files.deleteIfExists(content);
+        }
+        content = null;
+    }
+
+    private synchronized Path getContent() throws IOException {
+        if (content == null) {
+            boolean gzip;
+            try (InputStream is = openChannel(path, 0)) {
+                gzip = CompressionUtils.isGzip(is);
+            }
+            // The content is always read through the decompression, which also rejects the unsupported compressions
+            try (InputStream is = CompressionUtils.decompress(openChannel(path, 0))) {
+                content = gzip ? copyToTempFile(is) : path;
+            }
+        }
+        return content;
+    }
+
+    private static Path copyToTempFile(InputStream is) throws IOException {
+        Path copy = Files.createTempFile("keycloak-import-", ".json");
+        try {
+            Files.copy(is, copy, StandardCopyOption.REPLACE_EXISTING);
+            return copy;
+        } catch (IOException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+    }
+
+    private InputStream readAhead(InputStream is) {
+        return readAheadBuffers > 0 ? new ReadAheadInputStream(is, BUFFER_SIZE, readAheadBuffers) : is;
+    }
+
+    private InputStream openChannel(Path file, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (mapThreshold > 0 && size >= mapThreshold) {
+                return new MappedInputStream(channel, offset, size);
+            }
+            channel.position(offset);
+            return new ChannelInputStream(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private abstract static class BufferInputStream extends InputStream {
+        protected final FileChannel channel;
+
+        BufferInputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return the buffer holding the next bytes of the file, or null at the end of the file
+         */
+        protected abstract ByteBuffer fill() throws IOException;
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer buffer = fill();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = fill();
+            if (buffer == null) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ChannelInputStream extends BufferInputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelInputStream(FileChannel channel) {
+            super(channel);
+            buffer.limit(0);
+        }
+
+        @Override
+        protected ByteBuffer fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return buffer;
+            }
+            buffer.clear();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            buffer.flip();
+            return read > 0 ? buffer : null;
+        }
+    }
+
+    private static class MappedInputStream extends BufferInputStream {
+        private final long size;
+        private long position;
+        private MappedByteBuffer segment;
+
+        MappedInputStream(FileChannel channel, long offset, long size) {
+            super(channel);
+            this.position = offset;
+            this.size = size;
+        }
+
+        @Override
+        protected ByteBuffer fill() throws IOException {
+            if (segment != null && segment.hasRemaining()) {
+                return segment;
+            }
+            if (position >= size) {
+                return null;
+            }
+            long length = Math.min(SEGMENT_SIZE, size - position);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            return segment;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Mapped segments are released by the garbage collector
+            segment = null;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+/**
+ * Notifies the fingerprints of the realms of the events of the realms listing this event listener, so that they see the
+ * changes of users made through the admin API and by the users themselves.
+ */
+public class FingerprintEventListenerProviderFactory implements EventListenerProviderFactory {
+    public static final String ID = "ct-export-fingerprints";
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        ExportResourceProviderFactory factory = (ExportResourceProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(RealmResourceProvider.class, ExportResourceProviderFactory.ID);
+        return factory.getFingerprints();
+    }
+
+    @Override
+    public void init(Scope config) {
+        // Nothing to do
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do
+    }
+}
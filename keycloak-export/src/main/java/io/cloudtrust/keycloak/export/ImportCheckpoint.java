@@ -0,0 +1,237 @@
+package io.cloudtrust.keycloak.export;
+
+import io.cloudtrust.keycloak.export.dto.ImportCheckpointRepresentation;
+import io.cloudtrust.keycloak.export.dto.RealmCheckpointRepresentation;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Records what an import has committed in a local file, so that an interrupted import can be resumed: the realms
+ * completed, and for the realm in progress, its id once its structure is committed and the number of users committed
+ * from the beginning of its users. The file is written again after each commit, through a temporary file so that it
+ * is never left truncated.
+ * <p>
+ * A checkpoint only applies to the file it was written for, recognized by its path, size and modification date. A
+ * directory written by the ctDirectory export provider is recognized by its path and the hash of its manifests, as
+ * the size and modification date of a directory do not follow its content.
+ */
+public class ImportCheckpoint {
+    private static final Logger logger = Logger.getLogger(ImportCheckpoint.class);
+
+    private final Path path;
+    private final ImportCheckpointRepresentation state;
+
+    private ImportCheckpoint(Path path, ImportCheckpointRepresentation state) {
+        this.path = path;
+        this.state = state;
+    }
+
+    /**
+     * Loads the checkpoint of an import, or starts a new one if the checkpoint file does not exist or was written
+     * for another file
+     *
+     * @param path         the checkpoint file
+     * @param importedFile the file or directory being imported
+     * @return the checkpoint
+     * @throws IOException if the checkpoint file can't be read
+     */
+    public static ImportCheckpoint open(Path path, Path importedFile) throws IOException {
+        String file = importedFile.toAbsolutePath().toString();
+        boolean directory = Files.isDirectory(importedFile);
+        long size = directory ? 0 : Files.size(importedFile);
+        long lastModified = directory ? 0 : Files.getLastModifiedTime(importedFile).toMillis();
+        String manifestsHash = directory ? hashManifests(importedFile) : null;
+        if (Files.exists(path)) {
+            try (InputStream is = Files.newInputStream(path)) {
+                ImportCheckpointRepresentation state = JsonSerialization.readValue(is, ImportCheckpointRepresentation.class);
+                if (file.equals(state.getFile()) && size == state.getFileSize() && lastModified == state.getFileLastModified()
+                        && Objects.equals(manifestsHash, state.getManifestsHash())) {
+                    logger.infof("Resuming the import of %s from checkpoint %s", file, path);
+                    return new ImportCheckpoint(path, state);
+                }
+            }
+            logger.warnf("Checkpoint %s was written for another file, the import of %s starts over", path, file);
+        }
+        ImportCheckpointRepresentation state = new ImportCheckpointRepresentation();
+        state.setFile(file);
+        state.setFileSize(size);
+        state.setFileLastModified(lastModified);
+        state.setManifestsHash(manifestsHash);
+        return new ImportCheckpoint(path, state);
+    }
+
+    /**
+     * @return the SHA-256 hash of the manifests of the realms of a directory, with the names of their sub-directories
+     */
+    private static String hashManifests(Path directory) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        List<Path> realms = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            stream.forEach(realms::add);
+        }
+        Collections.sort(realms);
+        for (Path realm : realms) {
+            Path manifest = realm.resolve(DirectoryRealmExport.MANIFEST_FILE);
+            if (Files.exists(manifest)) {
+                digest.update(realm.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(manifest));
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public synchronized boolean isCompleted(String realmName) {
+        RealmCheckpointRepresentation realm = state.getRealms().get(realmName);
+        return realm != null && realm.isCompleted();
+    }
+
+    /**
+     * @return the id of the realm if its structure was committed by a previous run, null otherwise
+     */
+    public synchronized String getRealmId(String realmName) {
+        RealmCheckpointRepresentation realm = state.getRealms().get(realmName);
+        return realm == null ? null : realm.getRealmId();
+    }
+
+    public synchronized long getUsers(String realmName) {
+        RealmCheckpointRepresentation realm = state.getRealms().get(realmName);
+        return realm == null ? 0 : realm.getUsers();
+    }
+
+    public synchronized long getFederatedUsers(String realmName) {
+        RealmCheckpointRepresentation realm = state.getRealms().get(realmName);
+        return realm == null ? 0 : realm.getFederatedUsers();
+    }
+
+    public synchronized boolean isShardImported(String realmName, String shard) {
+        RealmCheckpointRepresentation realm = state.getRealms().get(realmName);
+        return realm != null && realm.getShards().contains(shard);
+    }
+
+    /**
+     * Records that the structure of a realm is committed, forgetting any previous progress of the realm
+     */
+    public synchronized void realmImported(String realmName, String realmId) {
+        RealmCheckpointRepresentation realm = new RealmCheckpointRepresentation();
+        realm.setRealmId(realmId);
+        state.getRealms().put(realmName, realm);
+        save();
+    }
+
+    public synchronized void shardImported(String realmName, String shard) {
+        realm(realmName).getShards().add(shard);
+        save();
+    }
+
+    public synchronized void realmCompleted(String realmName) {
+        RealmCheckpointRepresentation realm = realm(realmName);
+        realm.setCompleted(true);
+        realm.getShards().clear();
+        save();
+    }
+
+    /**
+     * @return a listener recording the batches of users committed in a realm, after the users already committed
+     */
+    synchronized UserBatchImporter.BatchCommitListener trackUsers(String realmName) {
+        return new Tracker(realmName, getUsers(realmName), RealmCheckpointRepresentation::setUsers);
+    }
+
+    /**
+     * @return a listener recording the batches of federated users committed in a realm, after the federated users
+     * already committed
+     */
+    synchronized UserBatchImporter.BatchCommitListener trackFederatedUsers(String realmName) {
+        return new Tracker(realmName, getFederatedUsers(realmName), RealmCheckpointRepresentation::setFederatedUsers);
+    }
+
+    /**
+     * Removes the checkpoint file, once the whole import is completed
+     */
+    public synchronized void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete checkpoint %s", path);
+        }
+    }
+
+    private RealmCheckpointRepresentation realm(String realmName) {
+        return state.getRealms().computeIfAbsent(realmName, n -> new RealmCheckpointRepresentation());
+    }
+
+    private void save() {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                JsonSerialization.writeValueToStream(os, state);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write checkpoint " + path, e);
+        }
+    }
+
+    /**
+     * Advances the number of users committed as batches are committed. Batches may be committed in any order, the
+     * count only covers the batches committed from the beginning without gap.
+     */
+    private class Tracker implements UserBatchImporter.BatchCommitListener {
+        private final String realmName;
+        private final long base;
+        private final BiConsumer<RealmCheckpointRepresentation, Long> setter;
+        private final Map<Long, Integer> pending = new TreeMap<>();
+        private long committed;
+
+        Tracker(String realmName, long base, BiConsumer<RealmCheckpointRepresentation, Long> setter) {
+            this.realmName = realmName;
+            this.base = base;
+            this.setter = setter;
+        }
+
+        @Override
+        public void batchCommitted(long first, int size) {
+            synchronized (ImportCheckpoint.this) {
+                pending.put(first, size);
+                long before = committed;
+                Integer next;
+                while ((next = pending.remove(committed)) != null) {
+                    committed += next;
+                }
+                if (committed != before) {
+                    setter.accept(realm(realmName), base + committed);
+                    save();
+                }
+            }
+        }
+    }
+}
@@ -1,22 +1,32 @@
 package io.cloudtrust.keycloak.export;
 
+import io.cloudtrust.keycloak.export.dto.BetterCredentialRepresentation;
 import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.credential.CredentialModel;
 import org.keycloak.exportimport.Strategy;
+import org.keycloak.exportimport.util.ExportUtils;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RealmProvider;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.models.utils.RepresentationToModel;
+import org.keycloak.representations.idm.FederatedIdentityRepresentation;
+import org.keycloak.representations.idm.UserConsentRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
 import org.keycloak.services.managers.RealmManager;
 import org.keycloak.services.resources.KeycloakApplication;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.stream.Collectors;
 
 public class ImportExportUtils {
     private static final Logger logger = Logger.getLogger(ImportExportUtils.class);
@@ -24,6 +34,105 @@ public class ImportExportUtils {
     private ImportExportUtils() {
     }
 
+    /**
+     * Exports a single user the same way ExportUtils does for a full realm export, but with the credentials
+     * rewritten to include their Id (which is missing by default).
+     *
+     * @param session the session used to load the user's data
+     * @param realm   the realm of the user
+     * @param user    the user to export
+     * @return the user representation, with its credentials
+     */
+    public static UserRepresentation exportUser(KeycloakSession session, RealmModel realm, UserModel user) {
+        return exportUsers(session, realm, Collections.singletonList(user)).get(0);
+    }
+
+    /**
+     * Exports several users as {@link #exportUser(KeycloakSession, RealmModel, UserModel)} does, the credentials of
+     * all the users being loaded at once rather than with a query per user
+     *
+     * @param session the session used to load the users' data
+     * @param realm   the realm of the users
+     * @param users   the users to export
+     * @return the user representations, in the order of the users
+     */
+    public static List<UserRepresentation> exportUsers(KeycloakSession session, RealmModel realm, List<UserModel> users) {
+        Map<String, List<CredentialModel>> credentials = UserQueries.getStoredCredentials(session, realm, users);
+        return users.stream()
+                .map(user -> exportUser(session, realm, user, credentials.get(user.getId())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * This code has been copied from keycloak org.keycloak.exportimport.util.ExportUtils.exportUser, with the
+     * credentials given instead of being loaded for each user;
+     * at each upgrade check that it hasn't been modified
+     */
+    private static UserRepresentation exportUser(KeycloakSession session, RealmModel realm, UserModel user, List<CredentialModel> credentials) {
+        UserRepresentation userRep = ModelToRepresentation.toRepresentation(session, realm, user);
+
+        // Social links
+        List<FederatedIdentityRepresentation> socialLinkReps = session.users().getFederatedIdentitiesStream(realm, user)
+                .map(ExportUtils::exportSocialLink).collect(Collectors.toList());
+        if (!socialLinkReps.isEmpty()) {
+            userRep.setFederatedIdentities(socialLinkReps);
+        }
+
+        // Role mappings
+        List<String> realmRoleNames = new ArrayList<>();
+        Map<String, List<String>> clientRoleNames = new HashMap<>();
+        user.getRoleMappingsStream().forEach(role -> {
+            if (role.getContainer() instanceof RealmModel) {
+                realmRoleNames.add(role.getName());
+            } else {
+                String clientId = ((ClientModel) role.getContainer()).getClientId();
+                clientRoleNames.computeIfAbsent(clientId, c -> new ArrayList<>()).add(role.getName());
+            }
+        });
+        if (!realmRoleNames.isEmpty()) {
+            userRep.setRealmRoles(realmRoleNames);
+        }
+        if (!clientRoleNames.isEmpty()) {
+            userRep.setClientRoles(clientRoleNames);
+        }
+
+        // Credentials, with their id
+        userRep.setCredentials(credentials.stream().map(ImportExportUtils::exportCredential).collect(Collectors.toList()));
+        userRep.setFederationLink(user.getFederationLink());
+
+        // Grants
+        List<UserConsentRepresentation> consentReps = session.users().getConsentsStream(realm, user.getId())
+                .map(ModelToRepresentation::toRepresentation).collect(Collectors.toList());
+        if (!consentReps.isEmpty()) {
+            userRep.setClientConsents(consentReps);
+        }
+
+        // Not Before
+        userRep.setNotBefore(session.users().getNotBeforeOfUser(realm, user));
+
+        // Service account
+        if (user.getServiceAccountClientLink() != null) {
+            ClientModel client = realm.getClientById(user.getServiceAccountClientLink());
+            if (client != null) {
+                userRep.setServiceAccountClientId(client.getClientId());
+            }
+        }
+
+        userRep.setGroups(user.getGroupsStream().map(ModelToRepresentation::buildGroupPath).collect(Collectors.toList()));
+        return userRep;
+    }
+
+    public static BetterCredentialRepresentation exportCredential(CredentialModel userCred) {
+        BetterCredentialRepresentation credRep = new BetterCredentialRepresentation();
+        credRep.setId(userCred.getId());
+        credRep.setType(userCred.getType());
+        credRep.setCreatedDate(userCred.getCreatedDate());
+        credRep.setCredentialData(userCred.getCredentialData());
+        credRep.setSecretData(userCred.getSecretData());
+        credRep.setUserLabel(userCred.getUserLabel());
+        return credRep;
+    }
+
     public static RealmModel importRealm(KeycloakSession session, KeycloakApplication keycloak, BetterRealmRepresentation rep, Strategy strategy, boolean skipUserDependent) {
         String realmName = rep.getRealm();
         RealmProvider model = session.realms();
@@ -45,29 +154,101 @@ public class ImportExportUtils {
 
         RealmManager realmManager = new RealmManager(session);
 
-        // Cache required actions information and remove it from user representations..
-        // Original version from RepresentationToModel first convert it to an enum
-        // then get the name of the enum value. This fails for customized required actions
-        Map<UserRepresentation, List<String>> mapUserToRequiredActions = new HashMap<>();
-        if (rep.getUsers()!=null) {
-            for (UserRepresentation user : rep.getUsers()) {
-                if (user.getRequiredActions() != null) {
-                    mapUserToRequiredActions.put(user, user.getRequiredActions());
-                    user.setRequiredActions(Collections.emptyList());
+        List<UserRepresentation> users = rep.getUsers();
+        List<UserRepresentation> federatedUsers = rep.getFederatedUsers();
+        if (users == null && federatedUsers == null) {
+            return realmManager.importRealm(rep, skipUserDependent);
+        }
+
+        // Users are created by importUser rather than by the basic import, so that their required actions are set
+        // at creation instead of looking up each user again afterwards. As in the ctSingleFile import, the realm is
+        // imported without its users first, and user dependent settings are set up once the users exist.
+        rep.setUsers(null);
+        rep.setFederatedUsers(null);
+        try {
+            realm = realmManager.importRealm(rep, true);
+            if (users != null) {
+                for (UserRepresentation userRep : users) {
+                    importUser(session, realm, userRep);
                 }
             }
+            if (federatedUsers != null) {
+                for (UserRepresentation userRep : federatedUsers) {
+                    RepresentationToModel.importFederatedUser(session, realm, userRep);
+                }
+            }
+            if (!skipUserDependent) {
+                realmManager.setupClientServiceAccountsAndAuthorizationOnImport(rep, false);
+            }
+        } finally {
+            rep.setUsers(users);
+            rep.setFederatedUsers(federatedUsers);
+        }
+        return realm;
+    }
+
+    /**
+     * Imports a single user in an existing realm. Required actions are set after the creation of the user
+     * as RepresentationToModel does not support customized required actions.
+     *
+     * @param session the session used to create the user
+     * @param realm   the realm of the user
+     * @param userRep the user to import
+     * @return the created user
+     */
+    public static UserModel importUser(KeycloakSession session, RealmModel realm, UserRepresentation userRep) {
+        List<String> requiredActions = userRep.getRequiredActions();
+        userRep.setRequiredActions(Collections.emptyList());
+        try {
+            UserModel user = RepresentationToModel.createUser(session, realm, userRep);
+            if (requiredActions != null) {
+                requiredActions.forEach(user::addRequiredAction);
+            }
+            return user;
+        } finally {
+            // Keep the representation unchanged so that the import can be retried
+            userRep.setRequiredActions(requiredActions);
         }
+    }
 
-        // Basic import
-        realm = realmManager.importRealm(rep, skipUserDependent);
+    /**
+     * Imports a user unless a user with the same id already exists, used when resuming an import whose last batches
+     * may have been committed without being recorded
+     *
+     * @param session the session used to create the user
+     * @param realm   the realm of the user
+     * @param userRep the user to import
+     */
+    public static void importMissingUser(KeycloakSession session, RealmModel realm, UserRepresentation userRep) {
+        if (userRep.getId() != null && session.users().getUserById(realm, userRep.getId()) != null) {
+            return;
+        }
+        importUser(session, realm, userRep);
+    }
 
-        // Now set required actions
-        for (Entry<UserRepresentation, List<String>> entry : mapUserToRequiredActions.entrySet()) {
-            UserRepresentation userRep = entry.getKey();
-            UserModel user = session.userLocalStorage().getUserById(realm, userRep.getId());
-            entry.getValue().forEach(user::addRequiredAction);
+    /**
+     * Imports a federated user unless some of its data is already stored, used when resuming an import whose last
+     * batches may have been committed without being recorded. As a federated user is imported in a single
+     * transaction, any stored data means the whole user was committed.
+     *
+     * @param session the session used to store the user
+     * @param realm   the realm of the user
+     * @param userRep the federated user to import
+     */
+    public static void importMissingFederatedUser(KeycloakSession session, RealmModel realm, UserRepresentation userRep) {
+        if (userRep.getId() != null && hasFederatedData(session.userFederatedStorage(), realm, userRep.getId())) {
+            return;
         }
+        RepresentationToModel.importFederatedUser(session, realm, userRep);
+    }
 
-        return realm;
+    private static boolean hasFederatedData(UserFederatedStorageProvider storage, RealmModel realm, String userId) {
+        return !storage.getAttributes(realm, userId).isEmpty()
+                || storage.getRequiredActionsStream(realm, userId).findAny().isPresent()
+                || storage.getStoredCredentialsStream(realm, userId).findAny().isPresent()
+                || storage.getRoleMappingsStream(realm, userId).findAny().isPresent()
+                || storage.getGroupsStream(realm, userId).findAny().isPresent()
+                || storage.getFederatedIdentitiesStream(userId, realm).findAny().isPresent()
+                || storage.getConsentsStream(realm, userId).findAny().isPresent();
     }
 }
@@ -0,0 +1,183 @@
+package io.cloudtrust.keycloak.export;
+
+import io.cloudtrust.keycloak.export.UserBatchImporter.UserImportListener;
+import io.cloudtrust.keycloak.export.dto.ImportJobRepresentation;
+import io.cloudtrust.keycloak.export.dto.UserImportErrorRepresentation;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.ModelException;
+import org.keycloak.policy.PasswordPolicyNotMetException;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A realm import running in the background from an uploaded file.
+ * Users which can't be imported are reported one by one, the first {@link #MAX_REPORTED_ERRORS} with their error.
+ */
+public class ImportJob implements UserImportListener {
+    private static final Logger logger = Logger.getLogger(ImportJob.class);
+
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, FAILED
+    }
+
+    private final String id;
+    private final String creatorRealmId;
+    private final String creatorUserId;
+    private final boolean creatorAdmin;
+    private final Path file;
+    private final long createdTimestamp = System.currentTimeMillis();
+    private final AtomicLong usersImported = new AtomicLong();
+    private final AtomicLong usersFailed = new AtomicLong();
+    private final List<UserImportErrorRepresentation> userErrors = new ArrayList<>();
+    private volatile long uploadedBytes;
+    private volatile Status status = Status.PENDING;
+    private volatile String realmName;
+    private volatile String realmId;
+    private volatile long startedTimestamp;
+    private volatile long finishedTimestamp;
+    private volatile String error;
+
+    ImportJob(String id, String creatorRealmId, String creatorUserId, boolean creatorAdmin, Path file) {
+        this.id = id;
+        this.creatorRealmId = creatorRealmId;
+        this.creatorUserId = creatorUserId;
+        this.creatorAdmin = creatorAdmin;
+        this.file = file;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCreatorRealmId() {
+        return creatorRealmId;
+    }
+
+    public String getCreatorUserId() {
+        return creatorUserId;
+    }
+
+    /**
+     * @return true if the user who started the import is an admin, and therefore does not need to be granted the
+     * management roles of the imported realm
+     */
+    public boolean isCreatorAdmin() {
+        return creatorAdmin;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getRealmName() {
+        return realmName;
+    }
+
+    public long getFinishedTimestamp() {
+        return finishedTimestamp;
+    }
+
+    public long getUsersImported() {
+        return usersImported.get();
+    }
+
+    public long getUsersFailed() {
+        return usersFailed.get();
+    }
+
+    void setUploadedBytes(long uploadedBytes) {
+        this.uploadedBytes = uploadedBytes;
+    }
+
+    void start(String realmName) {
+        this.realmName = realmName;
+        this.startedTimestamp = System.currentTimeMillis();
+        this.status = Status.RUNNING;
+    }
+
+    /**
+     * Records the realm once its structure is committed, from which a failure leaves a partial realm
+     */
+    void realmCreated(String realmId) {
+        this.realmId = realmId;
+    }
+
+    void complete() {
+        this.finishedTimestamp = System.currentTimeMillis();
+        this.status = Status.COMPLETED;
+    }
+
+    void fail(String error) {
+        this.error = error;
+        this.finishedTimestamp = System.currentTimeMillis();
+        this.status = Status.FAILED;
+    }
+
+    @Override
+    public void usersImported(int count) {
+        usersImported.addAndGet(count);
+    }
+
+    @Override
+    public void userFailed(UserRepresentation userRep, ModelException e) {
+        UserImportErrorRepresentation userError = new UserImportErrorRepresentation();
+        userError.setId(userRep.getId());
+        userError.setUsername(userRep.getUsername());
+        if (e instanceof ModelDuplicateException) {
+            logger.errorf(e, "Conflict detected for user %s of realm '%s'", userRep.getUsername(), realmName);
+            userError.setType("CONFLICT");
+        } else if (e instanceof PasswordPolicyNotMetException) {
+            logger.errorf(e, "Password policy not met for user %s of realm '%s'", userRep.getUsername(), realmName);
+            userError.setType("PASSWORD_POLICY");
+        } else {
+            logger.errorf(e, "Failed to import user %s of realm '%s'", userRep.getUsername(), realmName);
+            userError.setType("ERROR");
+        }
+        userError.setMessage(e.getMessage());
+        usersFailed.incrementAndGet();
+        synchronized (userErrors) {
+            if (userErrors.size() < MAX_REPORTED_ERRORS) {
+                userErrors.add(userError);
+            }
+        }
+    }
+
+    public ImportJobRepresentation toRepresentation() {
+        ImportJobRepresentation rep = new ImportJobRepresentation();
+        rep.setId(id);
+        rep.setRealm(realmName);
+        if (realmId != null) {
+            rep.setRealmId(realmId);
+            rep.setRealmState(status == Status.COMPLETED ? "COMPLETE" : status == Status.FAILED ? "PARTIAL" : "IMPORTING");
+        }
+        rep.setStatus(status.name());
+        rep.setCreatedTimestamp(createdTimestamp);
+        rep.setUploadedBytes(uploadedBytes);
+        rep.setUsersImported(getUsersImported());
+        rep.setUsersFailed(getUsersFailed());
+        rep.setError(error);
+        if (startedTimestamp > 0) {
+            rep.setStartedTimestamp(startedTimestamp);
+        }
+        if (finishedTimestamp > 0) {
+            rep.setFinishedTimestamp(finishedTimestamp);
+        }
+        synchronized (userErrors) {
+            if (!userErrors.isEmpty()) {
+                rep.setUserErrors(new ArrayList<>(userErrors));
+            }
+        }
+        return rep;
+    }
+}
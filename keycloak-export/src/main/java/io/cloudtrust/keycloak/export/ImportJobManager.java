@@ -0,0 +1,244 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.export.ImportJob.Status;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.RepresentationToModel;
+import org.keycloak.services.managers.RealmManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports uploaded realms in the background. The upload is written to a file of the jobs directory, then the realm
+ * is imported from that file as by the ctSingleFile provider: the realm structure in its own transaction, followed
+ * by its users in batches.
+ * <p>
+ * Jobs are kept in memory by the node which started them, and removed once the retention delay has elapsed after
+ * their end. The uploaded file is removed as soon as the import ends. Uploads are limited in size, so that they can't
+ * fill the jobs directory.
+ * <p>
+ * A failure after the realm structure was committed leaves a partial realm, which is not removed: the status of the job
+ * reports it with its id, so that it can be inspected then removed before importing the realm again.
+ */
+public class ImportJobManager {
+    private static final Logger logger = Logger.getLogger(ImportJobManager.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final Path directory;
+    private final ImportOptions options;
+    private final long maxUploadBytes;
+    private final long retentionMillis;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService cleaner;
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param sessionFactory   the session factory
+     * @param directory        the directory where the uploads are written
+     * @param workers          the number of imports running at the same time, other jobs wait for their turn
+     * @param retentionMinutes the number of minutes the status of a finished job is kept
+     * @param maxUploadBytes   the maximum size of an upload, as received
+     * @param options          the batch options of the imports
+     */
+    public ImportJobManager(KeycloakSessionFactory sessionFactory, Path directory, int workers, int retentionMinutes, long maxUploadBytes,
+                            ImportOptions options) {
+        this.sessionFactory = sessionFactory;
+        this.directory = directory;
+        this.options = options;
+        this.maxUploadBytes = maxUploadBytes;
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+        this.executor = Executors.newFixedThreadPool(workers);
+        this.cleaner = Executors.newSingleThreadScheduledExecutor();
+        this.cleaner.scheduleWithFixedDelay(this::removeExpiredJobs, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Writes an upload to disk then starts its import
+     *
+     * @param body           the uploaded realm, in JSON or CBOR, possibly compressed with gzip
+     * @param creatorRealmId the realm of the user starting the import
+     * @param creatorUserId  the user starting the import, granted the management roles of the realm if not an admin
+     * @param creatorAdmin   true if the user is an admin
+     * @return the job, pending until a worker is available
+     * @throws IOException              if the upload can't be written
+     * @throws IllegalArgumentException if the upload exceeds the maximum size, nothing being kept from it
+     */
+    public ImportJob start(InputStream body, String creatorRealmId, String creatorUserId, boolean creatorAdmin) throws IOException {
+        Files.createDirectories(directory);
+        String id = UUID.randomUUID().toString();
+        ImportJob job = new ImportJob(id, creatorRealmId, creatorUserId, creatorAdmin, directory.resolve(id + ".upload"));
+        try {
+            job.setUploadedBytes(copy(body, job.getFile()));
+        } catch (IOException | RuntimeException e) {
+            deleteFile(job);
+            throw e;
+        }
+        jobs.put(id, job);
+        executor.execute(() -> run(job));
+        logger.infof("Import job %s submitted", id);
+        return job;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private long copy(InputStream body, Path file) throws IOException {
+        byte[] buffer = new byte[FileSource.BUFFER_SIZE];
+        long size = 0;
+        try (OutputStream os = Files.newOutputStream(file)) {
+            int read;
+            while ((read = body.read(buffer)) > 0) {
+                size += read;
+                if (size > maxUploadBytes) {
+                    throw new IllegalArgumentException("The upload exceeds the maximum size of " + maxUploadBytes + " bytes");
+                }
+                os.write(buffer, 0, read);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the job, or null if it does not exist or was started by another user
+     */
+    public ImportJob get(String userId, String id) {
+        ImportJob job = jobs.get(id);
+        return job != null && job.getCreatorUserId().equals(userId) ? job : null;
+    }
+
+    /**
+     * Stops the running jobs and removes their uploads
+     */
+    public void close() {
+        cleaner.shutdownNow();
+        executor.shutdownNow();
+        jobs.values().forEach(this::deleteFile);
+        jobs.clear();
+    }
+
+    private void run(ImportJob job) {
+        Metrics.Operation metrics = null;
+        RealmFileReader reader = null;
+        try {
+            long start = System.nanoTime();
+            reader = new RealmFileReader(new FileSource(job.getFile(), options.getMapThreshold(), options.getReadAheadBuffers()), new ObjectMapper());
+            List<RealmEntry> entries = reader.scan();
+            if (entries.size() != 1) {
+                throw new IllegalArgumentException("A single realm was expected, found " + entries.size());
+            }
+            RealmEntry entry = entries.get(0);
+            BetterRealmRepresentation realmRep = reader.readRealm(entry);
+            job.start(realmRep.getRealm());
+            metrics = Metrics.start(Metrics.IMPORT, realmRep.getRealm());
+            metrics.record("parse", start);
+
+            start = System.nanoTime();
+            String realmId = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                if (session.realms().getRealmByName(realmRep.getRealm()) != null) {
+                    throw new ModelDuplicateException("Realm '" + realmRep.getRealm() + "' already exists");
+                }
+                RealmModel realm = ImportExportUtils.importRealm(session, null, realmRep, null, true);
+                grantPermissionsToRealmCreator(session, job, realm);
+                return realm.getId();
+            });
+            job.realmCreated(realmId);
+            metrics.record("realm", start);
+
+            start = System.nanoTime();
+            try (UserBatchImporter users = newBatchImporter(realmId, job, ImportExportUtils::importUser, metrics)) {
+                reader.readUsers(entry, users::add);
+                users.finish();
+                metrics.addUsers(users.getImportedCount());
+            }
+            try (UserBatchImporter federatedUsers = newBatchImporter(realmId, job, RepresentationToModel::importFederatedUser, metrics)) {
+                reader.readFederatedUsers(entry, federatedUsers::add);
+                federatedUsers.finish();
+            }
+            metrics.record("users", start);
+
+            start = System.nanoTime();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+                    new RealmManager(session).setupClientServiceAccountsAndAuthorizationOnImport(realmRep, false));
+            metrics.record("setup", start);
+
+            job.complete();
+            logger.infof("Import job %s of realm '%s' completed: %d users imported, %d users failed", job.getId(), job.getRealmName(),
+                    job.getUsersImported(), job.getUsersFailed());
+        } catch (IOException | RuntimeException e) {
+            logger.errorf(e, "Import job %s of realm '%s' failed", job.getId(), job.getRealmName());
+            job.fail(e.getMessage());
+        } finally {
+            if (metrics != null) {
+                metrics.finish();
+            }
+            closeReader(job, reader);
+            deleteFile(job);
+        }
+    }
+
+    private void closeReader(ImportJob job, RealmFileReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to release the upload of import job %s", job.getId());
+        }
+    }
+
+    private UserBatchImporter newBatchImporter(String realmId, ImportJob job, UserBatchImporter.UserImporter importer, Metrics.Operation metrics) {
+        UserBatchImporter batchImporter = new UserBatchImporter(sessionFactory, realmId, options.getUsersPerTransaction(), options.getImportWorkers(), importer, job);
+        batchImporter.setMetrics(metrics);
+        return batchImporter;
+    }
+
+    private void grantPermissionsToRealmCreator(KeycloakSession session, ImportJob job, RealmModel realm) {
+        if (job.isCreatorAdmin()) {
+            return;
+        }
+
+        RealmModel creatorRealm = session.realms().getRealm(job.getCreatorRealmId());
+        UserModel creator = session.users().getUserById(creatorRealm, job.getCreatorUserId());
+        ClientModel realmAdminApp = realm.getMasterAdminClient();
+        for (String r : AdminRoles.ALL_REALM_ROLES) {
+            creator.grantRole(realmAdminApp.getRole(r));
+        }
+    }
+
+    private void removeExpiredJobs() {
+        long limit = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> (job.getStatus() == Status.COMPLETED || job.getStatus() == Status.FAILED) && job.getFinishedTimestamp() < limit);
+    }
+
+    private void deleteFile(ImportJob job) {
+        try {
+            Files.deleteIfExists(job.getFile());
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete the upload of import job %s", job.getId());
+        }
+    }
+}
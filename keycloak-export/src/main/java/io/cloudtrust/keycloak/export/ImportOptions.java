@@ -0,0 +1,118 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.Config.Scope;
+
+/**
+ * Options of the ctSingleFile and ctDirectory import providers, read from the configuration of the import SPI
+ */
+public class ImportOptions {
+    private int usersPerTransaction;
+    private int importWorkers = 1;
+    private int realmWorkers = 1;
+    private boolean mergeExisting;
+    private long mapThreshold = 1024L * 1024 * 1024;
+    private int readAheadBuffers;
+    private int shardRetries = 2;
+    private String checkpointFile;
+
+    public static ImportOptions fromConfig(Scope config) {
+        ImportOptions options = new ImportOptions();
+        options.setUsersPerTransaction(config.getInt("usersPerTransaction", 0));
+        options.setImportWorkers(config.getInt("importWorkers", 1));
+        options.setRealmWorkers(config.getInt("realmWorkers", 1));
+        options.setMergeExisting(config.getBoolean("mergeExisting", false));
+        options.setMapThreshold(config.getLong("mapThresholdMb", 1024L) * 1024 * 1024);
+        options.setReadAheadBuffers(config.getInt("readAheadBuffers", 0));
+        options.setShardRetries(config.getInt("shardRetries", 2));
+        options.setCheckpointFile(config.get("checkpointFile"));
+        return options;
+    }
+
+    /**
+     * @return number of users imported per transaction, or 0 to import everything in a single transaction
+     */
+    public int getUsersPerTransaction() {
+        return usersPerTransaction;
+    }
+
+    public void setUsersPerTransaction(int usersPerTransaction) {
+        this.usersPerTransaction = usersPerTransaction;
+    }
+
+    /**
+     * @return number of threads importing batches of users concurrently, when users are imported in batches
+     */
+    public int getImportWorkers() {
+        return importWorkers;
+    }
+
+    public void setImportWorkers(int importWorkers) {
+        this.importWorkers = importWorkers;
+    }
+
+    /**
+     * @return number of realms other than master imported concurrently, each in its own thread and transactions
+     */
+    public int getRealmWorkers() {
+        return realmWorkers;
+    }
+
+    public void setRealmWorkers(int realmWorkers) {
+        this.realmWorkers = realmWorkers;
+    }
+
+    /**
+     * @return true to merge the file into the existing realms instead of removing them, with the OVERWRITE_EXISTING strategy
+     */
+    public boolean isMergeExisting() {
+        return mergeExisting;
+    }
+
+    public void setMergeExisting(boolean mergeExisting) {
+        this.mergeExisting = mergeExisting;
+    }
+
+    /**
+     * @return size in bytes from which the file is memory-mapped, or 0 to never map it
+     */
+    public long getMapThreshold() {
+        return mapThreshold;
+    }
+
+    public void setMapThreshold(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * @return number of 1 MB buffers filled in advance by a read-ahead thread, or 0 to disable read-ahead
+     */
+    public int getReadAheadBuffers() {
+        return readAheadBuffers;
+    }
+
+    public void setReadAheadBuffers(int readAheadBuffers) {
+        this.readAheadBuffers = readAheadBuffers;
+    }
+
+    /**
+     * @return number of times the import of a shard is retried after a failure, by the ctDirectory provider
+     */
+    public int getShardRetries() {
+        return shardRetries;
+    }
+
+    public void setShardRetries(int shardRetries) {
+        this.shardRetries = shardRetries;
+    }
+
+    /**
+     * @return path of the file recording the progress of the import so that it can be resumed, or null to disable it
+     */
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+}
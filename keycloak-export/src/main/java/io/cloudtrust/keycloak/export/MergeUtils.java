@@ -0,0 +1,1057 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.exportimport.util.ExportUtils;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.ProtocolMapperContainerModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RequiredActionProviderModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleMapperModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.ScopeContainerModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.models.utils.RepresentationToModel;
+import org.keycloak.representations.idm.AuthenticationExecutionExportRepresentation;
+import org.keycloak.representations.idm.AuthenticationFlowRepresentation;
+import org.keycloak.representations.idm.AuthenticatorConfigRepresentation;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.ClientScopeRepresentation;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.FederatedIdentityRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.IdentityProviderMapperRepresentation;
+import org.keycloak.representations.idm.IdentityProviderRepresentation;
+import org.keycloak.representations.idm.ProtocolMapperRepresentation;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.RequiredActionProviderRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.representations.idm.RolesRepresentation;
+import org.keycloak.representations.idm.ScopeMappingRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.managers.RealmManager;
+import org.keycloak.util.JsonSerialization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Merges an exported realm into an existing realm instead of removing and re-creating it.
+ * <p>
+ * Realm settings, clients, client scopes, roles, groups and users are matched by id (by name for roles, which are
+ * exported without container), clients, client scopes and groups without a match being looked up by clientId or by
+ * name under the same parent. Identity providers, authentication flows, authenticator configs and required actions
+ * are matched by alias. Only the ones which differ from the export are written, so that the cost of the import and
+ * the cache invalidations scale with the size of the differences rather than with the size of the realm.
+ * An entity is considered unchanged when every value of the export equals the value of the existing entity,
+ * values missing from the export being ignored.
+ * <p>
+ * Clients, client scopes, roles, groups, identity providers and their mappers, and required actions which are not in
+ * the export are removed, as are the composites, protocol mappers, scope mappings, default groups and default client
+ * scopes it does not list. Authentication flows and authenticator configs which are not in the export are kept, as
+ * they may still be bound, and logged as a warning. Components (user federation, keys...) are not merged: a warning is
+ * logged when they differ from the export.
+ * <p>
+ * Changed users are updated in place: their fields, attributes, required actions, credentials, role mappings, groups
+ * and identity provider links are aligned with the export, so that the other data of the user (sessions, consents,
+ * events) is kept.
+ */
+public class MergeUtils {
+    private static final Logger logger = Logger.getLogger(MergeUtils.class);
+
+    // Realm fields merged separately, or not merged at all
+    private static final List<String> REALM_COLLECTIONS = Arrays.asList("users", "federatedUsers",
+            BetterRealmRepresentation.USER_IDS, "clients", "roles", "groups", "clientScopes", "identityProviders",
+            "identityProviderMappers", "components", "authenticationFlows", "authenticatorConfig", "requiredActions",
+            "scopeMappings", "clientScopeMappings", "defaultRole", "defaultGroups");
+
+    // Number of user ids read at once when looking for removed users
+    private static final int USER_IDS_PAGE_SIZE = 1000;
+
+    // Fields of the user also returned as attributes
+    private static final List<String> USER_FIELDS = Arrays.asList(UserModel.USERNAME, UserModel.EMAIL,
+            UserModel.FIRST_NAME, UserModel.LAST_NAME);
+
+    private MergeUtils() {
+    }
+
+    /**
+     * Merges the realm settings, clients, client scopes, roles, groups, identity providers, authentication flows and
+     * required actions of an export into an existing realm
+     *
+     * @param session the session used to update the realm
+     * @param realm   the existing realm
+     * @param rep     the exported realm, without its users
+     * @return the clients which did not exist before the merge
+     */
+    public static List<ClientRepresentation> mergeRealm(KeycloakSession session, RealmModel realm, BetterRealmRepresentation rep) {
+        ObjectNode existing = JsonSerialization.mapper.valueToTree(ExportUtils.exportRealm(session, realm, false, true));
+        ObjectNode incoming = JsonSerialization.mapper.valueToTree(rep);
+
+        // Client scopes first, as clients refer to them
+        if (rep.getClientScopes() != null) {
+            rep.getClientScopes().forEach(scopeRep -> mergeClientScope(session, realm, scopeRep));
+        }
+        mergeDefaultClientScopes(realm, rep.getDefaultDefaultClientScopes(), true);
+        mergeDefaultClientScopes(realm, rep.getDefaultOptionalClientScopes(), false);
+        List<ClientRepresentation> createdClients = new ArrayList<>();
+        if (rep.getClients() != null) {
+            for (ClientRepresentation clientRep : rep.getClients()) {
+                if (mergeClient(session, realm, clientRep)) {
+                    createdClients.add(clientRep);
+                }
+            }
+            removeUnmatchedClients(realm, rep.getClients());
+        }
+        if (rep.getClientScopes() != null) {
+            removeUnmatchedClientScopes(realm, rep.getClientScopes());
+        }
+        mergeRoles(realm, rep.getRoles());
+        if (rep.getGroups() != null) {
+            rep.getGroups().forEach(groupRep -> mergeGroup(realm, null, groupRep));
+            removeUnmatchedGroups(realm, rep.getGroups());
+        }
+        mergeDefaultGroups(realm, rep.getDefaultGroups());
+        mergeScopeMappings(realm, rep);
+        // Flows before identity providers, which refer to their first broker login flow
+        mergeAuthenticationFlows(realm, rep, existing);
+        mergeIdentityProviders(session, realm, rep, existing);
+        mergeRequiredActions(realm, rep.getRequiredActions(), existing);
+        if (incoming.has("components") && !isUpToDate(incoming.get("components"), existing.get("components"))) {
+            logger.warnf("The components of realm '%s' (user federation, keys...) differ from the export and are not merged", realm.getName());
+        }
+
+        incoming.remove(REALM_COLLECTIONS);
+        if (!isUpToDate(incoming, existing)) {
+            RepresentationToModel.updateRealm(rep, realm, session);
+            logger.debugf("Settings of realm '%s' updated", realm.getName());
+        }
+        logger.infof("Realm '%s' merged, %d clients created", realm.getName(), createdClients.size());
+        return createdClients;
+    }
+
+    /**
+     * Sets up the service accounts and authorization settings of the clients created by {@link #mergeRealm}
+     *
+     * @param session        the session used to update the realm
+     * @param realmName      the name of the merged realm
+     * @param createdClients the clients created during the merge
+     */
+    public static void setupCreatedClients(KeycloakSession session, String realmName, List<ClientRepresentation> createdClients) {
+        if (createdClients.isEmpty()) {
+            return;
+        }
+        RealmRepresentation rep = new RealmRepresentation();
+        rep.setRealm(realmName);
+        rep.setClients(createdClients);
+        new RealmManager(session).setupClientServiceAccountsAndAuthorizationOnImport(rep, false);
+    }
+
+    /**
+     * Creates the user if it does not exist, or updates it in place if it differs from the exported user.
+     * An existing user with the same username but another id is considered as replaced and is removed.
+     *
+     * @param session the session used to update the user
+     * @param realm   the realm of the user
+     * @param userRep the exported user
+     */
+    public static void mergeUser(KeycloakSession session, RealmModel realm, UserRepresentation userRep) {
+        UserModel user = userRep.getId() == null ? null : session.users().getUserById(realm, userRep.getId());
+        if (userRep.getUsername() != null && (user == null || !userRep.getUsername().equals(user.getUsername()))) {
+            UserModel replaced = session.users().getUserByUsername(realm, userRep.getUsername());
+            if (replaced != null && (user == null || !replaced.getId().equals(user.getId()))) {
+                session.users().removeUser(realm, replaced);
+            }
+        }
+        if (user == null) {
+            ImportExportUtils.importUser(session, realm, userRep);
+            return;
+        }
+        JsonNode existing = JsonSerialization.mapper.valueToTree(ImportExportUtils.exportUser(session, realm, user));
+        if (!isUpToDate(JsonSerialization.mapper.valueToTree(userRep), existing)) {
+            updateUser(session, realm, user, userRep);
+        }
+    }
+
+    /**
+     * Aligns an existing user with the exported user. As for the comparison, values missing from the export are kept.
+     *
+     * @param session the session used to update the user
+     * @param realm   the realm of the user
+     * @param user    the existing user
+     * @param userRep the exported user
+     */
+    static void updateUser(KeycloakSession session, RealmModel realm, UserModel user, UserRepresentation userRep) {
+        if (userRep.getUsername() != null && !userRep.getUsername().equals(user.getUsername())) {
+            user.setUsername(userRep.getUsername());
+        }
+        if (userRep.getEmail() != null && !userRep.getEmail().equals(user.getEmail())) {
+            user.setEmail(userRep.getEmail());
+        }
+        if (userRep.isEmailVerified() != null && userRep.isEmailVerified() != user.isEmailVerified()) {
+            user.setEmailVerified(userRep.isEmailVerified());
+        }
+        if (userRep.getFirstName() != null && !userRep.getFirstName().equals(user.getFirstName())) {
+            user.setFirstName(userRep.getFirstName());
+        }
+        if (userRep.getLastName() != null && !userRep.getLastName().equals(user.getLastName())) {
+            user.setLastName(userRep.getLastName());
+        }
+        if (userRep.isEnabled() != null && userRep.isEnabled() != user.isEnabled()) {
+            user.setEnabled(userRep.isEnabled());
+        }
+        if (userRep.getFederationLink() != null && !userRep.getFederationLink().equals(user.getFederationLink())) {
+            user.setFederationLink(userRep.getFederationLink());
+        }
+        if (userRep.getNotBefore() != null) {
+            session.users().setNotBeforeForUser(realm, user, userRep.getNotBefore());
+        }
+        updateAttributes(user, userRep);
+        if (userRep.getRequiredActions() != null) {
+            Set<String> requiredActions = user.getRequiredActionsStream().collect(Collectors.toSet());
+            requiredActions.stream().filter(action -> !userRep.getRequiredActions().contains(action)).forEach(user::removeRequiredAction);
+            userRep.getRequiredActions().stream().filter(action -> !requiredActions.contains(action)).forEach(user::addRequiredAction);
+        }
+        updateCredentials(session, realm, user, userRep);
+        updateRoleMappings(realm, user, userRep);
+        updateGroups(realm, user, userRep);
+        updateFederatedIdentities(session, realm, user, userRep);
+        logger.debugf("User '%s' of realm '%s' updated", user.getUsername(), realm.getName());
+    }
+
+    static void updateAttributes(UserModel user, UserRepresentation userRep) {
+        if (userRep.getAttributes() == null) {
+            return;
+        }
+        Map<String, List<String>> attributes = user.getAttributes();
+        attributes.keySet().stream()
+                .filter(name -> !USER_FIELDS.contains(name) && !userRep.getAttributes().containsKey(name))
+                .collect(Collectors.toList())
+                .forEach(user::removeAttribute);
+        for (Map.Entry<String, List<String>> attribute : userRep.getAttributes().entrySet()) {
+            if (!attribute.getValue().equals(attributes.get(attribute.getKey()))) {
+                user.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the credentials missing from the export or different from it, then creates the missing ones with their
+     * exported id
+     */
+    static void updateCredentials(KeycloakSession session, RealmModel realm, UserModel user, UserRepresentation userRep) {
+        if (userRep.getCredentials() == null) {
+            return;
+        }
+        Map<String, CredentialRepresentation> credentialReps = new HashMap<>();
+        userRep.getCredentials().stream().filter(credRep -> credRep.getId() != null).forEach(credRep -> credentialReps.put(credRep.getId(), credRep));
+        List<CredentialModel> credentials = session.userCredentialManager().getStoredCredentialsStream(realm, user).collect(Collectors.toList());
+        for (CredentialModel credential : credentials) {
+            CredentialRepresentation credRep = credentialReps.get(credential.getId());
+            if (credRep == null || !isUpToDate(JsonSerialization.mapper.valueToTree(credRep),
+                    JsonSerialization.mapper.valueToTree(ImportExportUtils.exportCredential(credential)))) {
+                session.userCredentialManager().removeStoredCredential(realm, user, credential.getId());
+            }
+        }
+        // Credentials whose id still exists are skipped
+        RepresentationToModel.createCredentials(userRep, session, realm, user, false);
+    }
+
+    /**
+     * Grants the missing roles and removes the roles which are not exported. Realm roles are only aligned when the
+     * export lists them, and client roles the same way.
+     */
+    static void updateRoleMappings(RealmModel realm, UserModel user, UserRepresentation userRep) {
+        alignRoleMappings(realm, user, userRep.getRealmRoles(), userRep.getClientRoles());
+    }
+
+    /**
+     * Aligns the role mappings of a user or a group with the exported realm roles and client roles, each being ignored
+     * when null
+     */
+    private static void alignRoleMappings(RealmModel realm, RoleMapperModel mapper, List<String> realmRoles, Map<String, List<String>> clientRoles) {
+        if (realmRoles == null && clientRoles == null) {
+            return;
+        }
+        Map<String, RoleModel> roles = new HashMap<>();
+        if (realmRoles != null) {
+            realmRoles.stream().map(realm::getRole).filter(Objects::nonNull).forEach(role -> roles.put(role.getId(), role));
+        }
+        if (clientRoles != null) {
+            for (Map.Entry<String, List<String>> entry : clientRoles.entrySet()) {
+                ClientModel client = realm.getClientByClientId(entry.getKey());
+                if (client != null) {
+                    entry.getValue().stream().map(client::getRole).filter(Objects::nonNull).forEach(role -> roles.put(role.getId(), role));
+                }
+            }
+        }
+        Set<String> granted = new HashSet<>();
+        for (RoleModel role : mapper.getRoleMappingsStream().collect(Collectors.toList())) {
+            granted.add(role.getId());
+            boolean exported = role.isClientRole() ? clientRoles != null : realmRoles != null;
+            if (exported && !roles.containsKey(role.getId())) {
+                mapper.deleteRoleMapping(role);
+            }
+        }
+        roles.values().stream().filter(role -> !granted.contains(role.getId())).forEach(mapper::grantRole);
+    }
+
+    static void updateGroups(RealmModel realm, UserModel user, UserRepresentation userRep) {
+        if (userRep.getGroups() == null) {
+            return;
+        }
+        Map<String, GroupModel> groups = new HashMap<>();
+        userRep.getGroups().stream()
+                .map(path -> KeycloakModelUtils.findGroupByPath(realm, path))
+                .filter(Objects::nonNull)
+                .forEach(group -> groups.put(group.getId(), group));
+        Set<String> joined = new HashSet<>();
+        for (GroupModel group : user.getGroupsStream().collect(Collectors.toList())) {
+            joined.add(group.getId());
+            if (!groups.containsKey(group.getId())) {
+                user.leaveGroup(group);
+            }
+        }
+        groups.values().stream().filter(group -> !joined.contains(group.getId())).forEach(user::joinGroup);
+    }
+
+    static void updateFederatedIdentities(KeycloakSession session, RealmModel realm, UserModel user, UserRepresentation userRep) {
+        if (userRep.getFederatedIdentities() == null) {
+            return;
+        }
+        Map<String, FederatedIdentityRepresentation> identityReps = new HashMap<>();
+        userRep.getFederatedIdentities().forEach(identityRep -> identityReps.put(identityRep.getIdentityProvider(), identityRep));
+        Set<String> linked = new HashSet<>();
+        for (FederatedIdentityModel identity : session.users().getFederatedIdentitiesStream(realm, user).collect(Collectors.toList())) {
+            FederatedIdentityRepresentation identityRep = identityReps.get(identity.getIdentityProvider());
+            if (identityRep != null && Objects.equals(identityRep.getUserId(), identity.getUserId())
+                    && Objects.equals(identityRep.getUserName(), identity.getUserName())) {
+                linked.add(identity.getIdentityProvider());
+            } else {
+                session.users().removeFederatedIdentity(realm, user, identity.getIdentityProvider());
+            }
+        }
+        identityReps.values().stream()
+                .filter(identityRep -> !linked.contains(identityRep.getIdentityProvider()))
+                .forEach(identityRep -> session.users().addFederatedIdentity(realm, user,
+                        new FederatedIdentityModel(identityRep.getIdentityProvider(), identityRep.getUserId(), identityRep.getUserName())));
+    }
+
+    /**
+     * Removes a user, if it still exists
+     *
+     * @param session the session used to remove the user
+     * @param realm   the realm of the user
+     * @param userRep a representation holding the id of the user
+     */
+    public static void removeUser(KeycloakSession session, RealmModel realm, UserRepresentation userRep) {
+        UserModel user = session.users().getUserById(realm, userRep.getId());
+        if (user != null) {
+            session.users().removeUser(realm, user);
+        }
+    }
+
+    /**
+     * Lists the users of a realm which are not in the given ids, reading their ids by ranges of usernames in separate
+     * transactions
+     *
+     * @param factory  the session factory
+     * @param realmId  the id of the realm
+     * @param userIds  the ids of the users to keep, usually the userIds field of an incremental export
+     * @param pageSize the number of users read per transaction
+     * @return the ids of the users to remove
+     */
+    public static List<String> findRemovedUsers(KeycloakSessionFactory factory, String realmId, Set<String> userIds, int pageSize) {
+        List<String> removed = new ArrayList<>();
+        String after = null;
+        do {
+            final String pageAfter = after;
+            after = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                String last = UserQueries.getUsernameAfter(session, realm, pageAfter, pageSize);
+                UserQueries.getUserIds(session, realm, pageAfter, last).stream().filter(id -> !userIds.contains(id)).forEach(removed::add);
+                return last;
+            });
+        } while (after != null);
+        return removed;
+    }
+
+    /**
+     * Removes the users of a realm which are not in the given ids. The ids of the users are read by ranges of
+     * usernames, and only the removed users are loaded.
+     *
+     * @param session the session used to remove the users
+     * @param realm   the realm
+     * @param userIds the ids of the users to keep
+     * @return the number of removed users
+     */
+    public static int removeUsers(KeycloakSession session, RealmModel realm, Set<String> userIds) {
+        int removed = 0;
+        String after = null;
+        do {
+            String last = UserQueries.getUsernameAfter(session, realm, after, USER_IDS_PAGE_SIZE);
+            for (String id : UserQueries.getUserIds(session, realm, after, last)) {
+                UserModel user = userIds.contains(id) ? null : session.users().getUserById(realm, id);
+                if (user != null) {
+                    session.users().removeUser(realm, user);
+                    removed++;
+                }
+            }
+            after = last;
+        } while (after != null);
+        return removed;
+    }
+
+    /**
+     * Compares an exported value with the export of the existing value. Values missing from the exported value are
+     * ignored, arrays are compared regardless of the order of their elements and numbers regardless of their type.
+     *
+     * @param incoming the exported value
+     * @param existing the export of the existing value
+     * @return true if the existing value does not need to be updated
+     */
+    public static boolean isUpToDate(JsonNode incoming, JsonNode existing) {
+        if (existing == null || existing.isNull()) {
+            return incoming.isNull() || (incoming.isContainerNode() && incoming.size() == 0);
+        }
+        if (incoming.isObject()) {
+            if (!existing.isObject()) {
+                return false;
+            }
+            Iterator<Map.Entry<String, JsonNode>> fields = incoming.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!isUpToDate(field.getValue(), existing.get(field.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (incoming.isArray()) {
+            if (!existing.isArray() || existing.size() != incoming.size()) {
+                return false;
+            }
+            List<JsonNode> remaining = new ArrayList<>(existing.size());
+            existing.forEach(remaining::add);
+            for (JsonNode element : incoming) {
+                if (!removeMatching(element, remaining)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (incoming.isNumber() && existing.isNumber()) {
+            return incoming.decimalValue().compareTo(existing.decimalValue()) == 0;
+        }
+        return incoming.equals(existing);
+    }
+
+    private static boolean removeMatching(JsonNode element, List<JsonNode> candidates) {
+        for (Iterator<JsonNode> it = candidates.iterator(); it.hasNext(); ) {
+            if (isUpToDate(element, it.next())) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the client was created
+     */
+    private static boolean mergeClient(KeycloakSession session, RealmModel realm, ClientRepresentation clientRep) {
+        ClientModel client = findClient(realm, clientRep);
+        if (client == null) {
+            RepresentationToModel.createClient(session, realm, clientRep);
+            return true;
+        }
+        ClientRepresentation existing = ModelToRepresentation.toRepresentation(client, session);
+        if (isUpToDate(JsonSerialization.mapper.valueToTree(clientRep), JsonSerialization.mapper.valueToTree(existing))) {
+            return false;
+        }
+        RepresentationToModel.updateClient(clientRep, client);
+        mergeProtocolMappers(client, clientRep.getProtocolMappers());
+        logger.debugf("Client '%s' of realm '%s' updated", client.getClientId(), realm.getName());
+        return false;
+    }
+
+    /**
+     * Updates the protocol mappers of a client or a client scope, matched by id or by name, and removes the ones
+     * missing from the export
+     */
+    private static void mergeProtocolMappers(ProtocolMapperContainerModel container, List<ProtocolMapperRepresentation> mapperReps) {
+        if (mapperReps == null) {
+            return;
+        }
+        Set<String> kept = new HashSet<>();
+        for (ProtocolMapperRepresentation mapperRep : mapperReps) {
+            ProtocolMapperModel mapper = RepresentationToModel.toModel(mapperRep);
+            ProtocolMapperModel existingMapper = mapperRep.getId() == null ? null : container.getProtocolMapperById(mapperRep.getId());
+            if (existingMapper == null) {
+                existingMapper = container.getProtocolMapperByName(mapperRep.getProtocol(), mapperRep.getName());
+            }
+            if (existingMapper == null) {
+                kept.add(container.addProtocolMapper(mapper).getId());
+            } else {
+                mapper.setId(existingMapper.getId());
+                container.updateProtocolMapper(mapper);
+                kept.add(existingMapper.getId());
+            }
+        }
+        container.getProtocolMappersStream()
+                .filter(mapper -> !kept.contains(mapper.getId()))
+                .collect(Collectors.toList())
+                .forEach(container::removeProtocolMapper);
+    }
+
+    /**
+     * Removes the clients which match none of the exported clients
+     */
+    static void removeUnmatchedClients(RealmModel realm, List<ClientRepresentation> clientReps) {
+        Set<String> kept = clientReps.stream()
+                .map(clientRep -> findClient(realm, clientRep))
+                .filter(Objects::nonNull)
+                .map(ClientModel::getId)
+                .collect(Collectors.toSet());
+        for (ClientModel client : realm.getClientsStream().filter(client -> !kept.contains(client.getId())).collect(Collectors.toList())) {
+            realm.removeClient(client.getId());
+            logger.debugf("Client '%s' of realm '%s' removed", client.getClientId(), realm.getName());
+        }
+    }
+
+    private static void mergeClientScope(KeycloakSession session, RealmModel realm, ClientScopeRepresentation scopeRep) {
+        ClientScopeModel scope = findClientScope(realm, scopeRep);
+        if (scope == null) {
+            RepresentationToModel.createClientScope(session, realm, scopeRep);
+            return;
+        }
+        ClientScopeRepresentation existing = ModelToRepresentation.toRepresentation(scope);
+        if (isUpToDate(JsonSerialization.mapper.valueToTree(scopeRep), JsonSerialization.mapper.valueToTree(existing))) {
+            return;
+        }
+        RepresentationToModel.updateClientScope(scopeRep, scope);
+        mergeProtocolMappers(scope, scopeRep.getProtocolMappers());
+        logger.debugf("Client scope '%s' of realm '%s' updated", scope.getName(), realm.getName());
+    }
+
+    /**
+     * @return the existing client scope with the id of the exported client scope or, failing that, with its name
+     */
+    static ClientScopeModel findClientScope(RealmModel realm, ClientScopeRepresentation scopeRep) {
+        ClientScopeModel scope = scopeRep.getId() == null ? null : realm.getClientScopeById(scopeRep.getId());
+        if (scope == null && scopeRep.getName() != null) {
+            scope = findClientScope(realm, scopeRep.getName());
+        }
+        return scope;
+    }
+
+    private static ClientScopeModel findClientScope(RealmModel realm, String name) {
+        return realm.getClientScopesStream().filter(scope -> name.equals(scope.getName())).findFirst().orElse(null);
+    }
+
+    /**
+     * Removes the client scopes which match none of the exported client scopes, unless a client still uses them
+     */
+    private static void removeUnmatchedClientScopes(RealmModel realm, List<ClientScopeRepresentation> scopeReps) {
+        Set<String> kept = scopeReps.stream()
+                .map(scopeRep -> findClientScope(realm, scopeRep))
+                .filter(Objects::nonNull)
+                .map(ClientScopeModel::getId)
+                .collect(Collectors.toSet());
+        for (ClientScopeModel scope : realm.getClientScopesStream().filter(scope -> !kept.contains(scope.getId())).collect(Collectors.toList())) {
+            try {
+                realm.removeClientScope(scope.getId());
+                logger.debugf("Client scope '%s' of realm '%s' removed", scope.getName(), realm.getName());
+            } catch (ModelException e) {
+                logger.warnf("Client scope '%s' of realm '%s' is not in the export but is kept: %s", scope.getName(), realm.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private static void mergeDefaultClientScopes(RealmModel realm, List<String> names, boolean defaultScope) {
+        if (names == null) {
+            return;
+        }
+        Set<String> current = realm.getDefaultClientScopesStream(defaultScope).map(ClientScopeModel::getName).collect(Collectors.toSet());
+        realm.getDefaultClientScopesStream(defaultScope)
+                .filter(scope -> !names.contains(scope.getName()))
+                .collect(Collectors.toList())
+                .forEach(realm::removeDefaultClientScope);
+        names.stream()
+                .filter(name -> !current.contains(name))
+                .map(name -> findClientScope(realm, name))
+                .filter(Objects::nonNull)
+                .forEach(scope -> realm.addDefaultClientScope(scope, defaultScope));
+    }
+
+    /**
+     * @return the existing client with the id of the exported client or, failing that, with its clientId
+     */
+    static ClientModel findClient(RealmModel realm, ClientRepresentation clientRep) {
+        ClientModel client = clientRep.getId() == null ? null : realm.getClientById(clientRep.getId());
+        if (client == null && clientRep.getClientId() != null) {
+            client = realm.getClientByClientId(clientRep.getClientId());
+        }
+        return client;
+    }
+
+    private static void mergeRoles(RealmModel realm, RolesRepresentation rolesRep) {
+        if (rolesRep == null) {
+            return;
+        }
+        if (rolesRep.getRealm() != null) {
+            rolesRep.getRealm().forEach(roleRep -> mergeRole(realm, roleRep));
+        }
+        if (rolesRep.getClient() != null) {
+            for (Map.Entry<String, List<RoleRepresentation>> entry : rolesRep.getClient().entrySet()) {
+                ClientModel client = realm.getClientByClientId(entry.getKey());
+                if (client != null) {
+                    entry.getValue().forEach(roleRep -> mergeRole(client, roleRep));
+                }
+            }
+        }
+        removeUnmatchedRoles(realm, rolesRep);
+        // Composites are merged once all the roles exist
+        if (rolesRep.getRealm() != null) {
+            rolesRep.getRealm().forEach(roleRep -> mergeComposites(realm, realm.getRole(roleRep.getName()), roleRep));
+        }
+        if (rolesRep.getClient() != null) {
+            for (Map.Entry<String, List<RoleRepresentation>> entry : rolesRep.getClient().entrySet()) {
+                ClientModel client = realm.getClientByClientId(entry.getKey());
+                if (client != null) {
+                    entry.getValue().forEach(roleRep -> mergeComposites(realm, client.getRole(roleRep.getName()), roleRep));
+                }
+            }
+        }
+    }
+
+    private static void mergeRole(RoleContainerModel container, RoleRepresentation roleRep) {
+        RoleModel role = container.getRole(roleRep.getName());
+        if (role == null) {
+            role = roleRep.getId() != null ? container.addRole(roleRep.getId(), roleRep.getName()) : container.addRole(roleRep.getName());
+        }
+        if (!Objects.equals(role.getDescription(), roleRep.getDescription())) {
+            role.setDescription(roleRep.getDescription());
+        }
+        if (roleRep.getAttributes() != null) {
+            for (Map.Entry<String, List<String>> attribute : roleRep.getAttributes().entrySet()) {
+                if (!attribute.getValue().equals(role.getAttributeStream(attribute.getKey()).collect(Collectors.toList()))) {
+                    role.setAttribute(attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the realm roles missing from the export, except the default role, and the roles of the clients missing
+     * from the export
+     */
+    static void removeUnmatchedRoles(RealmModel realm, RolesRepresentation rolesRep) {
+        if (rolesRep.getRealm() != null) {
+            Set<String> names = rolesRep.getRealm().stream().map(RoleRepresentation::getName).collect(Collectors.toSet());
+            RoleModel defaultRole = realm.getDefaultRole();
+            realm.getRolesStream()
+                    .filter(role -> !names.contains(role.getName()) && (defaultRole == null || !defaultRole.getId().equals(role.getId())))
+                    .collect(Collectors.toList())
+                    .forEach(role -> removeRole(realm, realm, role));
+        }
+        if (rolesRep.getClient() != null) {
+            for (ClientModel client : realm.getClientsStream().collect(Collectors.toList())) {
+                Set<String> names = rolesRep.getClient().getOrDefault(client.getClientId(), Collections.emptyList()).stream()
+                        .map(RoleRepresentation::getName)
+                        .collect(Collectors.toSet());
+                client.getRolesStream()
+                        .filter(role -> !names.contains(role.getName()))
+                        .collect(Collectors.toList())
+                        .forEach(role -> removeRole(realm, client, role));
+            }
+        }
+    }
+
+    private static void removeRole(RealmModel realm, RoleContainerModel container, RoleModel role) {
+        container.removeRole(role);
+        logger.debugf("Role '%s' of realm '%s' removed", role.getName(), realm.getName());
+    }
+
+    /**
+     * Aligns the composites of a role with the export. A composite role exported without its composites is left as is.
+     */
+    static void mergeComposites(RealmModel realm, RoleModel role, RoleRepresentation roleRep) {
+        if (role == null || (roleRep.getComposites() == null && roleRep.isComposite())) {
+            return;
+        }
+        Set<RoleModel> expected = new HashSet<>();
+        if (roleRep.getComposites() != null && roleRep.getComposites().getRealm() != null) {
+            roleRep.getComposites().getRealm().stream().map(realm::getRole).filter(Objects::nonNull).forEach(expected::add);
+        }
+        if (roleRep.getComposites() != null && roleRep.getComposites().getClient() != null) {
+            for (Map.Entry<String, List<String>> entry : roleRep.getComposites().getClient().entrySet()) {
+                ClientModel client = realm.getClientByClientId(entry.getKey());
+                if (client != null) {
+                    entry.getValue().stream().map(client::getRole).filter(Objects::nonNull).forEach(expected::add);
+                }
+            }
+        }
+        Set<RoleModel> composites = role.getCompositesStream().collect(Collectors.toSet());
+        composites.stream().filter(composite -> !expected.contains(composite)).forEach(role::removeCompositeRole);
+        expected.stream().filter(composite -> !composites.contains(composite)).forEach(role::addCompositeRole);
+    }
+
+    /**
+     * @return the existing group with the id of the exported group or, failing that, with its name under the same parent
+     */
+    static GroupModel findGroup(RealmModel realm, GroupModel parent, GroupRepresentation groupRep) {
+        GroupModel group = groupRep.getId() == null ? null : realm.getGroupById(groupRep.getId());
+        if (group == null && groupRep.getName() != null) {
+            Stream<GroupModel> siblings = parent == null ? realm.getTopLevelGroupsStream() : parent.getSubGroupsStream();
+            group = siblings.filter(sibling -> groupRep.getName().equals(sibling.getName())).findFirst().orElse(null);
+        }
+        return group;
+    }
+
+    /**
+     * Removes the groups which match none of the exported groups. The sub-groups of a group exported without its
+     * sub-groups are kept.
+     */
+    static void removeUnmatchedGroups(RealmModel realm, List<GroupRepresentation> groupReps) {
+        Set<String> kept = new HashSet<>();
+        keepGroups(realm, null, groupReps, kept);
+        removeGroups(realm, realm.getTopLevelGroupsStream().collect(Collectors.toList()), kept);
+    }
+
+    private static void keepGroups(RealmModel realm, GroupModel parent, List<GroupRepresentation> groupReps, Set<String> kept) {
+        for (GroupRepresentation groupRep : groupReps) {
+            GroupModel group = findGroup(realm, parent, groupRep);
+            if (group == null) {
+                continue;
+            }
+            kept.add(group.getId());
+            if (groupRep.getSubGroups() != null) {
+                keepGroups(realm, group, groupRep.getSubGroups(), kept);
+            } else {
+                keepSubGroups(group, kept);
+            }
+        }
+    }
+
+    private static void keepSubGroups(GroupModel group, Set<String> kept) {
+        group.getSubGroupsStream().forEach(subGroup -> {
+            kept.add(subGroup.getId());
+            keepSubGroups(subGroup, kept);
+        });
+    }
+
+    private static void removeGroups(RealmModel realm, List<GroupModel> groups, Set<String> kept) {
+        for (GroupModel group : groups) {
+            if (kept.contains(group.getId())) {
+                removeGroups(realm, group.getSubGroupsStream().collect(Collectors.toList()), kept);
+            } else {
+                // Its sub-groups are removed with it
+                realm.removeGroup(group);
+                logger.debugf("Group '%s' of realm '%s' removed", group.getName(), realm.getName());
+            }
+        }
+    }
+
+    private static void mergeDefaultGroups(RealmModel realm, List<String> paths) {
+        if (paths == null) {
+            return;
+        }
+        Map<String, GroupModel> groups = new HashMap<>();
+        paths.stream()
+                .map(path -> KeycloakModelUtils.findGroupByPath(realm, path))
+                .filter(Objects::nonNull)
+                .forEach(group -> groups.put(group.getId(), group));
+        Set<String> current = new HashSet<>();
+        for (GroupModel group : realm.getDefaultGroupsStream().collect(Collectors.toList())) {
+            current.add(group.getId());
+            if (!groups.containsKey(group.getId())) {
+                realm.removeDefaultGroup(group);
+            }
+        }
+        groups.values().stream().filter(group -> !current.contains(group.getId())).forEach(realm::addDefaultGroup);
+    }
+
+    /**
+     * Aligns the scope mappings of the clients and client scopes with the export: realm roles when the export lists
+     * realm scope mappings, client roles when it lists client scope mappings
+     */
+    private static void mergeScopeMappings(RealmModel realm, RealmRepresentation rep) {
+        if (rep.getScopeMappings() == null && rep.getClientScopeMappings() == null) {
+            return;
+        }
+        Map<String, Set<RoleModel>> expected = new HashMap<>();
+        if (rep.getScopeMappings() != null) {
+            for (ScopeMappingRepresentation mappingRep : rep.getScopeMappings()) {
+                addScopeMappings(realm, mappingRep, realm, expected);
+            }
+        }
+        if (rep.getClientScopeMappings() != null) {
+            for (Map.Entry<String, List<ScopeMappingRepresentation>> entry : rep.getClientScopeMappings().entrySet()) {
+                ClientModel client = realm.getClientByClientId(entry.getKey());
+                if (client != null) {
+                    entry.getValue().forEach(mappingRep -> addScopeMappings(realm, mappingRep, client, expected));
+                }
+            }
+        }
+        List<ScopeContainerModel> containers = new ArrayList<>();
+        realm.getClientsStream().forEach(containers::add);
+        realm.getClientScopesStream().forEach(containers::add);
+        for (ScopeContainerModel container : containers) {
+            Set<RoleModel> roles = expected.getOrDefault(getId(container), Collections.emptySet());
+            Set<RoleModel> mapped = container.getScopeMappingsStream().collect(Collectors.toSet());
+            mapped.stream()
+                    .filter(role -> !roles.contains(role))
+                    .filter(role -> role.isClientRole() ? rep.getClientScopeMappings() != null : rep.getScopeMappings() != null)
+                    .forEach(container::deleteScopeMapping);
+            roles.stream().filter(role -> !mapped.contains(role)).forEach(container::addScopeMapping);
+        }
+    }
+
+    private static void addScopeMappings(RealmModel realm, ScopeMappingRepresentation mappingRep, RoleContainerModel roles,
+                                         Map<String, Set<RoleModel>> expected) {
+        ScopeContainerModel container = mappingRep.getClient() != null ? realm.getClientByClientId(mappingRep.getClient())
+                : mappingRep.getClientScope() != null ? findClientScope(realm, mappingRep.getClientScope()) : null;
+        if (container == null || mappingRep.getRoles() == null) {
+            return;
+        }
+        mappingRep.getRoles().stream()
+                .map(roles::getRole)
+                .filter(Objects::nonNull)
+                .forEach(role -> expected.computeIfAbsent(getId(container), id -> new HashSet<>()).add(role));
+    }
+
+    private static String getId(ScopeContainerModel container) {
+        return container instanceof ClientModel ? ((ClientModel) container).getId() : ((ClientScopeModel) container).getId();
+    }
+
+    /**
+     * Creates or updates the authenticator configs and the authentication flows, matched by alias. The executions of
+     * a changed flow are replaced by the exported ones.
+     *
+     * @param existing the export of the realm before the merge
+     */
+    private static void mergeAuthenticationFlows(RealmModel realm, RealmRepresentation rep, ObjectNode existing) {
+        if (rep.getAuthenticatorConfig() != null) {
+            Set<String> aliases = new HashSet<>();
+            for (AuthenticatorConfigRepresentation configRep : rep.getAuthenticatorConfig()) {
+                aliases.add(configRep.getAlias());
+                AuthenticatorConfigModel config = RepresentationToModel.toModel(configRep);
+                AuthenticatorConfigModel existingConfig = realm.getAuthenticatorConfigByAlias(configRep.getAlias());
+                if (existingConfig == null) {
+                    realm.addAuthenticatorConfig(config);
+                } else if (!Objects.equals(existingConfig.getConfig(), config.getConfig())) {
+                    config.setId(existingConfig.getId());
+                    realm.updateAuthenticatorConfig(config);
+                }
+            }
+            realm.getAuthenticatorConfigsStream()
+                    .filter(config -> !aliases.contains(config.getAlias()))
+                    .forEach(config -> logger.warnf("Authenticator config '%s' of realm '%s' is not in the export but is kept",
+                            config.getAlias(), realm.getName()));
+        }
+        if (rep.getAuthenticationFlows() == null) {
+            return;
+        }
+        Map<String, JsonNode> existingFlows = byKey(existing.get("authenticationFlows"), "alias");
+        // All the flows are created before the executions, which refer to their sub-flows
+        List<AuthenticationFlowRepresentation> changedFlows = new ArrayList<>();
+        for (AuthenticationFlowRepresentation flowRep : rep.getAuthenticationFlows()) {
+            AuthenticationFlowModel flow = realm.getFlowByAlias(flowRep.getAlias());
+            ObjectNode incoming = JsonSerialization.mapper.valueToTree(flowRep);
+            incoming.remove("id");
+            if (flow == null) {
+                realm.addAuthenticationFlow(RepresentationToModel.toModel(flowRep));
+                changedFlows.add(flowRep);
+            } else if (!isUpToDate(incoming, existingFlows.get(flowRep.getAlias()))) {
+                AuthenticationFlowModel model = RepresentationToModel.toModel(flowRep);
+                model.setId(flow.getId());
+                realm.updateAuthenticationFlow(model);
+                changedFlows.add(flowRep);
+            }
+        }
+        for (AuthenticationFlowRepresentation flowRep : changedFlows) {
+            AuthenticationFlowModel flow = realm.getFlowByAlias(flowRep.getAlias());
+            realm.getAuthenticationExecutionsStream(flow.getId())
+                    .collect(Collectors.toList())
+                    .forEach(realm::removeAuthenticatorExecution);
+            if (flowRep.getAuthenticationExecutions() != null) {
+                flowRep.getAuthenticationExecutions().forEach(executionRep -> realm.addAuthenticatorExecution(toExecution(realm, flow, executionRep)));
+            }
+            logger.debugf("Authentication flow '%s' of realm '%s' updated", flow.getAlias(), realm.getName());
+        }
+        Set<String> aliases = rep.getAuthenticationFlows().stream().map(AuthenticationFlowRepresentation::getAlias).collect(Collectors.toSet());
+        realm.getAuthenticationFlowsStream()
+                .filter(flow -> !aliases.contains(flow.getAlias()))
+                .forEach(flow -> logger.warnf("Authentication flow '%s' of realm '%s' is not in the export but is kept",
+                        flow.getAlias(), realm.getName()));
+    }
+
+    private static AuthenticationExecutionModel toExecution(RealmModel realm, AuthenticationFlowModel flow,
+                                                            AuthenticationExecutionExportRepresentation executionRep) {
+        AuthenticationExecutionModel execution = new AuthenticationExecutionModel();
+        execution.setParentFlow(flow.getId());
+        execution.setAuthenticator(executionRep.getAuthenticator());
+        execution.setAuthenticatorFlow(executionRep.isAuthenticatorFlow());
+        if (executionRep.getFlowAlias() != null) {
+            AuthenticationFlowModel subFlow = realm.getFlowByAlias(executionRep.getFlowAlias());
+            if (subFlow == null) {
+                throw new ModelException("Flow '" + executionRep.getFlowAlias() + "' used by flow '" + flow.getAlias() + "' does not exist");
+            }
+            execution.setFlowId(subFlow.getId());
+        }
+        if (executionRep.getAuthenticatorConfig() != null) {
+            AuthenticatorConfigModel config = realm.getAuthenticatorConfigByAlias(executionRep.getAuthenticatorConfig());
+            if (config != null) {
+                execution.setAuthenticatorConfig(config.getId());
+            }
+        }
+        execution.setRequirement(AuthenticationExecutionModel.Requirement.valueOf(executionRep.getRequirement()));
+        execution.setPriority(executionRep.getPriority());
+        return execution;
+    }
+
+    /**
+     * Creates, updates or removes the identity providers and their mappers, matched by alias and by name
+     *
+     * @param existing the export of the realm before the merge
+     */
+    private static void mergeIdentityProviders(KeycloakSession session, RealmModel realm, RealmRepresentation rep, ObjectNode existing) {
+        if (rep.getIdentityProviders() != null) {
+            Map<String, JsonNode> existingProviders = byKey(existing.get("identityProviders"), "alias");
+            for (IdentityProviderRepresentation providerRep : rep.getIdentityProviders()) {
+                IdentityProviderModel provider = RepresentationToModel.toModel(realm, providerRep, session);
+                IdentityProviderModel existingProvider = realm.getIdentityProviderByAlias(providerRep.getAlias());
+                ObjectNode incoming = JsonSerialization.mapper.valueToTree(providerRep);
+                // The internal id differs from a server to the other
+                incoming.remove("internalId");
+                if (existingProvider == null) {
+                    realm.addIdentityProvider(provider);
+                } else if (!isUpToDate(incoming, existingProviders.get(providerRep.getAlias()))) {
+                    provider.setInternalId(existingProvider.getInternalId());
+                    realm.updateIdentityProvider(provider);
+                    logger.debugf("Identity provider '%s' of realm '%s' updated", provider.getAlias(), realm.getName());
+                }
+            }
+            Set<String> aliases = rep.getIdentityProviders().stream().map(IdentityProviderRepresentation::getAlias).collect(Collectors.toSet());
+            realm.getIdentityProvidersStream()
+                    .map(IdentityProviderModel::getAlias)
+                    .filter(alias -> !aliases.contains(alias))
+                    .collect(Collectors.toList())
+                    .forEach(realm::removeIdentityProviderByAlias);
+        }
+        if (rep.getIdentityProviderMappers() != null) {
+            Set<String> kept = new HashSet<>();
+            for (IdentityProviderMapperRepresentation mapperRep : rep.getIdentityProviderMappers()) {
+                IdentityProviderMapperModel mapper = RepresentationToModel.toModel(mapperRep);
+                IdentityProviderMapperModel existingMapper = realm.getIdentityProviderMapperByName(mapperRep.getIdentityProviderAlias(), mapperRep.getName());
+                if (existingMapper == null) {
+                    realm.addIdentityProviderMapper(mapper);
+                } else if (!Objects.equals(existingMapper.getIdentityProviderMapper(), mapper.getIdentityProviderMapper())
+                        || !Objects.equals(existingMapper.getConfig(), mapper.getConfig())) {
+                    mapper.setId(existingMapper.getId());
+                    realm.updateIdentityProviderMapper(mapper);
+                }
+                kept.add(mapperRep.getIdentityProviderAlias() + "/" + mapperRep.getName());
+            }
+            realm.getIdentityProviderMappersStream()
+                    .filter(mapper -> !kept.contains(mapper.getIdentityProviderAlias() + "/" + mapper.getName()))
+                    .collect(Collectors.toList())
+                    .forEach(realm::removeIdentityProviderMapper);
+        }
+    }
+
+    /**
+     * Creates, updates or removes the required actions, matched by alias
+     *
+     * @param existing the export of the realm before the merge
+     */
+    private static void mergeRequiredActions(RealmModel realm, List<RequiredActionProviderRepresentation> actionReps, ObjectNode existing) {
+        if (actionReps == null) {
+            return;
+        }
+        Map<String, JsonNode> existingActions = byKey(existing.get("requiredActions"), "alias");
+        for (RequiredActionProviderRepresentation actionRep : actionReps) {
+            RequiredActionProviderModel action = RepresentationToModel.toModel(actionRep);
+            RequiredActionProviderModel existingAction = realm.getRequiredActionProviderByAlias(actionRep.getAlias());
+            if (existingAction == null) {
+                realm.addRequiredActionProvider(action);
+            } else if (!isUpToDate(JsonSerialization.mapper.valueToTree(actionRep), existingActions.get(actionRep.getAlias()))) {
+                action.setId(existingAction.getId());
+                realm.updateRequiredActionProvider(action);
+            }
+        }
+        Set<String> aliases = actionReps.stream().map(RequiredActionProviderRepresentation::getAlias).collect(Collectors.toSet());
+        realm.getRequiredActionProvidersStream()
+                .filter(action -> !aliases.contains(action.getAlias()))
+                .collect(Collectors.toList())
+                .forEach(realm::removeRequiredActionProvider);
+    }
+
+    /**
+     * @return the elements of an exported array, by the value of one of their fields
+     */
+    private static Map<String, JsonNode> byKey(JsonNode array, String field) {
+        Map<String, JsonNode> elements = new HashMap<>();
+        if (array != null) {
+            array.forEach(element -> elements.put(element.path(field).asText(), element));
+        }
+        return elements;
+    }
+
+    private static void mergeGroup(RealmModel realm, GroupModel parent, GroupRepresentation groupRep) {
+        GroupModel group = findGroup(realm, parent, groupRep);
+        if (group == null) {
+            RepresentationToModel.importGroup(realm, parent, groupRep);
+            return;
+        }
+        if (!Objects.equals(group.getName(), groupRep.getName())) {
+            group.setName(groupRep.getName());
+        }
+        if (groupRep.getAttributes() != null) {
+            group.getAttributes().keySet().stream()
+                    .filter(name -> !groupRep.getAttributes().containsKey(name))
+                    .collect(Collectors.toList())
+                    .forEach(group::removeAttribute);
+            for (Map.Entry<String, List<String>> attribute : groupRep.getAttributes().entrySet()) {
+                if (!attribute.getValue().equals(group.getAttributeStream(attribute.getKey()).collect(Collectors.toList()))) {
+                    group.setAttribute(attribute.getKey(), attribute.getValue());
+                }
+            }
+        }
+        alignRoleMappings(realm, group, groupRep.getRealmRoles(), groupRep.getClientRoles());
+        if (groupRep.getSubGroups() != null) {
+            for (GroupRepresentation subGroupRep : groupRep.getSubGroups()) {
+                mergeGroup(realm, group, subGroupRep);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package io.cloudtrust.keycloak.export;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Counters and timers of the exports and imports of this node, exposed in the Prometheus text format.
+ * <p>
+ * Each export or import is followed by an {@link Operation}, which records the time spent in each of its phases,
+ * the number of users and the number of bytes written. When the operation ends, its values are added to the
+ * metrics of the node and a summary is logged as key=value pairs.
+ */
+public class Metrics {
+    private static final Logger logger = Logger.getLogger(Metrics.class);
+
+    public static final String EXPORT = "export";
+    public static final String IMPORT = "import";
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "keycloak_";
+
+    private static final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts following an export or an import
+     *
+     * @param type  {@link #EXPORT} or {@link #IMPORT}
+     * @param realm the name of the realm
+     * @return the operation, to be finished once done
+     */
+    public static Operation start(String type, String realm) {
+        return new Operation(type, realm);
+    }
+
+    /**
+     * Records the time of a phase which is not part of an operation
+     *
+     * @param type       {@link #EXPORT} or {@link #IMPORT}
+     * @param phase      the name of the phase
+     * @param startNanos the start of the phase, from {@link System#nanoTime()}
+     */
+    public static void record(String type, String phase, long startNanos) {
+        observe(PREFIX + type + "_phase_seconds", "Time spent in each phase of the " + type + "s", "phase", phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a page of users read by a throttled export
+     *
+     * @param users     the maximum number of users of the page
+     * @param waitNanos the time the page waited for the throttle
+     */
+    public static void recordThrottle(int users, long waitNanos) {
+        observe(PREFIX + "export_throttle_wait_seconds", "Time the throttled exports waited before reading a page of users", null, null, waitNanos);
+        increment(PREFIX + "export_throttled_users_total", "Number of users requested by the throttled exports", users);
+    }
+
+    /**
+     * Runs a task with {@link KeycloakModelUtils#runJobInTransaction}, the time from the end of the task to the end of
+     * the transaction being recorded as the commit phase of the operation
+     *
+     * @param factory   the session factory
+     * @param operation the operation, or null to run the task without recording it
+     * @param task      the task
+     */
+    public static void runJobInTransaction(KeycloakSessionFactory factory, Operation operation, KeycloakSessionTask task) {
+        if (operation == null) {
+            KeycloakModelUtils.runJobInTransaction(factory, task);
+            return;
+        }
+        runJobInTransaction(factory, task, start -> operation.record("commit", start));
+    }
+
+    /**
+     * Runs a task with {@link KeycloakModelUtils#runJobInTransaction}, the time from the end of the task to the end of
+     * the transaction being recorded as the commit phase of the exports or imports
+     *
+     * @param factory the session factory
+     * @param type    {@link #EXPORT} or {@link #IMPORT}
+     * @param task    the task
+     */
+    public static void runJobInTransaction(KeycloakSessionFactory factory, String type, KeycloakSessionTask task) {
+        runJobInTransaction(factory, task, start -> record(type, "commit", start));
+    }
+
+    private static void runJobInTransaction(KeycloakSessionFactory factory, KeycloakSessionTask task, LongConsumer commitRecorder) {
+        // The commit is what remains once the task returned, the session being closed at the same time
+        long[] taskEnd = new long[1];
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            task.run(session);
+            taskEnd[0] = System.nanoTime();
+        });
+        commitRecorder.accept(taskEnd[0]);
+    }
+
+    /**
+     * @return the metrics of the node in the Prometheus text format
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        families.forEach((name, family) -> family.write(sb));
+        return sb.toString();
+    }
+
+    static void reset() {
+        families.clear();
+    }
+
+    private static void increment(String name, String help, long value) {
+        families.computeIfAbsent(name, n -> new Family(n, help, "counter")).get("").add(value);
+    }
+
+    private static void observe(String name, String help, String label, String value, long nanos) {
+        String labels = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+        families.computeIfAbsent(name, n -> new Family(n, help, "summary")).get(labels).add(nanos);
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    /**
+     * A metric with its values for each set of labels
+     */
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final ConcurrentMap<String, Series> series = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Series get(String labels) {
+            return series.computeIfAbsent(labels, l -> new Series());
+        }
+
+        void write(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            series.forEach((labels, values) -> {
+                if ("counter".equals(type)) {
+                    sb.append(name).append(labels).append(' ').append(values.sum.sum()).append('\n');
+                } else {
+                    sb.append(name).append("_sum").append(labels).append(' ').append(seconds(values.sum.sum())).append('\n');
+                    sb.append(name).append("_count").append(labels).append(' ').append(values.count.sum()).append('\n');
+                }
+            });
+        }
+    }
+
+    private static class Series {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void add(long value) {
+            count.increment();
+            sum.add(value);
+        }
+    }
+
+    /**
+     * A single export or import. Its phases can be recorded by several threads.
+     */
+    public static class Operation {
+        private final String type;
+        private final String realm;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, LongAdder> phases = new ConcurrentSkipListMap<>();
+        private final LongAdder users = new LongAdder();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Operation(String type, String realm) {
+            this.type = type;
+            this.realm = realm;
+        }
+
+        /**
+         * Records the time spent in a phase since the given start. Phases recorded several times are summed.
+         *
+         * @param phase      the name of the phase
+         * @param startNanos the start of the phase, from {@link System#nanoTime()}
+         */
+        public void record(String phase, long startNanos) {
+            long nanos = System.nanoTime() - startNanos;
+            phases.computeIfAbsent(phase, p -> new LongAdder()).add(nanos);
+            observe(PREFIX + type + "_phase_seconds", "Time spent in each phase of the " + type + "s", "phase", phase, nanos);
+        }
+
+        public void addUsers(long count) {
+            users.add(count);
+        }
+
+        /**
+         * Counts the bytes written by an output, records the time spent writing it and finishes the operation
+         * once it is written
+         *
+         * @param output the output to follow
+         * @return the output counting the bytes
+         */
+        public StreamingOutput meter(StreamingOutput output) {
+            return os -> {
+                long start = System.nanoTime();
+                try {
+                    CountingOutputStream counting = new CountingOutputStream(os, bytes);
+                    output.write(counting);
+                    counting.flush();
+                } finally {
+                    record("write", start);
+                    finish();
+                }
+            };
+        }
+
+        /**
+         * Adds the values of the operation to the metrics of the node and logs its summary. Only the first call
+         * has an effect.
+         */
+        public void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            long nanos = System.nanoTime() - startNanos;
+            observe(PREFIX + type + "_duration_seconds", "Duration of the " + type + "s", null, null, nanos);
+            increment(PREFIX + type + "_users_total", "Number of users of the " + type + "s", users.sum());
+            if (EXPORT.equals(type)) {
+                increment(PREFIX + type + "_bytes_total", "Number of bytes written by the " + type + "s", bytes.get());
+            }
+
+            StringBuilder summary = new StringBuilder(type).append(" summary: realm=").append(realm)
+                    .append(" durationMs=").append(TimeUnit.NANOSECONDS.toMillis(nanos))
+                    .append(" users=").append(users.sum())
+                    .append(" usersPerSec=").append(String.format(Locale.ROOT, "%.1f", nanos == 0 ? 0.0 : users.sum() * 1e9 / nanos));
+            if (EXPORT.equals(type)) {
+                summary.append(" bytes=").append(bytes.get());
+            }
+            phases.forEach((phase, phaseNanos) ->
+                    summary.append(' ').append(phase).append("Ms=").append(TimeUnit.NANOSECONDS.toMillis(phaseNanos.sum())));
+            logger.info(summary);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.models.KeycloakSessionFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the streaming export of several realms as a JSON array, the format read by the ctSingleFile import provider.
+ * <p>
+ * With a single worker, realms are written one after the other directly to the response. With more workers, realms
+ * are exported concurrently, each one to a temporary file of the spool directory, and the files are copied to the
+ * response as they are completed. At most one file per worker exists at a time, so that neither the memory nor the
+ * disk used depend on the number of realms. Realms are written in the order they are completed.
+ */
+public class MultiRealmExport implements StreamingOutput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final List<Map.Entry<String, String>> realms;
+    private final int usersPageSize;
+    private final int exportWorkers;
+    private final int realmWorkers;
+    private final Path spoolDirectory;
+    private ExportThrottle throttle;
+
+    /**
+     * @param sessionFactory the session factory
+     * @param realms         the names of the realms to export, by id
+     * @param usersPageSize  the number of users loaded per transaction
+     * @param exportWorkers  the number of threads loading and serializing the users of each realm
+     * @param realmWorkers   the number of realms exported at the same time
+     * @param spoolDirectory the directory of the temporary files, when several realms are exported at the same time
+     */
+    public MultiRealmExport(KeycloakSessionFactory sessionFactory, Map<String, String> realms, int usersPageSize, int exportWorkers,
+                            int realmWorkers, Path spoolDirectory) {
+        this.sessionFactory = sessionFactory;
+        this.realms = new ArrayList<>(realms.entrySet());
+        this.usersPageSize = usersPageSize;
+        this.exportWorkers = exportWorkers;
+        this.realmWorkers = Math.max(1, Math.min(realmWorkers, realms.size()));
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * @param throttle the throttle limiting the users read by the exports of the realms, can be null
+     */
+    public void setThrottle(ExportThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        output.write('[');
+        if (realmWorkers == 1) {
+            for (int i = 0; i < realms.size(); i++) {
+                if (i > 0) {
+                    output.write(',');
+                }
+                newExport(realms.get(i)).write(output);
+            }
+        } else {
+            writeInParallel(output);
+        }
+        output.write(']');
+        output.flush();
+    }
+
+    private void writeInParallel(OutputStream output) throws IOException {
+        Files.createDirectories(spoolDirectory);
+        Set<Path> files = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(realmWorkers);
+        CompletionService<Path> exports = new ExecutorCompletionService<>(executor);
+        try {
+            int next = 0;
+            for (; next < realmWorkers; next++) {
+                submit(exports, realms.get(next), files);
+            }
+            for (int written = 0; written < realms.size(); written++) {
+                Path file = exports.take().get();
+                if (written > 0) {
+                    output.write(',');
+                }
+                Files.copy(file, output);
+                output.flush();
+                Files.delete(file);
+                files.remove(file);
+                if (next < realms.size()) {
+                    submit(exports, realms.get(next++), files);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting realms", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to export realms", cause);
+        } finally {
+            executor.shutdownNow();
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void submit(CompletionService<Path> exports, Map.Entry<String, String> realm, Set<Path> files) {
+        exports.submit(() -> {
+            Path file = Files.createTempFile(spoolDirectory, "realm-", ".json");
+            files.add(file);
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)) {
+                newExport(realm).write(os);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return file;
+        });
+    }
+
+    private StreamingOutput newExport(Map.Entry<String, String> realm) {
+        StreamingRealmExport export = new StreamingRealmExport(sessionFactory, realm.getKey(), usersPageSize);
+        export.setWorkers(exportWorkers);
+        export.setThrottle(throttle);
+        Metrics.Operation metrics = Metrics.start(Metrics.EXPORT, realm.getValue());
+        export.setMetrics(metrics);
+        return metrics.meter(export);
+    }
+}
@@ -0,0 +1,131 @@
+package io.cloudtrust.keycloak.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a stream in a separate thread, filling a bounded number of buffers in advance so that reading (and
+ * decompressing) the stream overlaps with the processing of its content.
+ * Closing the stream stops the thread.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final InputStream in;
+    private final int bufferSize;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<byte[]> free;
+    private final Thread thread;
+    private volatile IOException failure;
+    private Chunk current;
+    private int position;
+
+    /**
+     * @param in         the stream to read
+     * @param bufferSize size of each buffer
+     * @param buffers    number of buffers filled in advance
+     */
+    public ReadAheadInputStream(InputStream in, int bufferSize, int buffers) {
+        this.in = in;
+        this.bufferSize = bufferSize;
+        this.filled = new ArrayBlockingQueue<>(buffers);
+        this.free = new ArrayBlockingQueue<>(buffers + 1);
+        this.thread = new Thread(this::readAhead, "import-read-ahead");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        return next() ? current.data[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        int length = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        in.close();
+    }
+
+    private boolean next() throws IOException {
+        if (current == END) {
+            return false;
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (current != null) {
+            free.offer(current.data);
+        }
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+        position = 0;
+        if (current == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void readAhead() {
+        try {
+            int length;
+            do {
+                byte[] data = free.poll();
+                if (data == null) {
+                    data = new byte[bufferSize];
+                }
+                length = 0;
+                int read;
+                while (length < bufferSize && (read = in.read(data, length, bufferSize - length)) > 0) {
+                    length += read;
+                }
+                if (length > 0) {
+                    filled.put(new Chunk(data, length));
+                }
+            } while (length == bufferSize);
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            // Stream closed by the reader
+            return;
+        }
+        try {
+            filled.put(END);
+        } catch (InterruptedException e) {
+            // Stream closed by the reader
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
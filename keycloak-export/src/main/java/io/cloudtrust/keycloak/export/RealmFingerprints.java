@@ -0,0 +1,277 @@
+package io.cloudtrust.keycloak.export;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.exportimport.util.ExportUtils;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a fingerprint of the realms exported by this node, so that conditional exports are answered without exporting
+ * anything.
+ * <p>
+ * Keycloak records no modification date for a realm nor for its users, their attributes, credentials, roles or groups,
+ * so the fingerprint of a realm is kept up to date from the changes announced to this node. It is the SHA-256 hash of:
+ * <ul>
+ * <li>the hash of the realm without its users, computed when the realm is first asked for and kept until a change of
+ * the realm is announced, or for at most the configured max age;</li>
+ * <li>a version of the realm, taken from a counter of this node when the hash of the realm is computed and again for
+ * each announced change of a user: admin events, and the user events changing an exported user (profile, password,
+ * OTP, consents, identity provider links...), received when the realm lists the
+ * {@value FingerprintEventListenerProviderFactory#ID} event listener;</li>
+ * <li>statistics of the users and credentials of the realm, read by the database for each request, which cover the
+ * users and credentials created or removed through any node;</li>
+ * <li>an id of this node, as the versions only count the changes seen by this node since it started.</li>
+ * </ul>
+ * Other changes made through other nodes are seen once the hash of the realm expires, which also takes a new version.
+ */
+public class RealmFingerprints implements ProviderEventListener, EventListenerProvider {
+    private static final Logger logger = Logger.getLogger(RealmFingerprints.class);
+
+    private static final String ALGORITHM = "SHA-256";
+
+    // User events which change an exported user: its fields, attributes, credentials, consents or identity provider links
+    private static final Set<String> USER_CHANGES = new HashSet<>(Arrays.asList("REGISTER", "UPDATE_PROFILE",
+            "UPDATE_EMAIL", "VERIFY_EMAIL", "UPDATE_PASSWORD", "RESET_PASSWORD", "UPDATE_TOTP", "REMOVE_TOTP",
+            "GRANT_CONSENT", "UPDATE_CONSENT", "REVOKE_GRANT", "FEDERATED_IDENTITY_LINK", "REMOVE_FEDERATED_IDENTITY",
+            "IDENTITY_PROVIDER_FIRST_LOGIN", "IDENTITY_PROVIDER_LINK_ACCOUNT", "CUSTOM_REQUIRED_ACTION",
+            "EXECUTE_ACTIONS", "EXECUTE_ACTION_TOKEN", "DELETE_ACCOUNT"));
+
+    // Admin resources which only concern the users, the other resources changing the realm without its users
+    private static final Set<String> USER_RESOURCES = new HashSet<>(Arrays.asList("USER", "GROUP_MEMBERSHIP",
+            "REALM_ROLE_MAPPING", "CLIENT_ROLE_MAPPING"));
+
+    // Admin resources which are not exported
+    private static final Set<String> UNEXPORTED_RESOURCES = new HashSet<>(Arrays.asList("USER_SESSION",
+            "USER_LOGIN_FAILURE", "CLUSTER_NODE", "CLIENT_INITIAL_ACCESS_MODEL"));
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+            // Only the digest is kept
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // Only the digest is kept
+        }
+    };
+
+    private final long maxAgeMillis;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicLong versions = new AtomicLong();
+    private final ConcurrentMap<String, RealmState> states = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> generations = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxAgeSeconds the time the hash of a realm is kept, or 0 to compute it for each request
+     */
+    public RealmFingerprints(int maxAgeSeconds) {
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+    }
+
+    /**
+     * Returns the fingerprint of the realm, without exporting its users
+     *
+     * @param session the session of the request
+     * @param realm   the realm
+     * @return the fingerprint of the realm
+     */
+    public String get(KeycloakSession session, RealmModel realm) {
+        RealmState state = states.get(realm.getId());
+        if (state == null || System.currentTimeMillis() - state.computedAt >= maxAgeMillis) {
+            state = computeState(session, realm);
+        }
+        MessageDigest digest = newDigest();
+        for (String part : new String[]{nodeId, String.valueOf(state.version), state.realmHash, getUserStatistics(session, realm)}) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    private RealmState computeState(KeycloakSession session, RealmModel realm) {
+        long generation = generations.getOrDefault(realm.getId(), 0L);
+        long computedAt = System.currentTimeMillis();
+        if (realm.getEventsListenersStream().noneMatch(FingerprintEventListenerProviderFactory.ID::equals)) {
+            logger.warnf("Realm '%s' does not list the %s event listener: the changes of its users made through the admin API " +
+                    "or by the users themselves are only seen by the fingerprint of the realm once it expires", realm.getName(),
+                    FingerprintEventListenerProviderFactory.ID);
+        }
+        long start = System.nanoTime();
+        RealmState state = new RealmState(hashRealm(session, realm), versions.incrementAndGet(), computedAt);
+        Metrics.record(Metrics.EXPORT, "fingerprint", start);
+        put(realm.getId(), state, generation);
+        return state;
+    }
+
+    /**
+     * @return the hash of the realm without its users
+     */
+    String hashRealm(KeycloakSession session, RealmModel realm) {
+        MessageDigest digest = newDigest();
+        try (OutputStream os = new DigestOutputStream(DISCARD, digest)) {
+            JsonSerialization.mapper.writeValue(os, ExportUtils.exportRealm(session, realm, false, true));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compute the fingerprint of realm " + realm.getName(), e);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the statistics of the users of the realm, read for each request
+     */
+    String getUserStatistics(KeycloakSession session, RealmModel realm) {
+        return UserQueries.getUserStatistics(session, realm);
+    }
+
+    /**
+     * Forgets the hash of the realm, including the one of a computation running at the same time, after a change of
+     * the realm
+     */
+    public synchronized void invalidate(String realmId) {
+        generations.merge(realmId, 1L, Long::sum);
+        states.remove(realmId);
+    }
+
+    /**
+     * Takes a new version for the realm after a change of its users, keeping the hash of the realm
+     */
+    public synchronized void usersChanged(String realmId) {
+        generations.merge(realmId, 1L, Long::sum);
+        states.computeIfPresent(realmId, (id, state) -> new RealmState(state.realmHash, versions.incrementAndGet(), state.computedAt));
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent) {
+            invalidate(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+        } else if (event instanceof RealmModel.IdentityProviderUpdatedEvent) {
+            invalidate(((RealmModel.IdentityProviderUpdatedEvent) event).getRealm().getId());
+        } else if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+            invalidate(((RealmModel.IdentityProviderRemovedEvent) event).getRealm().getId());
+        } else if (event instanceof UserModel.UserRemovedEvent) {
+            usersChanged(((UserModel.UserRemovedEvent) event).getRealm().getId());
+        } else if (event instanceof GroupModel.GroupRemovedEvent) {
+            invalidate(((GroupModel.GroupRemovedEvent) event).getRealm().getId());
+        } else if (event instanceof RoleContainerModel.RoleRemovedEvent) {
+            RoleContainerModel container = ((RoleContainerModel.RoleRemovedEvent) event).getRole().getContainer();
+            invalidate(container instanceof ClientModel ? ((ClientModel) container).getRealm().getId() : ((RealmModel) container).getId());
+        } else if (event instanceof ClientModel.ClientCreationEvent) {
+            invalidate(((ClientModel.ClientCreationEvent) event).getCreatedClient().getRealm().getId());
+        } else if (event instanceof ClientModel.ClientUpdatedEvent) {
+            invalidate(((ClientModel.ClientUpdatedEvent) event).getUpdatedClient().getRealm().getId());
+        } else if (event instanceof ClientModel.ClientRemovedEvent) {
+            invalidate(((ClientModel.ClientRemovedEvent) event).getClient().getRealm().getId());
+        }
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if (event.getRealmId() != null && event.getType() != null && USER_CHANGES.contains(event.getType().name())) {
+            usersChanged(event.getRealmId());
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getRealmId() == null || event.getResourceType() == null) {
+            return;
+        }
+        String resourceType = event.getResourceType().name();
+        if (USER_RESOURCES.contains(resourceType)) {
+            usersChanged(event.getRealmId());
+        } else if (!UNEXPORTED_RESOURCES.contains(resourceType)) {
+            invalidate(event.getRealmId());
+        }
+    }
+
+    @Override
+    public void close() {
+        // Shared by all the sessions
+    }
+
+    /**
+     * Checks whether an If-None-Match header matches the fingerprint of a realm, with the weak comparison
+     *
+     * @param ifNoneMatch the If-None-Match header, can be null
+     * @param fingerprint the fingerprint of the realm, can be null
+     * @return true if the realm has not changed for the client
+     */
+    public static boolean matches(String ifNoneMatch, String fingerprint) {
+        if (ifNoneMatch == null || fingerprint == null) {
+            return false;
+        }
+        String quoted = '"' + fingerprint + '"';
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || quoted.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void put(String realmId, RealmState state, long generation) {
+        // A hash computed while the realm was changed is not kept, as it may have missed the change
+        if (generations.getOrDefault(realmId, 0L) == generation) {
+            states.put(realmId, state);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class RealmState {
+        private final String realmHash;
+        private final long version;
+        private final long computedAt;
+
+        RealmState(String realmHash, long version, long computedAt) {
+            this.realmHash = realmHash;
+            this.version = version;
+            this.computedAt = computedAt;
+        }
+    }
+}
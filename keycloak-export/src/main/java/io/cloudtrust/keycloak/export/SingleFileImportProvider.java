@@ -1,64 +1,336 @@
 package io.cloudtrust.keycloak.export;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.json.RealmFileReader;
+import io.cloudtrust.keycloak.export.UserBatchImporter.UserImporter;
+import io.cloudtrust.keycloak.json.RealmFileReader.RealmEntry;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.exportimport.ImportProvider;
 import org.keycloak.exportimport.Strategy;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.RepresentationToModel;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
 import org.keycloak.services.managers.RealmManager;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 public class SingleFileImportProvider implements ImportProvider {
     private static final Logger logger = Logger.getLogger(SingleFileImportProvider.class);
 
     private final File file;
+    private final RealmFileReader reader;
+    private final ImportOptions options;
 
-    // Allows to cache representation per provider to avoid parsing them twice
-    private List<BetterRealmRepresentation> realmReps;
+    // Allows to cache the position of the realms per provider to avoid scanning the file twice
+    private List<RealmEntry> realmEntries;
+    private ImportCheckpoint checkpoint;
 
-    public SingleFileImportProvider(File file) {
+    /**
+     * @param file    the file to import
+     * @param options the import options
+     */
+    public SingleFileImportProvider(File file, ImportOptions options) {
         this.file = file;
+        this.reader = new RealmFileReader(new FileSource(file.toPath(), options.getMapThreshold(), options.getReadAheadBuffers()), new ObjectMapper());
+        this.options = options;
     }
 
     @Override
     public void importModel(KeycloakSessionFactory factory, Strategy strategy) throws IOException {
         logger.infof("Full importing from file %s", this.file.getAbsolutePath());
 
-        BetterRealmRepresentation masterRealm = getMasterRealm();
-        KeycloakModelUtils.runJobInTransaction(factory, session -> {
-            // Import master realm first, if exists
-            if (masterRealm != null) {
-                importRealm(session, masterRealm, strategy);
+        RealmEntry masterRealm = getMasterRealm();
+        openCheckpoint();
+        if (options.getRealmWorkers() > 1) {
+            importModelInParallel(factory, masterRealm, strategy);
+            deleteCheckpoint();
+            return;
+        }
+        if (options.getUsersPerTransaction() > 0) {
+            importModelInBatches(factory, masterRealm, strategy);
+            deleteCheckpoint();
+            return;
+        }
+        try {
+            Metrics.runJobInTransaction(factory, Metrics.IMPORT, session -> {
+                // Import master realm first, if exists
+                if (masterRealm != null) {
+                    importRealm(session, masterRealm, strategy);
+                }
+                realmEntries.stream().filter(r -> r != masterRealm).forEach(r -> importRealm(session, r, strategy));
+
+                if (masterRealm != null) {
+                    setupMasterAdminManagement(session);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Imports each realm structure in its own transaction, then its users by batches of usersPerTransaction users,
+     * each batch being committed in its own transaction. Batches are imported concurrently by importWorkers threads.
+     */
+    private void importModelInBatches(KeycloakSessionFactory factory, RealmEntry masterRealm, Strategy strategy) throws IOException {
+        if (masterRealm != null) {
+            importRealmInBatches(factory, masterRealm, strategy);
+        }
+        for (RealmEntry entry : realmEntries) {
+            if (entry != masterRealm) {
+                importRealmInBatches(factory, entry, strategy);
+            }
+        }
+        if (masterRealm != null) {
+            KeycloakModelUtils.runJobInTransaction(factory, this::setupMasterAdminManagement);
+        }
+    }
+
+    /**
+     * Imports the master realm first, then the other realms concurrently by realmWorkers threads. Each realm is
+     * imported in its own transaction, or in batches of usersPerTransaction users, so that the failure of a realm
+     * does not prevent the others from being imported. The realms which failed are reported once all realms are done.
+     */
+    private void importModelInParallel(KeycloakSessionFactory factory, RealmEntry masterRealm, Strategy strategy) throws IOException {
+        if (masterRealm != null) {
+            importSingleRealm(factory, masterRealm, strategy);
+        }
+
+        List<RealmEntry> otherRealms = realmEntries.stream().filter(r -> r != masterRealm).collect(Collectors.toList());
+        Map<String, Future<?>> results = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(options.getRealmWorkers(), otherRealms.size())));
+        try {
+            for (RealmEntry entry : otherRealms) {
+                results.put(entry.getName(), executor.submit(() -> {
+                    importSingleRealm(factory, entry, strategy);
+                    return null;
+                }));
+            }
+            executor.shutdown();
+
+            List<String> failedRealms = new ArrayList<>();
+            for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException e) {
+                    logger.errorf(e.getCause(), "Failed to import realm '%s'", result.getKey());
+                    failedRealms.add(result.getKey());
+                }
             }
-            realmReps.stream().filter(r -> r != masterRealm).forEach(r -> importRealm(session, r, strategy));
 
             if (masterRealm != null) {
-                // If master was imported, we may need to re-create realm management clients
-                session.realms().getRealmsStream().filter(r -> r.getMasterAdminClient() == null).forEach(realm -> {
-                    logger.infof("Re-created management client in master realm for realm '%s'", realm.getName());
-                    new RealmManager(session).setupMasterAdminManagement(realm);
-                });
+                KeycloakModelUtils.runJobInTransaction(factory, this::setupMasterAdminManagement);
+            }
+            if (!failedRealms.isEmpty()) {
+                throw new IllegalStateException("Failed to import realms " + failedRealms);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing realms", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void importSingleRealm(KeycloakSessionFactory factory, RealmEntry entry, Strategy strategy) throws IOException {
+        if (options.getUsersPerTransaction() > 0) {
+            importRealmInBatches(factory, entry, strategy);
+            return;
+        }
+        try {
+            Metrics.runJobInTransaction(factory, Metrics.IMPORT, session -> importRealm(session, entry, strategy));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void importRealmInBatches(KeycloakSessionFactory factory, RealmEntry entry, Strategy strategy) throws IOException {
+        Metrics.Operation metrics = Metrics.start(Metrics.IMPORT, entry.getName());
+        try {
+            importRealmInBatches(factory, entry, strategy, metrics);
+        } finally {
+            metrics.finish();
+        }
+    }
+
+    private void importRealmInBatches(KeycloakSessionFactory factory, RealmEntry entry, Strategy strategy, Metrics.Operation metrics) throws IOException {
+        if (checkpoint != null && checkpoint.isCompleted(entry.getName())) {
+            logger.infof("Realm '%s' was imported by a previous run, skipped", entry.getName());
+            return;
+        }
+        long start = System.nanoTime();
+        BetterRealmRepresentation realmRep = reader.readRealm(entry);
+        metrics.record("parse", start);
+
+        String realmId = getResumedRealmId(factory, realmRep.getRealm());
+        UserImporter importer = ImportExportUtils::importUser;
+        UserImporter federatedImporter = RepresentationToModel::importFederatedUser;
+        if (realmId != null) {
+            logger.infof("Resuming the import of realm '%s' after %d users", realmRep.getRealm(), checkpoint.getUsers(realmRep.getRealm()));
+            importer = ImportExportUtils::importMissingUser;
+            federatedImporter = ImportExportUtils::importMissingFederatedUser;
+        } else {
+            String existingRealmId = isMerged(strategy) ? KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                RealmModel realm = session.realms().getRealmByName(realmRep.getRealm());
+                return realm == null ? null : realm.getId();
+            }) : null;
+            if (existingRealmId != null) {
+                mergeRealmInBatches(factory, entry, realmRep, existingRealmId, metrics);
+                if (checkpoint != null) {
+                    checkpoint.realmCompleted(realmRep.getRealm());
+                }
+                return;
+            }
+
+            start = System.nanoTime();
+            realmId = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+                RealmModel realm = ImportExportUtils.importRealm(session, null, realmRep, strategy, true);
+                return realm == null ? null : realm.getId();
+            });
+            metrics.record("realm", start);
+            if (realmId == null) {
+                return;
+            }
+            if (checkpoint != null) {
+                checkpoint.realmImported(realmRep.getRealm(), realmId);
+            }
+        }
+
+        start = System.nanoTime();
+        int usersCount = importUsersInBatches(factory, realmId, entry, importer, metrics);
+        try (UserBatchImporter federatedUsers = newBatchImporter(factory, realmId, federatedImporter)) {
+            federatedUsers.setMetrics(metrics);
+            long skip = 0;
+            if (checkpoint != null) {
+                skip = checkpoint.getFederatedUsers(entry.getName());
+                federatedUsers.setCommitListener(checkpoint.trackFederatedUsers(entry.getName()));
             }
+            reader.readFederatedUsers(entry, skip, federatedUsers::add);
+            federatedUsers.finish();
+        }
+        metrics.record("users", start);
+
+        start = System.nanoTime();
+        KeycloakModelUtils.runJobInTransaction(factory, session ->
+                new RealmManager(session).setupClientServiceAccountsAndAuthorizationOnImport(realmRep, false));
+        metrics.record("setup", start);
+        if (checkpoint != null) {
+            checkpoint.realmCompleted(realmRep.getRealm());
+        }
+        logger.infof("Realm '%s' imported with %d users", realmRep.getRealm(), usersCount);
+    }
+
+    /**
+     * @return the id of the realm if its structure was committed by a previous run which did not complete, and the
+     * realm still exists, null otherwise
+     */
+    private String getResumedRealmId(KeycloakSessionFactory factory, String realmName) {
+        String realmId = checkpoint == null ? null : checkpoint.getRealmId(realmName);
+        if (realmId == null) {
+            return null;
+        }
+        boolean exists = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> session.realms().getRealm(realmId) != null);
+        return exists ? realmId : null;
+    }
+
+    private void mergeRealmInBatches(KeycloakSessionFactory factory, RealmEntry entry, BetterRealmRepresentation realmRep, String realmId,
+                                     Metrics.Operation metrics) throws IOException {
+        long start = System.nanoTime();
+        List<ClientRepresentation> createdClients = KeycloakModelUtils.runJobInTransactionWithResult(factory, session ->
+                MergeUtils.mergeRealm(session, session.realms().getRealm(realmId), realmRep));
+        metrics.record("realm", start);
+
+        start = System.nanoTime();
+        int usersCount = importUsersInBatches(factory, realmId, entry, MergeUtils::mergeUser, metrics);
+        metrics.record("users", start);
+        int removedCount = 0;
+        if (entry.getUserIdsOffset() >= 0) {
+            Set<String> userIds = new HashSet<>();
+            reader.readUserIds(entry, userIds::add);
+            List<String> removed = MergeUtils.findRemovedUsers(factory, realmId, userIds, options.getUsersPerTransaction());
+            try (UserBatchImporter removals = newBatchImporter(factory, realmId, MergeUtils::removeUser)) {
+                for (String userId : removed) {
+                    UserRepresentation userRep = new UserRepresentation();
+                    userRep.setId(userId);
+                    removals.add(userRep);
+                }
+                removals.finish();
+                removedCount = removals.getImportedCount();
+            }
+        }
+
+        KeycloakModelUtils.runJobInTransaction(factory, session ->
+                MergeUtils.setupCreatedClients(session, realmRep.getRealm(), createdClients));
+        logger.infof("Realm '%s' merged with %d users, %d users removed", realmRep.getRealm(), usersCount, removedCount);
+    }
+
+    private int importUsersInBatches(KeycloakSessionFactory factory, String realmId, RealmEntry entry, UserImporter importer,
+                                     Metrics.Operation metrics) throws IOException {
+        try (UserBatchImporter users = newBatchImporter(factory, realmId, importer)) {
+            users.setMetrics(metrics);
+            long skip = 0;
+            if (checkpoint != null) {
+                skip = checkpoint.getUsers(entry.getName());
+                users.setCommitListener(checkpoint.trackUsers(entry.getName()));
+            }
+            reader.readUsers(entry, skip, users::add);
+            users.finish();
+            metrics.addUsers(users.getImportedCount());
+            return users.getImportedCount();
+        }
+    }
+
+    private UserBatchImporter newBatchImporter(KeycloakSessionFactory factory, String realmId, UserImporter importer) {
+        return new UserBatchImporter(factory, realmId, options.getUsersPerTransaction(), options.getImportWorkers(), importer);
+    }
+
+    private boolean isMerged(Strategy strategy) {
+        return options.isMergeExisting() && strategy == Strategy.OVERWRITE_EXISTING;
+    }
+
+    private void setupMasterAdminManagement(KeycloakSession session) {
+        // If master was imported, we may need to re-create realm management clients
+        session.realms().getRealmsStream().filter(r -> r.getMasterAdminClient() == null).forEach(realm -> {
+            logger.infof("Re-created management client in master realm for realm '%s'", realm.getName());
+            new RealmManager(session).setupMasterAdminManagement(realm);
         });
     }
 
     @Override
     public void importRealm(KeycloakSessionFactory factory, String realmName, Strategy strategy) throws IOException {
-        // import just that single realm in case that file contains many realms?
-        importModel(factory, strategy);
+        logger.infof("Importing realm '%s' from file %s", realmName, this.file.getAbsolutePath());
+
+        // Only the realms located before the requested one are scanned, and they are never deserialized
+        RealmEntry entry = reader.find(realmName);
+        if (entry == null) {
+            throw new IllegalArgumentException("Realm '" + realmName + "' not found in file " + this.file.getAbsolutePath());
+        }
+        openCheckpoint();
+        importSingleRealm(factory, entry, strategy);
+        if (Config.getAdminRealm().equals(realmName)) {
+            KeycloakModelUtils.runJobInTransaction(factory, this::setupMasterAdminManagement);
+        }
+        deleteCheckpoint();
     }
 
     @Override
@@ -68,48 +340,102 @@ public class SingleFileImportProvider implements ImportProvider {
 
     @Override
     public void close() {
-        // Nothing to close
+        try {
+            reader.close();
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to release the content of file %s", file.getAbsolutePath());
+        }
     }
 
-    private void importRealm(KeycloakSession session, BetterRealmRepresentation realm, Strategy strategy) {
-        ImportExportUtils.importRealm(session, null, realm, strategy, false);
+    /**
+     * Imports the realm without its users first, then streams the users from the file.
+     * As in Keycloak's directory import, service accounts and authorization settings are set up last
+     * because they may reference users.
+     */
+    private void importRealm(KeycloakSession session, RealmEntry entry, Strategy strategy) {
+        Metrics.Operation metrics = Metrics.start(Metrics.IMPORT, entry.getName());
+        try {
+            long start = System.nanoTime();
+            BetterRealmRepresentation realmRep = reader.readRealm(entry);
+            metrics.record("parse", start);
+            RealmModel existingRealm = isMerged(strategy) ? session.realms().getRealmByName(realmRep.getRealm()) : null;
+            if (existingRealm != null) {
+                mergeRealm(session, entry, realmRep, existingRealm, metrics);
+                return;
+            }
+            start = System.nanoTime();
+            RealmModel realm = ImportExportUtils.importRealm(session, null, realmRep, strategy, true);
+            metrics.record("realm", start);
+            if (realm == null) {
+                return;
+            }
+            start = System.nanoTime();
+            reader.readUsers(entry, userRep -> {
+                ImportExportUtils.importUser(session, realm, userRep);
+                metrics.addUsers(1);
+            });
+            reader.readFederatedUsers(entry, userRep -> RepresentationToModel.importFederatedUser(session, realm, userRep));
+            metrics.record("users", start);
+            start = System.nanoTime();
+            new RealmManager(session).setupClientServiceAccountsAndAuthorizationOnImport(realmRep, false);
+            metrics.record("setup", start);
+            logger.infof("Realm '%s' imported", realm.getName());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.finish();
+        }
     }
 
-    private BetterRealmRepresentation getMasterRealm() throws IOException {
-        checkRealmReps();
-        return realmReps.stream().filter(r -> Config.getAdminRealm().equals(r.getRealm())).findFirst().orElse(null);
+    private void mergeRealm(KeycloakSession session, RealmEntry entry, BetterRealmRepresentation realmRep, RealmModel realm,
+                            Metrics.Operation metrics) throws IOException {
+        long start = System.nanoTime();
+        List<ClientRepresentation> createdClients = MergeUtils.mergeRealm(session, realm, realmRep);
+        metrics.record("realm", start);
+        start = System.nanoTime();
+        reader.readUsers(entry, userRep -> {
+            MergeUtils.mergeUser(session, realm, userRep);
+            metrics.addUsers(1);
+        });
+        metrics.record("users", start);
+        if (entry.getUserIdsOffset() >= 0) {
+            Set<String> userIds = new HashSet<>();
+            reader.readUserIds(entry, userIds::add);
+            logger.infof("%d users removed from realm '%s'", MergeUtils.removeUsers(session, realm, userIds), realm.getName());
+        }
+        MergeUtils.setupCreatedClients(session, realm.getName(), createdClients);
     }
 
-    private void checkRealmReps() throws IOException {
-        if (realmReps == null) {
-            try (InputStream is = new FileInputStream(file)) {
-                realmReps = getObjectsFromStream(new ObjectMapper(), is, BetterRealmRepresentation.class);
-            }
+    /**
+     * Loads the checkpoint of a previous run, when enabled. Checkpoints require users to be imported in batches.
+     */
+    private void openCheckpoint() throws IOException {
+        if (options.getCheckpointFile() == null || checkpoint != null) {
+            return;
         }
+        if (options.getUsersPerTransaction() <= 0) {
+            logger.warn("The checkpoint file is ignored, as it requires the usersPerTransaction property");
+            return;
+        }
+        checkpoint = ImportCheckpoint.open(Paths.get(options.getCheckpointFile()), file.toPath());
     }
 
-    private static <T> List<T> getObjectsFromStream(ObjectMapper mapper, InputStream is, Class<T> clazz) throws IOException {
-        List<T> result = new ArrayList<>();
-        JsonFactory factory = mapper.getFactory();
-        try (JsonParser parser = factory.createParser(is)) {
-            parser.nextToken();
+    private void deleteCheckpoint() {
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+    }
 
-            if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
-                // Case with more realms in stream
-                parser.nextToken();
+    private RealmEntry getMasterRealm() throws IOException {
+        checkRealmEntries();
+        return realmEntries.stream().filter(r -> Config.getAdminRealm().equals(r.getName())).findFirst().orElse(null);
+    }
 
-                while (parser.getCurrentToken() == JsonToken.START_OBJECT) {
-                    T realmRep = parser.readValueAs(clazz);
-                    parser.nextToken();
-                    result.add(realmRep);
-                }
-            } else if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
-                // Case with single realm in stream
-                T realmRep = parser.readValueAs(clazz);
-                result.add(realmRep);
-            }
+    private void checkRealmEntries() throws IOException {
+        if (realmEntries == null) {
+            long start = System.nanoTime();
+            realmEntries = reader.scan();
+            Metrics.record(Metrics.IMPORT, "scan", start);
         }
-
-        return result;
     }
 }
@@ -12,6 +12,8 @@ import java.io.File;
 public class SingleFileImportProviderFactory implements ImportProviderFactory {
     private static final String ID = "ctSingleFile";
 
+    private ImportOptions options;
+
     @Override
     public String getId() {
         return ID;
@@ -23,12 +25,12 @@ public class SingleFileImportProviderFactory implements ImportProviderFactory {
         if (fileName == null) {
             throw new IllegalArgumentException("Property " + ExportImportConfig.FILE + " needs to be provided!");
         }
-        return new SingleFileImportProvider(new File(fileName));
+        return new SingleFileImportProvider(new File(fileName), options);
     }
 
     @Override
     public void init(Scope config) {
-        // Nothing to init
+        options = ImportOptions.fromConfig(config);
     }
 
     @Override
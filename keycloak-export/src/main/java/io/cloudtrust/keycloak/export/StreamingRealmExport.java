@@ -0,0 +1,414 @@
+package io.cloudtrust.keycloak.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.json.CborSerialization;
+import org.jboss.logging.Logger;
+import org.keycloak.exportimport.util.ExportOptions;
+import org.keycloak.exportimport.util.ExportUtils;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Writes a full realm export directly to the response stream.
+ * The realm without its users is written first, then the users are loaded page by page, each page in its own
+ * transaction, so that neither the representations nor the persistence context grow with the size of the realm.
+ * Pages are ranges of usernames, and of ids for federated users, read with the keyset cursor of {@link UserQueries}:
+ * a user created or removed during the export may or may not be exported, but does not shift the other pages, so that
+ * the other users are exported exactly once.
+ * <p>
+ * When a date is given with {@link #setSince(Long)}, only the users created or having a credential created after
+ * that date are exported, and the ids of all the users of the realm are written in the userIds field so that
+ * removed users can be detected. The ids are collected from the same pages, in the same transactions, as the users,
+ * and kept in memory until they are written after the users. Federated users are not exported in that case.
+ * <p>
+ * With more than one worker ({@link #setWorkers(int)}), pages of users are loaded and serialized concurrently, each
+ * worker using its own session, into buffers which are then written to the response by the calling thread. The
+ * calling thread finds the range of usernames of each page before handing it to a worker, so that concurrent pages
+ * never overlap. Pages are written in the order of the users unless {@link #setOrdered(boolean)} allows writing them
+ * as they are ready.
+ * At most two pages per worker are loaded or waiting to be written.
+ * <p>
+ * With a throttle ({@link #setThrottle(ExportThrottle)}), each page of users, user ids or federated users waits for
+ * the throttle before being read. Pages are loaded in memory and only written to the response once the throttle and
+ * the transaction are released, so that a slow client does not hold them.
+ */
+public class StreamingRealmExport implements StreamingOutput {
+    private static final Logger logger = Logger.getLogger(StreamingRealmExport.class);
+
+    private static final ObjectMapper mapper = JsonSerialization.mapper.copy()
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    static {
+        mapper.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final int usersPageSize;
+    private Long since;
+    private boolean cbor;
+    private Metrics.Operation metrics;
+    private int workers = 1;
+    private boolean ordered = true;
+    private ExportThrottle throttle;
+    private final AtomicInteger exportedUsers = new AtomicInteger();
+    private final AtomicInteger processedUsers = new AtomicInteger();
+
+    public StreamingRealmExport(KeycloakSessionFactory sessionFactory, String realmId, int usersPageSize) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.usersPageSize = usersPageSize;
+    }
+
+    /**
+     * @param since only export the users changed after this date, in milliseconds since epoch, or null for a full export
+     */
+    public void setSince(Long since) {
+        this.since = since;
+    }
+
+    /**
+     * @param cbor true to write the export in CBOR instead of JSON
+     */
+    public void setCbor(boolean cbor) {
+        this.cbor = cbor;
+    }
+
+    /**
+     * @param metrics the operation recording the time spent in each phase of the export, can be null
+     */
+    public void setMetrics(Metrics.Operation metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param workers the number of threads loading and serializing the pages of users
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @param ordered false to write the pages of users as soon as they are ready, rather than in order, when
+     *                several workers are used
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @param throttle the throttle limiting the pages read, can be null
+     */
+    public void setThrottle(ExportThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return the number of users written so far, can be read while the export is running
+     */
+    public int getExportedUsers() {
+        return exportedUsers.get();
+    }
+
+    /**
+     * @return the number of users read so far, exported or not, can be read while the export is running
+     */
+    public int getProcessedUsers() {
+        return processedUsers.get();
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        JsonFactory factory = cbor ? CborSerialization.mapper.getFactory() : mapper.getFactory();
+        try (JsonGenerator generator = factory.createGenerator(output)) {
+            generator.writeStartObject();
+            long start = System.nanoTime();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> writeRealm(session, generator));
+            record("skeleton", start);
+
+            start = System.nanoTime();
+            TokenBuffer userIds = since == null ? null : new TokenBuffer(mapper, false);
+            generator.writeArrayFieldStart("users");
+            writeAllUsers(generator, userIds);
+            generator.writeEndArray();
+            record("users", start);
+
+            if (userIds != null) {
+                start = System.nanoTime();
+                generator.writeArrayFieldStart(BetterRealmRepresentation.USER_IDS);
+                userIds.serialize(generator);
+                generator.writeEndArray();
+                record("userIds", start);
+            }
+
+            if (since == null) {
+                start = System.nanoTime();
+                generator.writeArrayFieldStart("federatedUsers");
+                writePages(generator, this::getFederatedUserIdAfter, this::writeFederatedUsers);
+                generator.writeEndArray();
+                record("federatedUsers", start);
+            }
+
+            generator.writeEndObject();
+            logger.infof("Exported realm %s with %d of its %d users", realmId, exportedUsers.get(), processedUsers.get());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void record(String phase, long start) {
+        if (metrics != null) {
+            metrics.record(phase, start);
+        }
+    }
+
+    /**
+     * Writes all the pages of users, with one or several workers
+     *
+     * @param userIds the buffer of the user ids, null for a full export
+     */
+    void writeAllUsers(JsonGenerator generator, TokenBuffer userIds) throws IOException {
+        if (workers > 1) {
+            writeUsersInParallel(generator, userIds);
+        } else {
+            writePages(generator, this::getUsernameAfter,
+                    (session, realm, pageGenerator, after, last) -> writeUsers(session, realm, pageGenerator, userIds, after, last));
+        }
+    }
+
+    /**
+     * Writes the pages one after the other, each page being the range of keys up to the key found at the page size
+     */
+    private void writePages(JsonGenerator generator, KeyFinder keyFinder, PageWriter pageWriter) throws IOException {
+        String after = null;
+        do {
+            final String pageAfter = after;
+            // Loaded in a buffer, so that neither the transaction nor the throttle wait for the client
+            TokenBuffer page = new TokenBuffer(mapper, false);
+            after = throttled(() -> KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                String last = keyFinder.find(session, realm, pageAfter, usersPageSize);
+                try {
+                    pageWriter.write(session, realm, page, pageAfter, last);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return last;
+            }));
+            page.serialize(generator);
+            generator.flush();
+        } while (after != null);
+    }
+
+    private void writeRealm(KeycloakSession session, JsonGenerator generator) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        RealmRepresentation realmRep = ExportUtils.exportRealm(session, realm, false, true);
+        ObjectNode realmNode = mapper.valueToTree(realmRep);
+        realmNode.remove("users");
+        realmNode.remove("federatedUsers");
+        try {
+            Iterator<Map.Entry<String, JsonNode>> fields = realmNode.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                generator.writeFieldName(field.getKey());
+                mapper.writeTree(generator, field.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param after    the username before the page, excluded, or null for the first page
+     * @param position the position of the username in the page, from 1
+     * @return the username at the position, or null if there are fewer users
+     */
+    String getUsernameAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        return UserQueries.getUsernameAfter(session, realm, after, position);
+    }
+
+    /**
+     * Writes a page of users and, for incremental exports, the ids of all the users of the page
+     *
+     * @param userIds the generator of the user ids, null for a full export
+     * @param after   the username before the page, excluded, or null for the first page
+     * @param last    the last username of the page, included, or null for the last page
+     * @return the number of users read
+     */
+    int writeUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, JsonGenerator userIds, String after, String last) throws IOException {
+        List<UserModel> exported;
+        int read;
+        if (since == null) {
+            exported = UserQueries.getUsers(session, realm, after, last);
+            read = exported.size();
+        } else {
+            // Only the ids of the unchanged users are read, the changed users being selected by the database
+            List<String> ids = UserQueries.getUserIds(session, realm, after, last);
+            for (String id : ids) {
+                userIds.writeString(id);
+            }
+            exported = UserQueries.getUsersChangedSince(session, realm, after, last, since);
+            read = ids.size();
+        }
+        for (UserRepresentation userRep : ImportExportUtils.exportUsers(session, realm, exported)) {
+            mapper.writeValue(generator, userRep);
+        }
+        exportedUsers.addAndGet(exported.size());
+        if (metrics != null) {
+            metrics.addUsers(exported.size());
+        }
+        processedUsers.addAndGet(read);
+        return read;
+    }
+
+    /**
+     * Loads and serializes the pages of users with several workers, and writes them from the calling thread.
+     * The calling thread finds the range of each page before submitting it, with a query on the usernames only, so
+     * that the pages neither overlap nor depend on the pages loaded before them.
+     */
+    private void writeUsersInParallel(JsonGenerator generator, TokenBuffer userIds) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        CompletionService<UsersPage> pages = new ExecutorCompletionService<>(executor);
+        Map<Integer, UsersPage> readyPages = new HashMap<>();
+        int nextPage = 0;
+        int nextWrittenPage = 0;
+        int inFlight = 0;
+        boolean more = true;
+        String after = null;
+        try {
+            while (true) {
+                // Pages waiting for an earlier one count as in flight, so that a slow page does not let the others pile up
+                while (more && inFlight + readyPages.size() < 2 * workers) {
+                    int index = nextPage++;
+                    String pageAfter = after;
+                    String last = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                            getUsernameAfter(session, session.realms().getRealm(realmId), pageAfter, usersPageSize));
+                    pages.submit(() -> loadUsersPage(index, pageAfter, last));
+                    inFlight++;
+                    more = last != null;
+                    after = last;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+                UsersPage page = pages.take().get();
+                inFlight--;
+                if (!ordered) {
+                    writePage(generator, userIds, page);
+                    continue;
+                }
+                readyPages.put(page.index, page);
+                while ((page = readyPages.remove(nextWrittenPage)) != null) {
+                    writePage(generator, userIds, page);
+                    nextWrittenPage++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting users", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to export users", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void writePage(JsonGenerator generator, TokenBuffer userIds, UsersPage page) throws IOException {
+        page.buffer.serialize(generator);
+        generator.flush();
+        if (userIds != null) {
+            page.userIds.serialize(userIds);
+        }
+    }
+
+    /**
+     * @param after the username before the page, excluded, or null for the first page
+     * @param last  the last username of the page, included, or null for the last page
+     */
+    private UsersPage loadUsersPage(int index, String after, String last) {
+        return throttled(() -> KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            TokenBuffer buffer = new TokenBuffer(mapper, false);
+            TokenBuffer userIds = since == null ? null : new TokenBuffer(mapper, false);
+            try {
+                writeUsers(session, realm, buffer, userIds, after, last);
+                return new UsersPage(index, buffer, userIds);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+    }
+
+    private <T> T throttled(Supplier<T> query) {
+        return throttle == null ? query.get() : throttle.run(usersPageSize, metrics, query);
+    }
+
+    private String getFederatedUserIdAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        return UserQueries.getFederatedUserIdAfter(session, realm, after, position);
+    }
+
+    private void writeFederatedUsers(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException {
+        ExportOptions options = new ExportOptions(true, true, true, false);
+        for (String userId : UserQueries.getFederatedUserIds(session, realm, after, last)) {
+            mapper.writeValue(generator, ExportUtils.exportFederatedUser(session, realm, userId, options));
+        }
+    }
+
+    private static class UsersPage {
+        private final int index;
+        private final TokenBuffer buffer;
+        private final TokenBuffer userIds;
+
+        UsersPage(int index, TokenBuffer buffer, TokenBuffer userIds) {
+            this.index = index;
+            this.buffer = buffer;
+            this.userIds = userIds;
+        }
+    }
+
+    @FunctionalInterface
+    private interface KeyFinder {
+        String find(KeycloakSession session, RealmModel realm, String after, int position);
+    }
+
+    @FunctionalInterface
+    private interface PageWriter {
+        void write(KeycloakSession session, RealmModel realm, JsonGenerator generator, String after, String last) throws IOException;
+    }
+}
@@ -0,0 +1,255 @@
+package io.cloudtrust.keycloak.export;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Groups users in batches and imports each batch in its own transaction.
+ * <p>
+ * With more than one worker, batches are imported concurrently, each worker using its own session. At most two
+ * batches per worker are waiting or being imported, so the reader is blocked rather than filling the memory.
+ * Users of a batch are imported in file order, but batches may be committed in any order.
+ * <p>
+ * A batch which fails with a technical error is rolled back and retried up to {@link #MAX_RETRIES} times.
+ * Model errors (duplicates, password policy...) are not retried. Once a batch has failed, no new batch is started,
+ * the batches in progress are completed and the error is thrown by {@link #finish()}. Batches committed before
+ * the failure are kept in the database.
+ * <p>
+ * When a {@link UserImportListener} is given, a batch failing with a model error is imported again one user per
+ * transaction instead, and the users which still fail are reported to the listener without stopping the import.
+ */
+class UserBatchImporter implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(UserBatchImporter.class);
+
+    static final int MAX_RETRIES = 2;
+
+    private final KeycloakSessionFactory factory;
+    private final String realmId;
+    private final int batchSize;
+    private final UserImporter importer;
+    private final UserImportListener listener;
+    private Metrics.Operation metrics;
+    private BatchCommitListener commitListener;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private final AtomicInteger importedCount = new AtomicInteger();
+    private List<UserRepresentation> batch;
+    private long flushedCount;
+
+    UserBatchImporter(KeycloakSessionFactory factory, String realmId, int batchSize, int workers, UserImporter importer) {
+        this(factory, realmId, batchSize, workers, importer, null);
+    }
+
+    UserBatchImporter(KeycloakSessionFactory factory, String realmId, int batchSize, int workers, UserImporter importer,
+                      UserImportListener listener) {
+        this.factory = factory;
+        this.realmId = realmId;
+        this.batchSize = batchSize;
+        this.importer = importer;
+        this.listener = listener;
+        this.batch = new ArrayList<>(batchSize);
+        if (workers > 1) {
+            this.executor = Executors.newFixedThreadPool(workers);
+            this.inFlight = new Semaphore(2 * workers);
+        } else {
+            this.executor = null;
+            this.inFlight = null;
+        }
+    }
+
+    /**
+     * @param metrics the operation recording the commits of the batches, can be null
+     */
+    void setMetrics(Metrics.Operation metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param commitListener called after each batch is committed, can be null
+     */
+    void setCommitListener(BatchCommitListener commitListener) {
+        this.commitListener = commitListener;
+    }
+
+    void add(UserRepresentation userRep) {
+        batch.add(userRep);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Imports the pending users and waits for all batches to be committed
+     *
+     * @throws RuntimeException the error of the first failed batch
+     */
+    void finish() {
+        flush();
+        awaitWorkers();
+        throwFailure();
+    }
+
+    int getImportedCount() {
+        return importedCount.get();
+    }
+
+    /**
+     * Releases the workers. Batches in progress are completed but pending ones are not imported.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            failure.compareAndSet(null, new IllegalStateException("Import aborted"));
+            executor.shutdown();
+        }
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<UserRepresentation> users = batch;
+        long first = flushedCount;
+        flushedCount += users.size();
+        batch = new ArrayList<>(batchSize);
+        if (executor == null) {
+            importBatch(first, users);
+            return;
+        }
+
+        if (failure.get() != null) {
+            // Stop reading the file as soon as a batch failed
+            awaitWorkers();
+            throwFailure();
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing users", e);
+        }
+        executor.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    importBatch(first, users);
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void awaitWorkers() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.infof("%d users imported in realm %s, waiting for remaining batches", importedCount.get(), realmId);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing users", e);
+        }
+    }
+
+    private void throwFailure() {
+        RuntimeException error = failure.get();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void importBatch(long first, List<UserRepresentation> users) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Metrics.runJobInTransaction(factory, metrics, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    users.forEach(userRep -> importer.importUser(session, realm, userRep));
+                });
+                logger.debugf("%d users imported in realm %s", importedCount.addAndGet(users.size()), realmId);
+                if (listener != null) {
+                    listener.usersImported(users.size());
+                }
+                batchCommitted(first, users.size());
+                return;
+            } catch (ModelException e) {
+                if (listener == null) {
+                    throw e;
+                }
+                importEachUser(users);
+                batchCommitted(first, users.size());
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                logger.warnf(e, "Failed to import a batch of %d users in realm %s, retrying", users.size(), realmId);
+            }
+        }
+    }
+
+    private void batchCommitted(long first, int size) {
+        if (commitListener != null) {
+            commitListener.batchCommitted(first, size);
+        }
+    }
+
+    private void importEachUser(List<UserRepresentation> users) {
+        logger.debugf("Importing a batch of %d users one by one in realm %s", users.size(), realmId);
+        for (UserRepresentation userRep : users) {
+            try {
+                Metrics.runJobInTransaction(factory, metrics, session ->
+                        importer.importUser(session, session.realms().getRealm(realmId), userRep));
+                importedCount.incrementAndGet();
+                listener.usersImported(1);
+            } catch (ModelException e) {
+                listener.userFailed(userRep, e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface UserImporter {
+        void importUser(KeycloakSession session, RealmModel realm, UserRepresentation userRep);
+    }
+
+    /**
+     * Follows the progress of an import, and collects the users which could not be imported
+     */
+    interface UserImportListener {
+        void usersImported(int count);
+
+        void userFailed(UserRepresentation userRep, ModelException error);
+    }
+
+    /**
+     * Follows the batches committed, to record the progress of an import
+     */
+    @FunctionalInterface
+    interface BatchCommitListener {
+        /**
+         * @param first the position of the first user of the batch among the users added to the importer
+         * @param size  the number of users of the batch
+         */
+        void batchCommitted(long first, int size);
+    }
+}
@@ -0,0 +1,353 @@
+package io.cloudtrust.keycloak.export;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.JpaUserProvider;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.jpa.JpaUserFederatedStorageProvider;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Queries on the users of a realm which the user storage SPI only offers one user at a time.
+ * <p>
+ * When the users are stored by the JPA user provider, the queries run directly on its entities. Otherwise, or for the
+ * users of a user storage provider, they fall back to the SPI.
+ * <p>
+ * Users are read by ranges of usernames, and federated users by ranges of ids, with a keyset cursor: unlike a page
+ * read with an offset, the cost of a page does not grow with its position, and users created or removed before the
+ * position do not shift the following pages, so that a user is never read twice nor skipped.
+ */
+public class UserQueries {
+    // Stays below the limit of 1000 values in an IN clause of some databases
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final KeyedEntity USERS = new KeyedEntity("UserEntity u", "u", "u.username");
+    private static final KeyedEntity FEDERATED_USERS = new KeyedEntity("FederatedUser f", "f", "f.id");
+
+    private UserQueries() {
+    }
+
+    /**
+     * Loads the stored credentials of several users, ordered by priority as by the credential manager
+     *
+     * @param session the session
+     * @param realm   the realm of the users
+     * @param users   the users
+     * @return the credentials of each user, by user id, with an empty list for the users without credentials
+     */
+    public static Map<String, List<CredentialModel>> getStoredCredentials(KeycloakSession session, RealmModel realm, List<UserModel> users) {
+        Map<String, List<CredentialModel>> credentials = new HashMap<>();
+        EntityManager em = getEntityManager(session);
+        List<String> localIds = new ArrayList<>();
+        for (UserModel user : users) {
+            credentials.put(user.getId(), new ArrayList<>());
+            if (em != null && StorageId.isLocalStorage(user.getId())) {
+                localIds.add(user.getId());
+            } else {
+                credentials.put(user.getId(), session.userCredentialManager().getStoredCredentialsStream(realm, user)
+                        .collect(Collectors.toList()));
+            }
+        }
+        for (int i = 0; i < localIds.size(); i += MAX_IDS_PER_QUERY) {
+            List<String> ids = localIds.subList(i, Math.min(i + MAX_IDS_PER_QUERY, localIds.size()));
+            em.createQuery("select c from CredentialEntity c where c.user.id in :userIds order by c.priority", CredentialEntity.class)
+                    .setParameter("userIds", ids)
+                    .getResultStream()
+                    .forEach(entity -> credentials.get(entity.getUser().getId()).add(toModel(entity)));
+        }
+        return credentials;
+    }
+
+    /**
+     * Loads the users of the realm following a username, in the order of their usernames, service accounts included.
+     * Unlike a page read with an offset, the cost of a page does not grow with its position, and users created or
+     * removed before the position do not shift the following pages.
+     *
+     * @param session  the session
+     * @param realm    the realm of the users
+     * @param username the last username of the previous page, or null for the first page
+     * @param max      the maximum number of users
+     * @return the users
+     */
+    public static List<UserModel> getUsersAfter(KeycloakSession session, RealmModel realm, String username, int max) {
+        EntityManager em = getEntityManager(session);
+        if (em == null) {
+            return getUsersInOrder(session, realm, username, null).limit(max).collect(Collectors.toList());
+        }
+        return createRangeQuery(em, "select u", USERS, null, realm, username, null, UserEntity.class)
+                .setMaxResults(max)
+                .getResultStream()
+                .map(entity -> (UserModel) new UserAdapter(session, realm, em, entity))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Loads the users of the realm whose usernames are in a range, in the order of their usernames, service accounts
+     * included
+     *
+     * @param session the session
+     * @param realm   the realm of the users
+     * @param after   the username before the range, excluded, or null to start from the first user
+     * @param last    the last username of the range, included, or null to read up to the last user
+     * @return the users
+     */
+    public static List<UserModel> getUsers(KeycloakSession session, RealmModel realm, String after, String last) {
+        EntityManager em = getEntityManager(session);
+        if (em == null) {
+            return getUsersInOrder(session, realm, after, last).collect(Collectors.toList());
+        }
+        return createRangeQuery(em, "select u", USERS, null, realm, after, last, UserEntity.class)
+                .getResultStream()
+                .map(entity -> (UserModel) new UserAdapter(session, realm, em, entity))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Lists the ids of the users of the realm whose usernames are in a range, in the order of their usernames. Only the
+     * ids are read.
+     *
+     * @param session the session
+     * @param realm   the realm of the users
+     * @param after   the username before the range, excluded, or null to start from the first user
+     * @param last    the last username of the range, included, or null to read up to the last user
+     * @return the ids of the users
+     */
+    public static List<String> getUserIds(KeycloakSession session, RealmModel realm, String after, String last) {
+        EntityManager em = getEntityManager(session);
+        if (em == null) {
+            return getUsersInOrder(session, realm, after, last).map(UserModel::getId).collect(Collectors.toList());
+        }
+        return createRangeQuery(em, "select u.id", USERS, null, realm, after, last, String.class).getResultList();
+    }
+
+    /**
+     * Loads the users of the realm whose usernames are in a range, and which were created or had a credential created
+     * after a date. The date is compared by the database, so that unchanged users are not loaded.
+     *
+     * @param session the session
+     * @param realm   the realm of the users
+     * @param after   the username before the range, excluded, or null to start from the first user
+     * @param last    the last username of the range, included, or null to read up to the last user
+     * @param since   the date, in milliseconds since epoch
+     * @return the changed users, in the order of their usernames
+     */
+    public static List<UserModel> getUsersChangedSince(KeycloakSession session, RealmModel realm, String after, String last, long since) {
+        EntityManager em = getEntityManager(session);
+        if (em == null) {
+            return getUsersInOrder(session, realm, after, last)
+                    .filter(user -> isChangedSince(session, realm, user, since))
+                    .collect(Collectors.toList());
+        }
+        return createRangeQuery(em, "select u", USERS, "(u.createdTimestamp > :since"
+                + " or exists (select c.id from CredentialEntity c where c.user = u and c.createdDate > :since))", realm, after, last, UserEntity.class)
+                .setParameter("since", since)
+                .getResultStream()
+                .map(entity -> (UserModel) new UserAdapter(session, realm, em, entity))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the username ending a page of users, so that pages can be read as ranges of usernames. Only the usernames
+     * are read.
+     *
+     * @param session  the session
+     * @param realm    the realm of the users
+     * @param after    the username before the page, excluded, or null to start from the first user
+     * @param position the position of the username in the page, from 1
+     * @return the username at the position, or null if there are fewer users after the given username
+     */
+    public static String getUsernameAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        EntityManager em = getEntityManager(session);
+        if (em == null) {
+            return getUsersInOrder(session, realm, after, null).skip(position - 1L).findFirst().map(UserModel::getUsername).orElse(null);
+        }
+        return createRangeQuery(em, "select u.username", USERS, null, realm, after, null, String.class)
+                .setFirstResult(position - 1)
+                .setMaxResults(1)
+                .getResultStream()
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Lists the ids of the federated users of the realm in a range, in order
+     *
+     * @param session the session
+     * @param realm   the realm of the users
+     * @param after   the id before the range, excluded, or null to start from the first federated user
+     * @param last    the last id of the range, included, or null to read up to the last federated user
+     * @return the ids of the federated users
+     */
+    public static List<String> getFederatedUserIds(KeycloakSession session, RealmModel realm, String after, String last) {
+        EntityManager em = getFederatedEntityManager(session);
+        if (em == null) {
+            return getFederatedUserIdsInOrder(session, realm, after, last).collect(Collectors.toList());
+        }
+        return createRangeQuery(em, "select f.id", FEDERATED_USERS, null, realm, after, last, String.class).getResultList();
+    }
+
+    /**
+     * Finds the id ending a page of federated users, as {@link #getUsernameAfter} for the users
+     *
+     * @param session  the session
+     * @param realm    the realm of the users
+     * @param after    the id before the page, excluded, or null to start from the first federated user
+     * @param position the position of the id in the page, from 1
+     * @return the id at the position, or null if there are fewer federated users after the given id
+     */
+    public static String getFederatedUserIdAfter(KeycloakSession session, RealmModel realm, String after, int position) {
+        EntityManager em = getFederatedEntityManager(session);
+        if (em == null) {
+            return getFederatedUserIdsInOrder(session, realm, after, null).skip(position - 1L).findFirst().orElse(null);
+        }
+        return createRangeQuery(em, "select f.id", FEDERATED_USERS, null, realm, after, null, String.class)
+                .setFirstResult(position - 1)
+                .setMaxResults(1)
+                .getResultStream()
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Summarizes the users of the realm and their credentials with aggregates read by the database: their numbers and
+     * their last creation dates. The summary changes when a user or a credential is created or removed.
+     *
+     * @param session the session
+     * @param realm   the realm of the users
+     * @return the summary, to be compared with a previous summary of the same realm
+     */
+    public static String getUserStatistics(KeycloakSession session, RealmModel realm) {
+        EntityManager em = getEntityManager(session);
+        if (em == null) {
+            return String.valueOf(session.users().getUsersCount(realm, true));
+        }
+        Object[] users = em.createQuery("select count(u), max(u.createdTimestamp) from UserEntity u where u.realmId = :realmId", Object[].class)
+                .setParameter("realmId", realm.getId())
+                .getSingleResult();
+        Object[] credentials = em.createQuery("select count(c), max(c.createdDate) from CredentialEntity c where c.user.realmId = :realmId", Object[].class)
+                .setParameter("realmId", realm.getId())
+                .getSingleResult();
+        return users[0] + ":" + users[1] + ":" + credentials[0] + ":" + credentials[1];
+    }
+
+    /**
+     * Creates a query on a range of keys, in the order of the keys
+     *
+     * @param select    the select clause
+     * @param entity    the entity, its alias and its key
+     * @param condition an additional condition, or null
+     * @param after     the key before the range, excluded, or null
+     * @param last      the last key of the range, included, or null
+     */
+    private static <T> TypedQuery<T> createRangeQuery(EntityManager em, String select, KeyedEntity entity, String condition,
+                                                      RealmModel realm, String after, String last, Class<T> type) {
+        StringBuilder jpql = new StringBuilder(select).append(" from ").append(entity.from)
+                .append(" where ").append(entity.alias).append(".realmId = :realmId");
+        if (after != null) {
+            jpql.append(" and ").append(entity.key).append(" > :after");
+        }
+        if (last != null) {
+            jpql.append(" and ").append(entity.key).append(" <= :last");
+        }
+        if (condition != null) {
+            jpql.append(" and ").append(condition);
+        }
+        jpql.append(" order by ").append(entity.key);
+        TypedQuery<T> query = em.createQuery(jpql.toString(), type).setParameter("realmId", realm.getId());
+        if (after != null) {
+            query.setParameter("after", after);
+        }
+        if (last != null) {
+            query.setParameter("last", last);
+        }
+        return query;
+    }
+
+    /**
+     * Without the JPA entities, the users are all read and sorted to find the range
+     */
+    private static Stream<UserModel> getUsersInOrder(KeycloakSession session, RealmModel realm, String after, String last) {
+        return session.users().getUsersStream(realm, true)
+                .filter(user -> isInRange(user.getUsername(), after, last))
+                .sorted(Comparator.comparing(UserModel::getUsername));
+    }
+
+    private static Stream<String> getFederatedUserIdsInOrder(KeycloakSession session, RealmModel realm, String after, String last) {
+        return session.userFederatedStorage().getStoredUsersStream(realm, 0, -1)
+                .filter(id -> isInRange(id, after, last))
+                .sorted();
+    }
+
+    private static boolean isChangedSince(KeycloakSession session, RealmModel realm, UserModel user, long since) {
+        Long createdTimestamp = user.getCreatedTimestamp();
+        if (createdTimestamp != null && createdTimestamp > since) {
+            return true;
+        }
+        return session.userCredentialManager().getStoredCredentialsStream(realm, user)
+                .anyMatch(cred -> cred.getCreatedDate() != null && cred.getCreatedDate() > since);
+    }
+
+    private static boolean isInRange(String key, String after, String last) {
+        return (after == null || key.compareTo(after) > 0) && (last == null || key.compareTo(last) <= 0);
+    }
+
+    /**
+     * @return the entity manager of the JPA user provider, or null if the users are stored by another provider
+     */
+    private static EntityManager getEntityManager(KeycloakSession session) {
+        if (!(session.userLocalStorage() instanceof JpaUserProvider)) {
+            return null;
+        }
+        JpaConnectionProvider connection = session.getProvider(JpaConnectionProvider.class);
+        return connection == null ? null : connection.getEntityManager();
+    }
+
+    /**
+     * @return the entity manager of the JPA federated user storage, or null if another provider stores federated users
+     */
+    private static EntityManager getFederatedEntityManager(KeycloakSession session) {
+        if (!(session.userFederatedStorage() instanceof JpaUserFederatedStorageProvider)) {
+            return null;
+        }
+        JpaConnectionProvider connection = session.getProvider(JpaConnectionProvider.class);
+        return connection == null ? null : connection.getEntityManager();
+    }
+
+    private static CredentialModel toModel(CredentialEntity entity) {
+        CredentialModel model = new CredentialModel();
+        model.setId(entity.getId());
+        model.setType(entity.getType());
+        model.setCreatedDate(entity.getCreatedDate());
+        model.setUserLabel(entity.getUserLabel());
+        model.setSecretData(entity.getSecretData());
+        model.setCredentialData(entity.getCredentialData());
+        return model;
+    }
+
+    private static class KeyedEntity {
+        private final String from;
+        private final String alias;
+        private final String key;
+
+        KeyedEntity(String from, String alias, String key) {
+            this.from = from;
+            this.alias = alias;
+            this.key = key;
+        }
+    }
+}
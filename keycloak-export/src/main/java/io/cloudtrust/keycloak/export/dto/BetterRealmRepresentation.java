@@ -1,5 +1,6 @@
 package io.cloudtrust.keycloak.export.dto;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import io.cloudtrust.keycloak.json.BetterUserDeserializer;
 import org.keycloak.representations.idm.RealmRepresentation;
@@ -8,6 +9,22 @@ import org.keycloak.representations.idm.UserRepresentation;
 import java.util.List;
 
 public class BetterRealmRepresentation extends RealmRepresentation {
+    public static final String USER_IDS = "userIds";
+
+    /**
+     * Ids of all the users of the realm, only present in incremental exports
+     */
+    @JsonProperty(USER_IDS)
+    protected List<String> userIds;
+
+    public List<String> getUserIds() {
+        return userIds;
+    }
+
+    public void setUserIds(List<String> userIds) {
+        this.userIds = userIds;
+    }
+
     @Override
     @JsonDeserialize(using = BetterUserDeserializer.class)
     public void setUsers(List<UserRepresentation> users) {
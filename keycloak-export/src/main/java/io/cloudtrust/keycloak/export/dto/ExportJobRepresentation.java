@@ -0,0 +1,118 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * State and progress of an asynchronous realm export
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ExportJobRepresentation {
+    private String id;
+    private String realm;
+    private String format;
+    private String status;
+    private Long createdTimestamp;
+    private Long startedTimestamp;
+    private Long finishedTimestamp;
+    private Long usersWritten;
+    private Long totalUsers;
+    private Long bytesWritten;
+    private Long etaSeconds;
+    private String error;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(Long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+
+    public Long getStartedTimestamp() {
+        return startedTimestamp;
+    }
+
+    public void setStartedTimestamp(Long startedTimestamp) {
+        this.startedTimestamp = startedTimestamp;
+    }
+
+    public Long getFinishedTimestamp() {
+        return finishedTimestamp;
+    }
+
+    public void setFinishedTimestamp(Long finishedTimestamp) {
+        this.finishedTimestamp = finishedTimestamp;
+    }
+
+    public Long getUsersWritten() {
+        return usersWritten;
+    }
+
+    public void setUsersWritten(Long usersWritten) {
+        this.usersWritten = usersWritten;
+    }
+
+    public Long getTotalUsers() {
+        return totalUsers;
+    }
+
+    public void setTotalUsers(Long totalUsers) {
+        this.totalUsers = totalUsers;
+    }
+
+    public Long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void setBytesWritten(Long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+
+    public Long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    public void setEtaSeconds(Long etaSeconds) {
+        this.etaSeconds = etaSeconds;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
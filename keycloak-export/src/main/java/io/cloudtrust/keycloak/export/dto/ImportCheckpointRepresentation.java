@@ -0,0 +1,61 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content of the checkpoint file of an import: the imported file, and the progress of each of its realms
+ */
+public class ImportCheckpointRepresentation {
+    private String file;
+    private long fileSize;
+    private long fileLastModified;
+    private String manifestsHash;
+    private Map<String, RealmCheckpointRepresentation> realms = new LinkedHashMap<>();
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getFileLastModified() {
+        return fileLastModified;
+    }
+
+    public void setFileLastModified(long fileLastModified) {
+        this.fileLastModified = fileLastModified;
+    }
+
+    /**
+     * @return the hash of the manifests of an imported directory, null for a file
+     */
+    public String getManifestsHash() {
+        return manifestsHash;
+    }
+
+    public void setManifestsHash(String manifestsHash) {
+        this.manifestsHash = manifestsHash;
+    }
+
+    /**
+     * @return the progress of the realms, by realm name
+     */
+    public Map<String, RealmCheckpointRepresentation> getRealms() {
+        return realms;
+    }
+
+    public void setRealms(Map<String, RealmCheckpointRepresentation> realms) {
+        this.realms = realms;
+    }
+}
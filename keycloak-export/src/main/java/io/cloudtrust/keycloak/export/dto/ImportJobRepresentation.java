@@ -0,0 +1,137 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * State and progress of an asynchronous realm import
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportJobRepresentation {
+    private String id;
+    private String realm;
+    private String realmId;
+    private String realmState;
+    private String status;
+    private Long createdTimestamp;
+    private Long startedTimestamp;
+    private Long finishedTimestamp;
+    private Long uploadedBytes;
+    private Long usersImported;
+    private Long usersFailed;
+    private String error;
+    private List<UserImportErrorRepresentation> userErrors;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * @return the id of the imported realm, once its structure is committed
+     */
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    /**
+     * @return IMPORTING while the users of the created realm are imported, COMPLETE once the job completed, or PARTIAL
+     * when the job failed after the realm was created: the realm then lacks some of its users and settings, and has to
+     * be removed before being imported again
+     */
+    public String getRealmState() {
+        return realmState;
+    }
+
+    public void setRealmState(String realmState) {
+        this.realmState = realmState;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(Long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+
+    public Long getStartedTimestamp() {
+        return startedTimestamp;
+    }
+
+    public void setStartedTimestamp(Long startedTimestamp) {
+        this.startedTimestamp = startedTimestamp;
+    }
+
+    public Long getFinishedTimestamp() {
+        return finishedTimestamp;
+    }
+
+    public void setFinishedTimestamp(Long finishedTimestamp) {
+        this.finishedTimestamp = finishedTimestamp;
+    }
+
+    public Long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public void setUploadedBytes(Long uploadedBytes) {
+        this.uploadedBytes = uploadedBytes;
+    }
+
+    public Long getUsersImported() {
+        return usersImported;
+    }
+
+    public void setUsersImported(Long usersImported) {
+        this.usersImported = usersImported;
+    }
+
+    public Long getUsersFailed() {
+        return usersFailed;
+    }
+
+    public void setUsersFailed(Long usersFailed) {
+        this.usersFailed = usersFailed;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public List<UserImportErrorRepresentation> getUserErrors() {
+        return userErrors;
+    }
+
+    public void setUserErrors(List<UserImportErrorRepresentation> userErrors) {
+        this.userErrors = userErrors;
+    }
+}
@@ -0,0 +1,67 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of the import of a realm: what is committed in the database
+ */
+public class RealmCheckpointRepresentation {
+    private String realmId;
+    private long users;
+    private long federatedUsers;
+    private List<String> shards = new ArrayList<>();
+    private boolean completed;
+
+    /**
+     * @return the id of the realm, once its structure is committed
+     */
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    /**
+     * @return the number of users committed, from the beginning of the users of the realm in file order
+     */
+    public long getUsers() {
+        return users;
+    }
+
+    public void setUsers(long users) {
+        this.users = users;
+    }
+
+    /**
+     * @return the number of federated users committed, from the beginning of the federated users of the realm in file order
+     */
+    public long getFederatedUsers() {
+        return federatedUsers;
+    }
+
+    public void setFederatedUsers(long federatedUsers) {
+        this.federatedUsers = federatedUsers;
+    }
+
+    /**
+     * @return the shards committed, for directory imports
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public void setShards(List<String> shards) {
+        this.shards = shards;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+}
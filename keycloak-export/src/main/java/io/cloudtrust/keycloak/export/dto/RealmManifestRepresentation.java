@@ -0,0 +1,59 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content of the directory export of a realm: the realm without its users, followed by the shards of its users and
+ * federated users. The manifest is written last, so that its presence marks a complete export.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RealmManifestRepresentation {
+    private String realm;
+    private String realmFile;
+    private Long createdTimestamp;
+    private List<ShardRepresentation> userShards = new ArrayList<>();
+    private List<ShardRepresentation> federatedUserShards = new ArrayList<>();
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    public String getRealmFile() {
+        return realmFile;
+    }
+
+    public void setRealmFile(String realmFile) {
+        this.realmFile = realmFile;
+    }
+
+    public Long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(Long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+
+    public List<ShardRepresentation> getUserShards() {
+        return userShards;
+    }
+
+    public void setUserShards(List<ShardRepresentation> userShards) {
+        this.userShards = userShards;
+    }
+
+    public List<ShardRepresentation> getFederatedUserShards() {
+        return federatedUserShards;
+    }
+
+    public void setFederatedUserShards(List<ShardRepresentation> federatedUserShards) {
+        this.federatedUserShards = federatedUserShards;
+    }
+}
@@ -0,0 +1,36 @@
+package io.cloudtrust.keycloak.export.dto;
+
+/**
+ * A file of a directory export holding a chunk of the users of a realm
+ */
+public class ShardRepresentation {
+    private String file;
+    private int users;
+
+    public ShardRepresentation() {
+    }
+
+    public ShardRepresentation(String file, int users) {
+        this.file = file;
+        this.users = users;
+    }
+
+    /**
+     * @return the name of the file, relative to the directory of the realm
+     */
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public void setUsers(int users) {
+        this.users = users;
+    }
+}
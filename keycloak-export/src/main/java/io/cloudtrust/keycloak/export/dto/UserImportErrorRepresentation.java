@@ -0,0 +1,46 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A user which could not be imported by an asynchronous realm import
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserImportErrorRepresentation {
+    private String id;
+    private String username;
+    private String type;
+    private String message;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
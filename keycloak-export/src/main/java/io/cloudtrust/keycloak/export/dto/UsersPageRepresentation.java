@@ -0,0 +1,31 @@
+package io.cloudtrust.keycloak.export.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.List;
+
+/**
+ * A page of exported users, with the cursor of the next page if there are more users
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UsersPageRepresentation {
+    private List<UserRepresentation> users;
+    private String next;
+
+    public List<UserRepresentation> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<UserRepresentation> users) {
+        this.users = users;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+}
@@ -1,28 +1,31 @@
 package io.cloudtrust.keycloak.json;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.cloudtrust.keycloak.export.dto.BetterCredentialRepresentation;
 import org.keycloak.representations.idm.CredentialRepresentation;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
+/**
+ * Deserializes credentials as {@link BetterCredentialRepresentation} directly from the parser, reusing the deserializers
+ * of the calling mapper
+ */
 public class BetterCredentialDeserializer extends JsonDeserializer<List<CredentialRepresentation>> {
     @Override
+    @SuppressWarnings("unchecked")
     public List<CredentialRepresentation> deserialize(JsonParser jsonParser, DeserializationContext context) throws IOException {
-        ObjectMapper objMapper = new ObjectMapper();
+        if (!jsonParser.isExpectedStartArrayToken()) {
+            return (List<CredentialRepresentation>) context.handleUnexpectedToken(List.class, jsonParser);
+        }
         List<CredentialRepresentation> res = new ArrayList<>();
-        JsonNode jsonNode = jsonParser.readValueAsTree();
-        Iterator<JsonNode> itr = jsonNode.elements();
-        while (itr.hasNext()) {
-            JsonNode credNode = itr.next();
-            res.add(credNode.traverse(objMapper).readValueAs(BetterCredentialRepresentation.class));
+        JsonToken token;
+        while ((token = jsonParser.nextToken()) != JsonToken.END_ARRAY) {
+            res.add(token == JsonToken.VALUE_NULL ? null : context.readValue(jsonParser, BetterCredentialRepresentation.class));
         }
         return res;
     }
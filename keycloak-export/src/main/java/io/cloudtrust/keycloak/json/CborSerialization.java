@@ -0,0 +1,60 @@
+package io.cloudtrust.keycloak.json;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Binary (CBOR) equivalent of Keycloak's JsonSerialization. Representations are mapped exactly as in JSON, so that
+ * exports keep the same content, including the ids of the credentials.
+ * Written documents start with the CBOR self-describe tag, which is used to tell them apart from JSON files.
+ */
+public class CborSerialization {
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    private static final byte[] SELF_DESCRIBE_TAG = {(byte) 0xd9, (byte) 0xd9, (byte) 0xf7};
+
+    public static final ObjectMapper mapper = new ObjectMapper(CBORFactory.builder()
+            .enable(CBORGenerator.Feature.WRITE_TYPE_HEADER)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build());
+
+    static {
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+
+    private CborSerialization() {
+    }
+
+    /**
+     * Serializes an entity in CBOR while it is written
+     *
+     * @param entity the representation to write
+     * @return the output writing the entity
+     */
+    public static StreamingOutput output(Object entity) {
+        return os -> mapper.writeValue(os, entity);
+    }
+
+    /**
+     * Checks whether a stream starts with the CBOR self-describe tag. The stream is consumed.
+     *
+     * @param is the stream to read
+     * @return true if the stream holds a CBOR document
+     * @throws IOException if the stream can't be read
+     */
+    public static boolean isCbor(InputStream is) throws IOException {
+        for (byte expected : SELF_DESCRIBE_TAG) {
+            if (is.read() != (expected & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
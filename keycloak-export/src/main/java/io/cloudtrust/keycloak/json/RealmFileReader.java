@@ -0,0 +1,340 @@
+package io.cloudtrust.keycloak.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.cloudtrust.keycloak.export.dto.BetterRealmRepresentation;
+import io.cloudtrust.keycloak.export.dto.BetterUserRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Reads a realm export file (a single realm or an array of realms) at the token level, without ever holding
+ * the users of a realm in memory. Files written in CBOR are detected from their header and read the same way.
+ * A first scan records where each realm and its users start in the file, then the realm without its users and
+ * the users themselves are read separately by re-opening the file at the recorded positions.
+ */
+public class RealmFileReader implements Closeable {
+    private static final String REALM = "realm";
+    private static final String USERS = "users";
+    private static final String FEDERATED_USERS = "federatedUsers";
+    private static final String USER_IDS = BetterRealmRepresentation.USER_IDS;
+
+    private final StreamSource source;
+    private final ObjectMapper mapper;
+    // Detected by the first parser, realms being read by several threads when they are imported in parallel
+    private volatile JsonFactory factory;
+
+    /**
+     * @param source the file to read, in JSON or in CBOR
+     * @param mapper the mapper used to read the representations
+     */
+    public RealmFileReader(StreamSource source, ObjectMapper mapper) {
+        this.source = source;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Scans the file to find the realms it contains. Only the name of the realms is read, all other values are skipped.
+     *
+     * @return the realms found in the file, in file order
+     * @throws IOException if the file can't be read
+     */
+    public List<RealmEntry> scan() throws IOException {
+        List<RealmEntry> result = new ArrayList<>();
+        scan(entry -> {
+            result.add(entry);
+            return false;
+        });
+        return result;
+    }
+
+    /**
+     * Scans the file until the given realm is found. The realms located before it are skipped at the token level
+     * and the rest of the file is not read.
+     *
+     * @param realmName the name of the realm
+     * @return the realm, or null if the file does not contain it
+     * @throws IOException if the file can't be read
+     */
+    public RealmEntry find(String realmName) throws IOException {
+        RealmEntry[] result = new RealmEntry[1];
+        scan(entry -> {
+            if (realmName.equals(entry.getName())) {
+                result[0] = entry;
+                return true;
+            }
+            return false;
+        });
+        return result[0];
+    }
+
+    // The visitor returns true to stop the scan
+    private void scan(Predicate<RealmEntry> visitor) throws IOException {
+        try (InputStream is = source.open(); JsonParser parser = createParser(is)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                // Case with more realms in stream
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (visitor.test(scanRealm(parser))) {
+                        return;
+                    }
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                // Case with single realm in stream
+                visitor.test(scanRealm(parser));
+            }
+        }
+    }
+
+    /**
+     * Reads a realm without its users, federated users and user ids
+     *
+     * @param entry the realm to read
+     * @return the realm representation
+     * @throws IOException if the file can't be read
+     */
+    public BetterRealmRepresentation readRealm(RealmEntry entry) throws IOException {
+        try (InputStream is = source.open(entry.getOffset()); JsonParser parser = createParser(is)) {
+            parser.nextToken();
+            ObjectNode realmNode = mapper.createObjectNode();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (USERS.equals(fieldName) || FEDERATED_USERS.equals(fieldName) || USER_IDS.equals(fieldName)) {
+                    parser.skipChildren();
+                } else {
+                    realmNode.set(fieldName, mapper.readTree(parser));
+                }
+            }
+            return mapper.treeToValue(realmNode, BetterRealmRepresentation.class);
+        }
+    }
+
+    /**
+     * Reads the users of a realm one by one
+     *
+     * @param entry    the realm whose users are read
+     * @param consumer called for each user, in file order
+     * @throws IOException if the file can't be read
+     */
+    public void readUsers(RealmEntry entry, Consumer<UserRepresentation> consumer) throws IOException {
+        readUsers(entry, 0, consumer);
+    }
+
+    /**
+     * Reads the users of a realm one by one, after skipping the first ones at the token level
+     *
+     * @param entry    the realm whose users are read
+     * @param skip     the number of users to skip, without deserializing them
+     * @param consumer called for each user after the skipped ones, in file order
+     * @throws IOException if the file can't be read
+     */
+    public void readUsers(RealmEntry entry, long skip, Consumer<UserRepresentation> consumer) throws IOException {
+        readArray(entry.getUsersOffset(), skip, BetterUserRepresentation.class, consumer);
+    }
+
+    /**
+     * Reads the federated users of a realm one by one
+     *
+     * @param entry    the realm whose federated users are read
+     * @param consumer called for each federated user, in file order
+     * @throws IOException if the file can't be read
+     */
+    public void readFederatedUsers(RealmEntry entry, Consumer<UserRepresentation> consumer) throws IOException {
+        readFederatedUsers(entry, 0, consumer);
+    }
+
+    /**
+     * Reads the federated users of a realm one by one, after skipping the first ones at the token level
+     *
+     * @param entry    the realm whose federated users are read
+     * @param skip     the number of federated users to skip, without deserializing them
+     * @param consumer called for each federated user after the skipped ones, in file order
+     * @throws IOException if the file can't be read
+     */
+    public void readFederatedUsers(RealmEntry entry, long skip, Consumer<UserRepresentation> consumer) throws IOException {
+        readArray(entry.getFederatedUsersOffset(), skip, UserRepresentation.class, consumer);
+    }
+
+    /**
+     * Reads the ids of all the users of the realm, written by incremental exports
+     *
+     * @param entry    the realm whose user ids are read
+     * @param consumer called for each user id, in file order
+     * @throws IOException if the file can't be read
+     */
+    public void readUserIds(RealmEntry entry, Consumer<String> consumer) throws IOException {
+        if (entry.getUserIdsOffset() < 0) {
+            return;
+        }
+        try (InputStream is = source.open(entry.getUserIdsOffset()); JsonParser parser = createParser(is)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return;
+            }
+            while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                consumer.accept(parser.getText());
+            }
+        }
+    }
+
+    private <T extends UserRepresentation> void readArray(long offset, long skip, Class<T> clazz, Consumer<UserRepresentation> consumer) throws IOException {
+        if (offset < 0) {
+            return;
+        }
+        try (InputStream is = source.open(offset); JsonParser parser = createParser(is)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return;
+            }
+            long skipped = 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                if (skipped < skip) {
+                    parser.skipChildren();
+                    skipped++;
+                    continue;
+                }
+                consumer.accept(mapper.readValue(parser, clazz));
+            }
+        }
+    }
+
+    private JsonParser createParser(InputStream is) throws IOException {
+        JsonFactory jsonFactory = factory;
+        if (jsonFactory == null) {
+            // The format is detected once from the beginning of the file, as streams opened at an offset have no header
+            try (InputStream header = source.open()) {
+                jsonFactory = CborSerialization.isCbor(header) ? CborSerialization.mapper.getFactory() : mapper.getFactory();
+            }
+            factory = jsonFactory;
+        }
+        return jsonFactory.createParser(is);
+    }
+
+    private RealmEntry scanRealm(JsonParser parser) throws IOException {
+        RealmEntry entry = new RealmEntry(tokenOffset(parser));
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (REALM.equals(fieldName)) {
+                entry.name = parser.getValueAsString();
+            } else if (USERS.equals(fieldName) && token == JsonToken.START_ARRAY) {
+                entry.usersOffset = tokenOffset(parser);
+            } else if (FEDERATED_USERS.equals(fieldName) && token == JsonToken.START_ARRAY) {
+                entry.federatedUsersOffset = tokenOffset(parser);
+            } else if (USER_IDS.equals(fieldName) && token == JsonToken.START_ARRAY) {
+                entry.userIdsOffset = tokenOffset(parser);
+            }
+            parser.skipChildren();
+        }
+        return entry;
+    }
+
+    /**
+     * Releases the resources of the source, such as the decompressed copy of a file
+     */
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private long tokenOffset(JsonParser parser) throws IOException {
+        long offset = parser.getTokenLocation().getByteOffset();
+        if (offset < 0) {
+            throw new IOException("Unable to locate content in file: only UTF-8 encoded files are supported");
+        }
+        return offset;
+    }
+
+    /**
+     * Opens new streams on the file content
+     */
+    @FunctionalInterface
+    public interface StreamSource extends Closeable {
+        /**
+         * Opens a new stream on the beginning of the file content
+         */
+        InputStream open() throws IOException;
+
+        /**
+         * Opens a new stream on the file content, positioned at the given offset.
+         * By default, the content located before the offset is read and skipped.
+         */
+        default InputStream open(long offset) throws IOException {
+            InputStream is = open();
+            try {
+                skipFully(is, offset);
+                return is;
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+        }
+
+        @Override
+        default void close() throws IOException {
+            // Nothing to release by default
+        }
+
+        static void skipFully(InputStream is, long offset) throws IOException {
+            long remaining = offset;
+            while (remaining > 0) {
+                long skipped = is.skip(remaining);
+                if (skipped <= 0) {
+                    if (is.read() < 0) {
+                        throw new EOFException("Unexpected end of file");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Position of a realm in the file
+     */
+    public static class RealmEntry {
+        private final long offset;
+        private String name;
+        private long usersOffset = -1;
+        private long federatedUsersOffset = -1;
+        private long userIdsOffset = -1;
+
+        private RealmEntry(long offset) {
+            this.offset = offset;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getUsersOffset() {
+            return usersOffset;
+        }
+
+        public long getFederatedUsersOffset() {
+            return federatedUsersOffset;
+        }
+
+        /**
+         * @return the position of the ids of all the users, only written by incremental exports, or -1
+         */
+        public long getUserIdsOffset() {
+            return userIdsOffset;
+        }
+    }
+}